@@ -0,0 +1,224 @@
+package uk.ac.bradford.diggame;
+
+import java.awt.EventQueue;
+import java.awt.Graphics2D;
+import java.awt.Toolkit;
+import java.awt.image.BufferStrategy;
+import java.util.concurrent.locks.LockSupport;
+import javax.swing.JFrame;
+import javax.swing.Timer;
+
+/**
+ * The ActiveRenderer class draws the game with active rendering instead of
+ * Swing's repaint requests. It is a plain AWT canvas with a BufferStrategy of
+ * three buffers (or two, or a blitted back buffer, if page flipping is not
+ * available), and a render thread of its own draws a frame into the
+ * back buffer and shows it at a steady rate. Swing's repaint manager merges
+ * and delays repaint requests as it sees fit, so frames painted that way reach
+ * the screen at uneven times; here the render thread decides exactly when each
+ * frame is drawn and shown.
+ *
+ * The frames are drawn by the same Canvas code as the Swing path, and the
+ * GameGUI still passes new game state to that Canvas through updateDisplay(),
+ * so the engine does not know which path is in use. The game state is changed
+ * on the Swing event thread, so the render thread holds the frame lock of the
+ * Canvas while it draws. The GameEngine holds the same lock while it plays a
+ * turn, and the GameGUI while it zooms or toggles an overlay, so a frame never
+ * reads the level, the mole store, the minimap or the performance overlay
+ * while they change. A key press waits at most one frame for the lock. The
+ * Canvas lays a frame out for the size of this component without being
+ * resized, so no Swing component is changed off the event thread.
+ *
+ * If the contents of the buffers are lost, for example when the display mode
+ * changes or another window covers this one on some systems, the frame is
+ * drawn again before it is shown. The number of times this happens is counted.
+ */
+public class ActiveRenderer extends java.awt.Canvas {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The Canvas whose drawing code draws each frame.
+     */
+    private final Canvas scene;
+
+    private final long frameNanos;
+
+    /**
+     * Measures the times between frames being shown.
+     */
+    private final FrameJitter jitter;
+
+    private volatile Thread renderThread;
+    private volatile long lostFrames;
+
+    /**
+     * Creates an active renderer. Rendering starts when the renderer is added
+     * to a window that is showing, and stops when it is removed.
+     *
+     * @param scene the Canvas that draws the level, player and moles
+     * @param framesPerSecond the rate to draw frames at
+     */
+    ActiveRenderer(Canvas scene, int framesPerSecond) {
+        this.scene = scene;
+        this.frameNanos = 1_000_000_000L / framesPerSecond;
+        this.jitter = new FrameJitter(600, framesPerSecond);
+        setIgnoreRepaint(true);     //the render thread draws everything
+        setFocusable(false);        //leave key presses to the window
+        setBackground(scene.getBackground());
+    }
+
+    /**
+     * Starts the render thread once the canvas can be drawn on.
+     */
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        Thread thread = new Thread(this::renderLoop, "active-renderer");
+        thread.setDaemon(true);
+        renderThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Stops the render thread before the canvas loses its peer.
+     */
+    @Override
+    public void removeNotify() {
+        Thread thread = renderThread;
+        renderThread = null;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        super.removeNotify();
+    }
+
+    /**
+     * Draws and shows frames until the render thread is stopped. Each frame
+     * has a deadline one frame time after the last; if a frame is late by more
+     * than a whole frame the schedule starts again from now instead of drawing
+     * frames back to back to catch up.
+     */
+    private void renderLoop() {
+        BufferStrategy strategy = null;
+        long deadline = System.nanoTime();
+        while (renderThread == Thread.currentThread()) {
+            if (strategy == null) {
+                createBufferStrategy(3);    //AWT falls back to fewer buffers or blitting if it must
+                strategy = getBufferStrategy();
+            }
+            int width = getWidth();
+            int height = getHeight();
+            if (width > 0 && height > 0) {
+                drawFrame(strategy, width, height);
+                jitter.record(System.nanoTime());
+            }
+            deadline += frameNanos;
+            long wait = deadline - System.nanoTime();
+            if (wait < -frameNanos) {
+                deadline = System.nanoTime();
+            } else if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+        if (strategy != null) {
+            strategy.dispose();
+        }
+    }
+
+    /**
+     * Draws one frame into the back buffer and shows it, drawing it again if
+     * the buffer contents were lost or restored while drawing.
+     */
+    private void drawFrame(BufferStrategy strategy, int width, int height) {
+        boolean lost;
+        do {
+            boolean restored;
+            do {
+                Graphics2D g = (Graphics2D) strategy.getDrawGraphics();
+                try {
+                    synchronized (scene.frameLock) {
+                        scene.renderFrame(g, width, height);
+                    }
+                } finally {
+                    g.dispose();
+                }
+                restored = strategy.contentsRestored();
+                if (restored) {
+                    lostFrames++;
+                }
+            } while (restored);
+            strategy.show();
+            lost = strategy.contentsLost();
+            if (lost) {
+                lostFrames++;
+            }
+        } while (lost);
+        Toolkit.getDefaultToolkit().sync();     //flush the frame on systems that buffer drawing commands
+    }
+
+    /**
+     * @return the measurement of the times between frames being shown
+     */
+    public FrameJitter getJitter() {
+        return jitter;
+    }
+
+    /**
+     * @return the number of times a frame had to be drawn again because the
+     * contents of a buffer were lost
+     */
+    public long getLostFrames() {
+        return lostFrames;
+    }
+
+    /**
+     * Compares frame pacing of the Swing repaint path with active rendering.
+     * A game is shown for a few seconds in each mode at the same frame rate:
+     * in Swing mode a Swing Timer calls repaint() every frame and the time of
+     * each paint is recorded, and in active mode the render thread records the
+     * time each frame is shown. This needs a display. Usage: ActiveRenderer
+     * [seconds] [framesPerSecond]
+     *
+     * @param args optional seconds to measure each mode for and frame rate
+     * @throws Exception if the windows cannot be created
+     */
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int fps = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+        for (boolean active : new boolean[]{false, true}) {
+            GameGUI[] gui = new GameGUI[1];
+            Timer[] repaints = new Timer[1];
+            EventQueue.invokeAndWait(() -> {
+                gui[0] = new GameGUI(active);
+                gui[0].setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+                gui[0].setVisible(true);
+                GameEngine engine = new GameEngine(gui[0], 1);
+                engine.startGame();
+                if (!active) {
+                    repaints[0] = new Timer(1000 / fps, e -> gui[0].canvas.repaint());
+                    repaints[0].start();
+                }
+            });
+            Thread.sleep(1000);     //let the window settle before measuring
+            FrameJitter jitter = active ? gui[0].getActiveRenderer().getJitter() : gui[0].canvas.swingJitter;
+            jitter.reset();
+            Thread.sleep(seconds * 1000L);
+            String summary = jitter.summary();
+            EventQueue.invokeAndWait(() -> {
+                if (repaints[0] != null) {
+                    repaints[0].stop();
+                }
+                gui[0].dispose();
+            });
+            System.out.println((active ? "active rendering: " : "Swing repaint:    ") + summary
+                    + (active ? ", " + gui[0].getActiveRenderer().getLostFrames() + " lost frames" : ""));
+        }
+        System.exit(0);
+    }
+}
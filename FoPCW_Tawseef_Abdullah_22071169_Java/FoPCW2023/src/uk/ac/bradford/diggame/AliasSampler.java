@@ -0,0 +1,88 @@
+package uk.ac.bradford.diggame;
+
+import java.util.Random;
+
+/**
+ * The AliasSampler class chooses random values from 0 to n - 1 with fixed
+ * weights, using Vose's alias method. Building a sampler takes O(n) time, and
+ * every sample afterwards takes the same small constant time however many
+ * values there are, unlike walking a chain of if statements or a table of
+ * cumulative percentages.
+ */
+public class AliasSampler {
+
+    /**
+     * The chance of keeping the value of each column rather than using its
+     * alias, scaled to the range 0 to 1.
+     */
+    private final double[] probability;
+
+    /**
+     * The value used for each column when it is not kept.
+     */
+    private final int[] alias;
+
+    /**
+     * Builds a sampler for the given weights. Weights below zero are treated as
+     * zero, and at least one weight must be above zero.
+     *
+     * @param weights the relative weight of each value
+     */
+    public AliasSampler(double[] weights) {
+        int n = weights.length;
+        probability = new double[n];
+        alias = new int[n];
+        double total = 0;
+        for (double w : weights) {
+            total += Math.max(0, w);
+        }
+        if (total <= 0) {
+            throw new IllegalArgumentException("at least one weight must be above zero");
+        }
+
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int smallCount = 0;
+        int largeCount = 0;
+        for (int i = 0; i < n; i++) {
+            scaled[i] = Math.max(0, weights[i]) * n / total;
+            if (scaled[i] < 1) {
+                small[smallCount++] = i;
+            } else {
+                large[largeCount++] = i;
+            }
+        }
+        while (smallCount > 0 && largeCount > 0) {
+            int less = small[--smallCount];
+            int more = large[--largeCount];
+            probability[less] = scaled[less];
+            alias[less] = more;
+            scaled[more] = scaled[more] + scaled[less] - 1;
+            if (scaled[more] < 1) {
+                small[smallCount++] = more;
+            } else {
+                large[largeCount++] = more;
+            }
+        }
+        //anything left over is 1 apart from rounding errors
+        while (largeCount > 0) {
+            probability[large[--largeCount]] = 1;
+        }
+        while (smallCount > 0) {
+            probability[small[--smallCount]] = 1;
+        }
+    }
+
+    /**
+     * Chooses a random value using the weights given to the constructor.
+     *
+     * @param rng the random number generator to use
+     * @return a value from 0 to n - 1, where n is the number of weights
+     */
+    public int sample(Random rng) {
+        double u = rng.nextDouble() * probability.length;
+        int column = (int) u;
+        return u - column < probability[column] ? column : alias[column];
+    }
+}
@@ -0,0 +1,715 @@
+package uk.ac.bradford.diggame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import uk.ac.bradford.diggame.Tile.TileType;
+
+/**
+ * The AutoSolver class searches for the shortest sequence of moves that clears
+ * a level: mining every ore tile and then standing on a BASE, which is when the
+ * GameEngine moves on to the next level. The player's energy, tile
+ * durabilities and the stronger mining after a URANIUM tile is mined all follow
+ * the same rules as GameEngine.movePlayer() and doTurn(). Moles are ignored,
+ * because their moves are random, so the result is the best case for a level.
+ * Terrain never collapses in the solver's copy of the level, so its plans are
+ * checked by verify() in a game played with the collapse interval turned off.
+ *
+ * The search is a beam search over "macro" moves. From each state the solver
+ * finds the few ore tiles that are quickest to reach, and for each one plays
+ * the moves that dig through to it turn by turn on a compact copy of the
+ * level, going back to the BASE to refill energy when it cannot afford to mine
+ * the next tile. Only the best states, by turns taken plus a lower bound on
+ * the turns still needed, are kept for the next round. States are expanded in
+ * parallel on a fork-join pool, and a transposition table keyed on a Zobrist
+ * hash of the state drops states that have already been reached in fewer
+ * turns. The hash covers the exact durability of every tile, not the damage
+ * stages GameEngine hashes, so two states only share a key if a 64 bit hash
+ * collides. The beam is widened and the search repeated until the time budget
+ * runs out, so the answer improves with more time.
+ */
+public class AutoSolver {
+
+    private static final int MAX_ENERGY = GameRules.getDefault().getPlayerEnergy();
+    private static final int ENERGY_PER_TURN = GameRules.getDefault().getEnergyPerTurn();
+    private static final int BASE_STRENGTH = GameRules.getDefault().getMiningStrength();
+    private static final int URANIUM_STRENGTH = GameRules.getDefault().getUraniumMiningStrength();
+
+    private static final byte EMPTY = (byte) TileType.EMPTY.ordinal();
+    private static final byte BASE = (byte) TileType.BASE.ordinal();
+    private static final byte COPPER = (byte) TileType.COPPER.ordinal();
+    private static final byte SILVER = (byte) TileType.SILVER.ordinal();
+    private static final byte URANIUM = (byte) TileType.URANIUM.ordinal();
+
+    /**
+     * Moves in the order N, S, E, W, matching the characters passed to
+     * GameEngine.movePlayer().
+     */
+    private static final int[] DX = {0, 0, 1, -1};
+    private static final int[] DY = {-1, 1, 0, 0};
+    private static final char[] MOVES = {'N', 'S', 'E', 'W'};
+
+    /**
+     * The number of nearest ore tiles tried from each state.
+     */
+    private static final int BRANCHING = 3;
+
+    /**
+     * How many times one macro move may go back to the BASE before it gives up.
+     */
+    private static final int MAX_REFILLS = 8;
+
+    private final int width;
+    private final int height;
+    private final Node root;
+    private final ForkJoinPool pool;
+
+    private final AtomicLong nodes = new AtomicLong();
+    private final AtomicLong turnsSimulated = new AtomicLong();
+
+    /**
+     * States already reached in a run of the beam search, with the fewest
+     * turns they were reached in.
+     */
+    private final ConcurrentHashMap<Long, Integer> seen = new ConcurrentHashMap<>();
+
+    /**
+     * The best complete plan found so far.
+     */
+    private volatile Node best;
+
+    /**
+     * A state of the search: a copy of the tiles, the player, and how it got
+     * here. Nodes are only changed by the thread that creates them.
+     */
+    private static final class Node {
+
+        final byte[] type;
+        final int[] durability;
+        final Node parent;
+        int pos;
+        int energy;
+        int strength;
+        int turns;
+        int ore;
+        long tileHash;      //hash of the type and exact durability of every tile
+        int remainingBound;
+        byte[] moves;
+        boolean complete;
+
+        Node(byte[] type, int[] durability, Node parent) {
+            this.type = type;
+            this.durability = durability;
+            this.parent = parent;
+        }
+
+        Node copy() {
+            Node n = new Node(type.clone(), durability.clone(), this);
+            n.pos = pos;
+            n.energy = energy;
+            n.strength = strength;
+            n.turns = turns;
+            n.ore = ore;
+            n.tileHash = tileHash;
+            return n;
+        }
+    }
+
+    /**
+     * The result of a search.
+     */
+    public static class Result {
+
+        private final String plan;
+        private final int lowerBound;
+        private final long nodes;
+        private final long turnsSimulated;
+        private final long nanos;
+
+        Result(String plan, int lowerBound, long nodes, long turnsSimulated, long nanos) {
+            this.plan = plan;
+            this.lowerBound = lowerBound;
+            this.nodes = nodes;
+            this.turnsSimulated = turnsSimulated;
+            this.nanos = nanos;
+        }
+
+        /**
+         * @return the moves of the best plan found, one of N, S, E or W per
+         * turn, or null if no plan was found in time
+         */
+        public String getPlan() {
+            return plan;
+        }
+
+        /**
+         * @return the number of turns the best plan takes, which is an upper
+         * bound on the best case, or -1 if no plan was found
+         */
+        public int getUpperBound() {
+            return plan == null ? -1 : plan.length();
+        }
+
+        /**
+         * @return a number of turns that no plan can beat
+         */
+        public int getLowerBound() {
+            return lowerBound;
+        }
+
+        /**
+         * @return the number of search states generated per second
+         */
+        public double getNodesPerSecond() {
+            return nodes * 1e9 / Math.max(1, nanos);
+        }
+
+        /**
+         * @return the number of simulated turns played per second
+         */
+        public double getTurnsPerSecond() {
+            return turnsSimulated * 1e9 / Math.max(1, nanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("best %s turns, lower bound %d, %d nodes (%.0f/s), %.0f turns/s",
+                    plan == null ? "?" : Integer.toString(plan.length()), lowerBound, nodes,
+                    getNodesPerSecond(), getTurnsPerSecond());
+        }
+    }
+
+    /**
+     * Creates a solver for a level.
+     *
+     * @param level the level to clear, which is not changed
+     * @param playerX the X position the player starts at
+     * @param playerY the Y position the player starts at
+     * @param energy the energy the player starts with
+     * @param strength the mining strength the player starts with
+     * @param pool the pool to expand states on
+     */
+    public AutoSolver(Tile[][] level, int playerX, int playerY, int energy, int strength, ForkJoinPool pool) {
+        this.width = level.length;
+        this.height = level[0].length;
+        this.pool = pool;
+        root = new Node(new byte[width * height], new int[width * height], null);
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                int cell = x * height + y;
+                root.type[cell] = (byte) level[x][y].getType().ordinal();
+                root.durability[cell] = level[x][y].getDurability();
+                if (isOre(root.type[cell])) {
+                    root.ore++;
+                }
+            }
+        }
+        for (int cell = 0; cell < width * height; cell++) {
+            root.tileHash ^= tileKey(cell, root.type[cell], root.durability[cell]);
+        }
+        root.pos = playerX * height + playerY;
+        root.energy = energy;
+        root.strength = strength;
+        root.moves = new byte[0];
+        root.remainingBound = remainingBound(root);
+        root.complete = root.ore == 0 && root.type[root.pos] == BASE;
+    }
+
+    /**
+     * Searches for a plan until the time budget runs out.
+     *
+     * @param budgetNanos the time to search for, in nanoseconds
+     * @param firstWidth the beam width of the first run; each later run
+     * doubles it
+     * @return the best plan found and the bounds on the best case
+     */
+    public Result solve(long budgetNanos, int firstWidth) {
+        long start = System.nanoTime();
+        long deadline = start + budgetNanos;
+        if (root.complete) {
+            best = root;
+        }
+        for (int beamWidth = firstWidth; System.nanoTime() < deadline; beamWidth *= 2) {
+            seen.clear();
+            runBeam(beamWidth, deadline);
+            if (beamWidth > 1 << 20) {
+                break;
+            }
+        }
+        Node found = best;
+        String plan = found == null ? null : planOf(found);
+        return new Result(plan, lowerBound(), nodes.get(), turnsSimulated.get(), System.nanoTime() - start);
+    }
+
+    /**
+     * Runs one beam search from the start of the level.
+     */
+    private void runBeam(int beamWidth, long deadline) {
+        List<Node> beam = new ArrayList<>();
+        beam.add(root);
+        while (!beam.isEmpty() && System.nanoTime() < deadline) {
+            Node[] children = new Node[beam.size() * BRANCHING];
+            pool.invoke(new Expand(beam, children, 0, beam.size()));
+            Node limit = best;
+            List<Node> next = new ArrayList<>();
+            for (Node child : children) {
+                if (child == null) {
+                    continue;
+                }
+                if (child.complete) {
+                    offer(child);
+                } else if (limit == null || child.turns + child.remainingBound < limit.turns) {
+                    next.add(child);
+                }
+            }
+            next.sort((a, b) -> Integer.compare(a.turns + a.remainingBound, b.turns + b.remainingBound));
+            beam = next.size() > beamWidth ? new ArrayList<>(next.subList(0, beamWidth)) : next;
+        }
+    }
+
+    private synchronized void offer(Node complete) {
+        if (best == null || complete.turns < best.turns) {
+            best = complete;
+        }
+    }
+
+    /**
+     * Expands a range of the beam, splitting it in half until it is small.
+     */
+    private final class Expand extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Node> beam;
+        private final Node[] children;
+        private final int from;
+        private final int to;
+
+        Expand(List<Node> beam, Node[] children, int from, int to) {
+            this.beam = beam;
+            this.children = children;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 4) {
+                Scratch scratch = new Scratch(width * height);
+                for (int i = from; i < to; i++) {
+                    expand(beam.get(i), children, i * BRANCHING, scratch);
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Expand(beam, children, from, middle), new Expand(beam, children, middle, to));
+            }
+        }
+    }
+
+    /**
+     * Arrays used by one thread while expanding states.
+     */
+    private static final class Scratch {
+
+        final int[] dist;
+        final int[] prev;
+        final int[] path;
+        final int[] targets = new int[BRANCHING];
+        final IntMinHeap heap = new IntMinHeap(256);
+        byte[] moves = new byte[256];
+        int moveCount;
+
+        Scratch(int cells) {
+            dist = new int[cells];
+            prev = new int[cells];
+            path = new int[cells];
+        }
+    }
+
+    /**
+     * Creates the children of a state, one for each of the nearest ore tiles.
+     */
+    private void expand(Node node, Node[] children, int at, Scratch s) {
+        int found = nearestOre(node, s);
+        int[] targets = Arrays.copyOf(s.targets, found);
+        for (int i = 0; i < targets.length; i++) {
+            Node child = node.copy();
+            s.moveCount = 0;
+            boolean ok = mineTarget(child, targets[i], s);
+            turnsSimulated.addAndGet(s.moveCount);
+            if (!ok) {
+                continue;
+            }
+            if (!child.complete && child.ore == 0) {
+                if (!goHome(child, s)) {
+                    continue;
+                }
+                child.complete = true;
+            }
+            child.moves = Arrays.copyOf(s.moves, s.moveCount);
+            child.remainingBound = remainingBound(child);
+            nodes.incrementAndGet();
+            long key = child.tileHash ^ ZobristHash.mix((long) child.pos << 40
+                    ^ (long) child.energy << 12 ^ child.strength);
+            if (seen.merge(key, child.turns, Math::min) < child.turns) {
+                continue;
+            }
+            children[at + i] = child;
+        }
+    }
+
+    /**
+     * @return the Zobrist key of a tile with an exact durability
+     */
+    private static long tileKey(int cell, byte type, int durability) {
+        return ZobristHash.mix((long) cell << 40 ^ (long) type << 32 ^ durability);
+    }
+
+    /**
+     * Plays one turn, following GameEngine.movePlayer() and doTurn(), and
+     * records the move.
+     *
+     * @return true if the level is complete after the turn
+     */
+    private boolean step(Node n, int direction, Scratch s) {
+        int x = n.pos / height;
+        int y = n.pos % height;
+        boolean fromBase = n.type[n.pos] == BASE;
+        int nx = x + DX[direction];
+        int ny = y + DY[direction];
+        if (nx >= 0 && ny >= 0 && nx < width && ny < height) {
+            int cell = nx * height + ny;
+            if (isPassable(n.type[cell])) {
+                n.pos = cell;
+            } else if (n.energy >= n.durability[cell]) {
+                long before = tileKey(cell, n.type[cell], n.durability[cell]);
+                n.durability[cell] -= n.strength;
+                if (n.durability[cell] <= 0) {
+                    byte mined = n.type[cell];
+                    n.type[cell] = EMPTY;
+                    n.durability[cell] = 0;
+                    if (isOre(mined)) {
+                        n.ore--;
+                    }
+                    if (mined == URANIUM) {
+                        n.strength = URANIUM_STRENGTH;
+                    }
+                }
+                n.tileHash ^= before ^ tileKey(cell, n.type[cell], n.durability[cell]);
+                n.energy = Math.max(0, n.energy - n.durability[cell]);
+            }
+        }
+        if (fromBase) {
+            n.energy = MAX_ENERGY;
+        }
+        n.energy = Math.min(MAX_ENERGY, n.energy + ENERGY_PER_TURN);
+        n.turns++;
+        if (s.moveCount == s.moves.length) {
+            s.moves = Arrays.copyOf(s.moves, s.moves.length * 2);
+        }
+        s.moves[s.moveCount++] = (byte) direction;
+        return n.ore == 0 && n.type[n.pos] == BASE;
+    }
+
+    /**
+     * Digs from the current position to a target tile and mines it, going back
+     * to the BASE to refill energy when needed.
+     *
+     * @return false if the target could not be reached
+     */
+    private boolean mineTarget(Node n, int target, Scratch s) {
+        for (int refills = 0; refills <= MAX_REFILLS; refills++) {
+            int length = pathTo(n, target, s);
+            if (length < 0) {
+                return false;
+            }
+            boolean refill = false;
+            for (int i = 0; i < length && !refill; i++) {
+                int cell = s.path[i];
+                int direction = directionTo(n.pos, cell);
+                while (true) {
+                    if (isPassable(n.type[cell])) {
+                        if (step(n, direction, s)) {
+                            n.complete = true;
+                            return true;
+                        }
+                        break;
+                    } else if (n.energy >= n.durability[cell]) {
+                        if (step(n, direction, s)) {
+                            n.complete = true;
+                            return true;
+                        }
+                        if (cell == target && n.type[cell] == EMPTY) {
+                            return true;
+                        }
+                    } else if (n.type[n.pos] == BASE) {
+                        if (n.durability[cell] > MAX_ENERGY) {     //energy never goes above MAX_ENERGY
+                            return false;
+                        }
+                        step(n, direction, s);   //cannot mine, but starting from the BASE refills energy
+                    } else {
+                        if (!goHome(n, s)) {
+                            return false;
+                        }
+                        refill = true;
+                        break;
+                    }
+                }
+            }
+            if (!refill) {
+                return n.type[target] == EMPTY;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Walks to the nearest BASE over tiles that are already clear.
+     *
+     * @return false if there is no clear path to a BASE
+     */
+    private boolean goHome(Node n, Scratch s) {
+        if (n.type[n.pos] == BASE) {
+            return true;
+        }
+        Arrays.fill(s.dist, -1);
+        int[] queue = s.path;
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = n.pos;
+        s.dist[n.pos] = 0;
+        int base = -1;
+        while (head < tail && base < 0) {
+            int cell = queue[head++];
+            for (int d = 0; d < 4; d++) {
+                int next = neighbour(cell, d);
+                if (next >= 0 && s.dist[next] < 0 && isPassable(n.type[next])) {
+                    s.dist[next] = s.dist[cell] + 1;
+                    s.prev[next] = cell;
+                    queue[tail++] = next;
+                    if (n.type[next] == BASE) {
+                        base = next;
+                        break;
+                    }
+                }
+            }
+        }
+        if (base < 0) {
+            return false;
+        }
+        int length = s.dist[base];
+        int[] route = new int[length];
+        for (int cell = base, i = length - 1; i >= 0; cell = s.prev[cell], i--) {
+            route[i] = cell;
+        }
+        for (int cell : route) {
+            step(n, directionTo(n.pos, cell), s);
+        }
+        return true;
+    }
+
+    /**
+     * Finds the cheapest path in turns from the player to a target, and
+     * stores the tiles on it (not including the player's tile) in s.path.
+     *
+     * @return the length of the path, or -1 if there is none
+     */
+    private int pathTo(Node n, int target, Scratch s) {
+        dijkstra(n, s, target);
+        if (s.dist[target] == Integer.MAX_VALUE) {
+            return -1;
+        }
+        int length = 0;
+        for (int cell = target; cell != n.pos; cell = s.prev[cell]) {
+            length++;
+        }
+        for (int cell = target, i = length - 1; i >= 0; cell = s.prev[cell], i--) {
+            s.path[i] = cell;
+        }
+        return length;
+    }
+
+    /**
+     * Finds up to BRANCHING ore tiles that take the fewest turns to reach.
+     *
+     * @return the number of ore tiles found, stored in s.targets
+     */
+    private int nearestOre(Node n, Scratch s) {
+        return dijkstra(n, s, -1);
+    }
+
+    /**
+     * Runs Dijkstra's algorithm from the player, where entering a clear tile
+     * takes one turn and entering a solid tile takes one turn per hit needed
+     * to mine it plus one. Stops when the target is reached, or when BRANCHING
+     * ore tiles have been reached if the target is -1.
+     *
+     * @return the number of ore tiles found
+     */
+    private int dijkstra(Node n, Scratch s, int target) {
+        Arrays.fill(s.dist, Integer.MAX_VALUE);
+        s.heap.clear();
+        s.dist[n.pos] = 0;
+        s.heap.push(0, n.pos);
+        int found = 0;
+        while (!s.heap.isEmpty()) {
+            int d = s.heap.peekKey();
+            int cell = s.heap.pop();
+            if (d > s.dist[cell]) {
+                continue;
+            }
+            if (cell == target) {
+                break;
+            }
+            if (target < 0 && isOre(n.type[cell])) {
+                s.targets[found++] = cell;
+                if (found == BRANCHING) {
+                    break;
+                }
+                continue;   //do not plan through ore that is itself a target
+            }
+            for (int dir = 0; dir < 4; dir++) {
+                int next = neighbour(cell, dir);
+                if (next < 0) {
+                    continue;
+                }
+                int cost = isPassable(n.type[next]) ? 1
+                        : (n.durability[next] + n.strength - 1) / n.strength + 1;
+                if (d + cost < s.dist[next]) {
+                    s.dist[next] = d + cost;
+                    s.prev[next] = cell;
+                    s.heap.push(d + cost, next);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * A lower bound on the turns still needed: one turn for every hit needed
+     * to mine each remaining ore tile at the best possible mining strength.
+     */
+    private static int remainingBound(Node n) {
+        int strength = Math.max(n.strength, URANIUM_STRENGTH);
+        int bound = 0;
+        for (int cell = 0; cell < n.type.length; cell++) {
+            if (isOre(n.type[cell])) {
+                bound += (n.durability[cell] + strength - 1) / strength;
+            }
+        }
+        return bound;
+    }
+
+    /**
+     * A lower bound on the turns needed to clear the level: the hits needed to
+     * mine every ore tile, plus the moves needed to get next to the ore tile
+     * furthest from the start.
+     */
+    private int lowerBound() {
+        int furthest = 0;
+        int px = root.pos / height;
+        int py = root.pos % height;
+        for (int cell = 0; cell < root.type.length; cell++) {
+            if (isOre(root.type[cell])) {
+                furthest = Math.max(furthest, Math.abs(cell / height - px) + Math.abs(cell % height - py));
+            }
+        }
+        return root.remainingBound + Math.max(0, furthest - 1);
+    }
+
+    private String planOf(Node n) {
+        List<byte[]> segments = new ArrayList<>();
+        for (Node at = n; at != null; at = at.parent) {
+            segments.add(at.moves);
+        }
+        StringBuilder plan = new StringBuilder(n.turns);
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            for (byte move : segments.get(i)) {
+                plan.append(MOVES[move]);
+            }
+        }
+        return plan.toString();
+    }
+
+    private int neighbour(int cell, int direction) {
+        int x = cell / height + DX[direction];
+        int y = cell % height + DY[direction];
+        return x >= 0 && y >= 0 && x < width && y < height ? x * height + y : -1;
+    }
+
+    private int directionTo(int from, int to) {
+        int dx = to / height - from / height;
+        int dy = to % height - from % height;
+        for (int d = 0; d < 4; d++) {
+            if (DX[d] == dx && DY[d] == dy) {
+                return d;
+            }
+        }
+        throw new IllegalArgumentException("tiles are not next to each other");
+    }
+
+    private static boolean isOre(byte type) {
+        return type == COPPER || type == SILVER || type == URANIUM;
+    }
+
+    private static boolean isPassable(byte type) {
+        return type == EMPTY || type == BASE;
+    }
+
+    /**
+     * Plays a plan through a GameEngine with its moles removed and terrain
+     * collapse turned off, as the solver plans, to check that it clears the
+     * level in exactly the number of turns claimed.
+     *
+     * @return true if the level is cleared on the last move and not before
+     */
+    static boolean verify(long seed, String plan) {
+        GameEngine engine = new GameEngine(null, seed, GameRules.getDefault().withCollapseInterval(0));
+        engine.startGame();
+        Arrays.fill(engine.getMoles(), null);
+        for (int i = 0; i < plan.length(); i++) {
+            engine.movePlayer(plan.charAt(i));
+            engine.doTurn();
+            if (engine.getLevelNumber() != 1) {
+                return i == plan.length() - 1;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Solves the first level of a range of seeds and prints the plans and
+     * bounds. Usage: AutoSolver [firstSeed] [levels] [millisPerLevel]
+     * [beamWidth] [threads]
+     *
+     * @param args optional first seed, number of seeds, time budget per level
+     * in milliseconds, starting beam width and number of threads
+     */
+    public static void main(String[] args) {
+        long firstSeed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+        int levels = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        long millis = args.length > 2 ? Long.parseLong(args[2]) : 2000;
+        int beamWidth = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+        int threads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        for (long seed = firstSeed; seed < firstSeed + levels; seed++) {
+            GameEngine engine = new GameEngine(null, seed);
+            engine.startGame();
+            Player p = engine.getPlayer();
+            AutoSolver solver = new AutoSolver(engine.getLevel(), p.getX(), p.getY(),
+                    p.getEnergy(), GameRules.getDefault().getMiningStrength(), pool);
+            Result result = solver.solve(millis * 1_000_000L, beamWidth);
+            System.out.println("seed " + seed + ": " + engine.getOreRemaining() + " ore, " + result);
+            if (result.getPlan() != null) {
+                System.out.println("  plan " + result.getPlan());
+                System.out.println("  replayed in GameEngine: "
+                        + (verify(seed, result.getPlan()) ? "clears the level" : "DOES NOT MATCH"));
+            }
+        }
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,622 @@
+package uk.ac.bradford.diggame;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+import javax.swing.JPanel;
+
+/**
+ * Class used by the GameGUI to draw elements within a JPanel. The Canvas class
+ * loads images from an asset folder inside the main project folder.
+ *
+ * @author prtrundl
+ */
+class Canvas extends JPanel {
+
+    private BufferedImage empty;
+    private BufferedImage dirt;
+    private BufferedImage hardDirt;
+    private BufferedImage rock;
+    private BufferedImage player;
+    private BufferedImage mole;
+    private BufferedImage copper;
+    private BufferedImage uranium;
+    private BufferedImage silver;
+    private BufferedImage damage1;
+    private BufferedImage damage2;
+    private BufferedImage damage3;
+    private BufferedImage damage4;
+    private BufferedImage damage5;
+    private BufferedImage base;
+
+    /**
+     * Indexes of the sprites in a sprite set from the SpriteCache. The first
+     * eight entries are the tile sprites in the order of the TileType values.
+     */
+    private static final int PLAYER = 8;
+    private static final int MOLE = 9;
+    private static final int DAMAGE1 = 10;
+
+    /**
+     * The zoom levels that can be chosen, as a multiple of the tile size that
+     * fits the whole level into the window.
+     */
+    private static final double[] ZOOM_LEVELS = {0.5, 0.75, 1.0, 1.5, 2.0, 3.0, 4.0};
+
+    /**
+     * The index in ZOOM_LEVELS of the zoom level of 1.0.
+     */
+    private static final int DEFAULT_ZOOM = 2;
+
+    private SpriteCache spriteCache;    //sprite sets pre-scaled for each tile size
+    private int zoom = DEFAULT_ZOOM;    //index of the current zoom level
+    private int spriteSize;             //tile size of the sprites array below
+    private BufferedImage[] sprites;    //the sprite set currently drawn
+    private int originX;                //position of the top left tile and
+    private int originY;                //the tile size used by the last
+    private int tileSize = GameGUI.TILE_WIDTH;  //call to drawLevel
+    private int frameWidth;             //size of the frame being drawn, which
+    private int frameHeight;            //is not always the size of this panel
+
+    /**
+     * Held by the render thread of an ActiveRenderer while it draws a frame,
+     * and on the Swing event thread while anything a frame reads is changed:
+     * the GameEngine holds it while it plays a turn, and the GameGUI while it
+     * zooms, toggles the overlays or works out which tile was clicked. With
+     * Swing painting everything happens on the event thread and the lock is
+     * never contended.
+     */
+    final Object frameLock = new Object();
+
+    Tile[][] currentTiles;  //the current 2D array of tiles to display, or null for other grids
+    TileGrid currentGrid;   //the grid of tiles to display, over currentTiles if it is set
+    private final HeapTileGrid tileArrayGrid = new HeapTileGrid(null);  //reused for every Tile[][]
+    Player currentPlayer;       //the current player object to be drawn
+    Mole[] currentMoles;   //the current array of moles to draw
+    Visibility visibility;  //fog-of-war for the current level, or null
+    final PerfHud hud = new PerfHud();  //performance overlay, toggled with F3
+    MinimapRenderer minimap;    //overview of the level, or null until first shown
+    private boolean minimapShown;   //toggled with M
+    final FrameJitter swingJitter = new FrameJitter(600, GameGUI.FRAMES_PER_SECOND); //times between Swing paints
+
+    /**
+     * The colour drawn over explored tiles that the player cannot see now.
+     */
+    private static final Color FOG = new Color(0, 0, 0, 140);
+
+    /**
+     * The shape of the fullness or energy bar being drawn, reused for every
+     * bar so that drawing a frame creates no objects.
+     */
+    private final Rectangle2D.Double bar = new Rectangle2D.Double();
+
+    /**
+     * Constructor that loads tile images for use in this class
+     */
+    public Canvas() {
+        loadTileImages();
+        spriteCache = new SpriteCache(new BufferedImage[]{empty, dirt, hardDirt,
+            rock, copper, silver, uranium, base, player, mole,
+            damage1, damage2, damage3, damage4, damage5}, GameGUI.TILE_WIDTH);
+        spriteSize = GameGUI.TILE_WIDTH;
+        sprites = spriteCache.get(spriteSize);
+    }
+
+    /**
+     * The width the minimap aims for, in pixels, and its distance from the
+     * corner of the panel.
+     */
+    private static final int MINIMAP_WIDTH = 160;
+    private static final int MINIMAP_MARGIN = 8;
+
+    /**
+     * Shows the minimap if it is hidden, or hides it if it is showing.
+     */
+    void toggleMinimap() {
+        minimapShown = !minimapShown;
+        if (minimapShown && currentTiles != null) {
+            if (minimap == null) {
+                minimap = new MinimapRenderer(currentTiles.length, currentTiles[0].length,
+                        Math.max(1, MINIMAP_WIDTH / currentTiles.length));
+            }
+            updateMinimap();
+        }
+        repaint();
+    }
+
+    /**
+     * Writes the tiles that have changed since the last update into the
+     * minimap, if it is showing.
+     */
+    private void updateMinimap() {
+        if (minimapShown && minimap != null && currentTiles != null) {
+            if (currentPlayer != null) {
+                minimap.update(currentTiles, visibility, currentPlayer.getX(), currentPlayer.getY());
+            } else {
+                minimap.update(currentTiles, visibility, -1, -1);
+            }
+        }
+    }
+
+    /**
+     * Zooms in one step, up to the largest zoom level.
+     */
+    void zoomIn() {
+        zoom = Math.min(zoom + 1, ZOOM_LEVELS.length - 1);
+        repaint();
+    }
+
+    /**
+     * Zooms out one step, down to the smallest zoom level.
+     */
+    void zoomOut() {
+        zoom = Math.max(zoom - 1, 0);
+        repaint();
+    }
+
+    /**
+     * Returns to the zoom level that fits the whole level into the window.
+     */
+    void resetZoom() {
+        zoom = DEFAULT_ZOOM;
+        repaint();
+    }
+
+    /**
+     * Calculates the tile size in pixels for a zoom level, based on the size
+     * of the tile that fits the whole level into the current size of this
+     * panel. Sizes are whole numbers of pixels so sprites are always drawn 1:1.
+     *
+     * @param zoomLevel an index in ZOOM_LEVELS
+     * @return the width and height of a tile at that zoom level
+     */
+    private int tileSizeFor(int zoomLevel) {
+        int fit = Math.max(1, Math.min(frameWidth / currentGrid.getWidth(),
+                frameHeight / currentGrid.getHeight()));
+        return Math.max(4, (int) Math.round(fit * ZOOM_LEVELS[zoomLevel]));
+    }
+
+    /**
+     * Loads tiles images from a fixed folder location within the project
+     * directory
+     */
+    private void loadTileImages() {
+        try {
+            empty = ImageIO.read(new File("assets/empty.png"));
+            assert empty.getHeight() == GameGUI.TILE_HEIGHT
+                    && empty.getWidth() == GameGUI.TILE_WIDTH;
+            dirt = ImageIO.read(new File("assets/dirt.png"));
+            assert dirt.getHeight() == GameGUI.TILE_HEIGHT
+                    && dirt.getWidth() == GameGUI.TILE_WIDTH;
+            hardDirt = ImageIO.read(new File("assets/harddirt.png"));
+            assert hardDirt.getHeight() == GameGUI.TILE_HEIGHT
+                    && hardDirt.getWidth() == GameGUI.TILE_WIDTH;
+            rock = ImageIO.read(new File("assets/rock.png"));
+            assert rock.getHeight() == GameGUI.TILE_HEIGHT
+                    && rock.getWidth() == GameGUI.TILE_WIDTH;
+            player = ImageIO.read(new File("assets/player.png"));
+            assert player.getHeight() == GameGUI.TILE_HEIGHT
+                    && player.getWidth() == GameGUI.TILE_WIDTH;
+            copper = ImageIO.read(new File("assets/copper.png"));
+            assert copper.getHeight() == GameGUI.TILE_HEIGHT
+                    && copper.getWidth() == GameGUI.TILE_WIDTH;
+            silver = ImageIO.read(new File("assets/silver.png"));
+            assert silver.getHeight() == GameGUI.TILE_HEIGHT
+                    && silver.getWidth() == GameGUI.TILE_WIDTH;
+            uranium = ImageIO.read(new File("assets/uranium.png"));
+            assert uranium.getHeight() == GameGUI.TILE_HEIGHT
+                    && uranium.getWidth() == GameGUI.TILE_WIDTH;
+            damage1 = ImageIO.read(new File("assets/damage1.png"));
+            assert damage1.getHeight() == GameGUI.TILE_HEIGHT
+                    && damage1.getWidth() == GameGUI.TILE_WIDTH;
+            damage2 = ImageIO.read(new File("assets/damage2.png"));
+            assert damage2.getHeight() == GameGUI.TILE_HEIGHT
+                    && damage2.getWidth() == GameGUI.TILE_WIDTH;
+            damage3 = ImageIO.read(new File("assets/damage3.png"));
+            assert damage3.getHeight() == GameGUI.TILE_HEIGHT
+                    && damage3.getWidth() == GameGUI.TILE_WIDTH;
+            damage4 = ImageIO.read(new File("assets/damage4.png"));
+            assert damage4.getHeight() == GameGUI.TILE_HEIGHT
+                    && damage4.getWidth() == GameGUI.TILE_WIDTH;
+            damage5 = ImageIO.read(new File("assets/damage5.png"));
+            assert damage5.getHeight() == GameGUI.TILE_HEIGHT
+                    && damage5.getWidth() == GameGUI.TILE_WIDTH;
+            mole = ImageIO.read(new File("assets/mole.png"));
+            assert mole.getHeight() == GameGUI.TILE_HEIGHT
+                    && mole.getWidth() == GameGUI.TILE_WIDTH;
+            base = ImageIO.read(new File("assets/base.png"));
+            assert base.getHeight() == GameGUI.TILE_HEIGHT
+                    && base.getWidth() == GameGUI.TILE_WIDTH;
+
+        } catch (IOException e) {
+            System.out.println("Exception loading images: " + e.getMessage());
+            e.printStackTrace(System.out);
+        }
+    }
+
+    /**
+     * @param px an X position in pixels on this panel
+     * @return the column of the level drawn at that position in the last
+     * frame, or -1 if no tile is drawn there
+     */
+    int columnAt(int px) {
+        int column = Math.floorDiv(px - originX, tileSize);
+        return currentGrid != null && column >= 0 && column < currentGrid.getWidth() ? column : -1;
+    }
+
+    /**
+     * @param py a Y position in pixels on this panel
+     * @return the row of the level drawn at that position in the last frame,
+     * or -1 if no tile is drawn there
+     */
+    int rowAt(int py) {
+        int row = Math.floorDiv(py - originY, tileSize);
+        return currentGrid != null && row >= 0 && row < currentGrid.getHeight() ? row : -1;
+    }
+
+    /**
+     * Updates the current graphics on the screen to display the tiles, player
+     * and moles
+     *
+     * @param t The 2D array of TileTypes representing the current level of the
+     * game
+     * @param player The current player object, used to draw the player and its
+     * energy
+     * @param moles The array of moles to display on the level with their
+     * fullness bar
+     */
+    public void update(Tile[][] t, Player player, Mole[] moles) {
+        setTiles(t);
+        currentPlayer = player;
+        currentMoles = moles;
+        updateMinimap();
+        repaint();
+    }
+
+    /**
+     * Updates the graphics on the screen to display any grid of tiles, such as
+     * a MappedTileGrid world far larger than the window, with a player and
+     * moles. The minimap is only drawn for levels held as Tile[][] arrays.
+     *
+     * @param grid the tiles to display
+     * @param player The player object to draw, or null
+     * @param moles The array of moles to draw, or null
+     */
+    public void update(TileGrid grid, Player player, Mole[] moles) {
+        currentTiles = null;
+        currentGrid = grid;
+        currentPlayer = player;
+        currentMoles = moles;
+        repaint();
+    }
+
+    /**
+     * Makes a Tile[][] array the tiles to display, through the reused
+     * HeapTileGrid.
+     */
+    private void setTiles(Tile[][] t) {
+        currentTiles = t;
+        tileArrayGrid.setTiles(t);
+        currentGrid = t != null ? tileArrayGrid : null;
+    }
+
+    /**
+     * Draws a level, player and moles into an image instead of onto the
+     * screen, using the same drawing code as paintComponent. This works
+     * without a display, so it can be used with java.awt.headless=true. The
+     * frame is drawn at the size of the image.
+     *
+     * @param image the image to draw into
+     * @param t The 2D array of TileTypes representing the level to draw
+     * @param player The player object to draw, or null
+     * @param moles The array of moles to draw, or null
+     */
+    void drawTo(BufferedImage image, Tile[][] t, Player player, Mole[] moles) {
+        setTiles(t);
+        drawTo(image, currentGrid, player, moles);
+    }
+
+    /**
+     * Draws any grid of tiles, such as a MappedTileGrid world, with a player
+     * and moles into an image, in the same way as drawTo(BufferedImage,
+     * Tile[][], Player, Mole[]). Only the tiles that fit in the image around
+     * the player are read.
+     *
+     * @param image the image to draw into
+     * @param grid the tiles to draw
+     * @param player The player object to draw, or null
+     * @param moles The array of moles to draw, or null
+     */
+    void drawTo(BufferedImage image, TileGrid grid, Player player, Mole[] moles) {
+        frameWidth = image.getWidth();
+        frameHeight = image.getHeight();
+        if (grid != currentGrid) {
+            currentTiles = null;
+            currentGrid = grid;
+        }
+        currentPlayer = player;
+        currentMoles = moles;
+        Graphics2D g = image.createGraphics();
+        g.setColor(getBackground());
+        g.fillRect(0, 0, image.getWidth(), image.getHeight());
+        drawLevel(g);
+        g.dispose();
+    }
+
+    /**
+     * Override of method in super class, it draws the custom elements for this
+     * game such as the tiles, player and moles. If the performance overlay is
+     * showing, the time and memory used to draw the frame are recorded and the
+     * overlay is drawn on top.
+     *
+     * @param g Graphics drawing object
+     */
+    @Override
+    public void paintComponent(Graphics g) {
+        boolean measure = hud.isEnabled();
+        long start = measure ? System.nanoTime() : 0;
+        long allocated = measure ? PerfHud.allocatedBytes() : 0;
+        super.paintComponent(g);
+        frameWidth = getWidth();
+        frameHeight = getHeight();
+        drawLevel(g);
+        if (measure) {
+            hud.recordFrame(System.nanoTime() - start, PerfHud.allocatedBytes() - allocated);
+            hud.draw((Graphics2D) g);
+        }
+        swingJitter.record(System.nanoTime());
+    }
+
+    /**
+     * Draws a whole frame for the ActiveRenderer, which is not part of any
+     * window, with the same drawing code as paintComponent. The frame is laid
+     * out for the size given, so zooming and following the player work as
+     * they do on screen, but this panel is not resized, as Swing components
+     * may only be changed on the Swing event thread. The caller must hold
+     * frameLock.
+     *
+     * @param g the graphics object of the back buffer to draw into
+     * @param width the width of the frame in pixels
+     * @param height the height of the frame in pixels
+     */
+    void renderFrame(Graphics2D g, int width, int height) {
+        frameWidth = width;
+        frameHeight = height;
+        boolean measure = hud.isEnabled();
+        long start = measure ? System.nanoTime() : 0;
+        long allocated = measure ? PerfHud.allocatedBytes() : 0;
+        g.setColor(getBackground());
+        g.fillRect(0, 0, width, height);
+        drawLevel(g);
+        if (measure) {
+            hud.recordFrame(System.nanoTime() - start, PerfHud.allocatedBytes() - allocated);
+            hud.draw(g);
+        }
+    }
+
+    /**
+     * Draws graphical elements to the screen to display the current game level
+     * tiles, the player and the moles. If the currentGrid, currentPlayer or
+     * currentMoles objects are null they will not be drawn.
+     *
+     * Tiles are drawn at a size that depends on the size of the panel and the
+     * current zoom level, using a sprite set that has been scaled to that size
+     * in advance. If the level does not fit in the panel the view follows the
+     * player, and only tiles that are inside the panel are drawn. With
+     * fog-of-war, tiles the player has not explored are skipped as well.
+     *
+     * @param g
+     */
+    private void drawLevel(Graphics g) {
+        Graphics2D g2 = (Graphics2D) g;
+        TileGrid grid = currentGrid;
+        if (grid == null) {
+            return;
+        }
+        int size = tileSizeFor(zoom);
+        if (size != spriteSize) {
+            sprites = spriteCache.get(size);
+            spriteSize = size;
+            if (zoom > 0) {
+                spriteCache.prefetch(tileSizeFor(zoom - 1));
+            }
+            if (zoom < ZOOM_LEVELS.length - 1) {
+                spriteCache.prefetch(tileSizeFor(zoom + 1));
+            }
+        }
+        int columns = grid.getWidth();
+        int rows = grid.getHeight();
+        int focusX = currentPlayer != null ? currentPlayer.getX() : columns / 2;
+        int focusY = currentPlayer != null ? currentPlayer.getY() : rows / 2;
+        originX = origin(frameWidth, columns * size, focusX * size + size / 2);
+        originY = origin(frameHeight, rows * size, focusY * size + size / 2);
+        tileSize = size;
+
+        int firstColumn = Math.max(0, -originX / size);
+        int lastColumn = Math.min(columns - 1, (frameWidth - originX) / size);
+        int firstRow = Math.max(0, -originY / size);
+        int lastRow = Math.min(rows - 1, (frameHeight - originY) / size);
+        for (int i = firstColumn; i <= lastColumn; i++) {
+            for (int j = firstRow; j <= lastRow; j++) {
+                if (visibility != null && !visibility.isExplored(i, j)) {
+                    continue;
+                }
+                int x = originX + i * size;
+                int y = originY + j * size;
+                g2.drawImage(sprites[grid.getType(i, j).ordinal()], x, y, null);
+
+                int maxDurability = grid.getMaxDurability(i, j);
+                if (maxDurability > 0) {
+                    double ratio = (double) grid.getDurability(i, j) / (double) maxDurability;
+                    if (ratio >= 1) {
+                        //undamaged, so no overlay
+                    } else if (ratio > 0.8) {
+                        g2.drawImage(sprites[DAMAGE1], x, y, null);
+                    } else if (ratio > 0.6) {
+                        g2.drawImage(sprites[DAMAGE1 + 1], x, y, null);
+                    } else if (ratio > 0.4) {
+                        g2.drawImage(sprites[DAMAGE1 + 2], x, y, null);
+                    } else if (ratio > 0.2) {
+                        g2.drawImage(sprites[DAMAGE1 + 3], x, y, null);
+                    } else {
+                        g2.drawImage(sprites[DAMAGE1 + 4], x, y, null);
+                    }
+                }
+                if (visibility != null && !visibility.isVisible(i, j)) {
+                    g2.setColor(FOG);
+                    g2.fillRect(x, y, size, size);
+                }
+            }
+        }
+        if (currentMoles != null) {
+            EntityStore store = sharedStore(currentMoles);
+            if (store != null) {
+                drawMoles(g2, store);
+            } else {
+                for (int i = 0; i < currentMoles.length; i++) {
+                    Mole m = currentMoles[i];
+                    if (m != null && (visibility == null || visibility.isVisible(m.getX(), m.getY()))) {
+                        g2.drawImage(sprites[MOLE], originX + m.getX() * size, originY + m.getY() * size, null);
+                        drawFullnessBar(g2, m.getX(), m.getY(), m.getFullness(), m.getMaxFullness());
+                    }
+                }
+            }
+        }
+        if (currentPlayer != null) {
+            g2.drawImage(sprites[PLAYER], originX + currentPlayer.getX() * size, originY + currentPlayer.getY() * size, null);
+            drawEnergyBar(g2, currentPlayer);
+        }
+        if (minimapShown && minimap != null && currentTiles != null) {
+            minimap.draw(g2, frameWidth - minimap.getWidth() - MINIMAP_MARGIN, MINIMAP_MARGIN,
+                    currentPlayer, currentMoles, visibility);
+        }
+    }
+
+    /**
+     * Draws every mole in a store, reading the arrays of the store in order
+     * rather than calling methods on each Mole object.
+     *
+     * @param g2 The graphics object to use for drawing
+     * @param store The store holding the moles
+     */
+    private void drawMoles(Graphics2D g2, EntityStore store) {
+        byte[] kind = store.kind;
+        int[] xs = store.x;
+        int[] ys = store.y;
+        int[] fullness = store.fullness;
+        int[] maxFullness = store.maxFullness;
+        for (int id = 0; id < store.size(); id++) {
+            if (kind[id] == EntityStore.MOLE && (visibility == null || visibility.isVisible(xs[id], ys[id]))) {
+                g2.drawImage(sprites[MOLE], originX + xs[id] * tileSize, originY + ys[id] * tileSize, null);
+                drawFullnessBar(g2, xs[id], ys[id], fullness[id], maxFullness[id]);
+            }
+        }
+    }
+
+    /**
+     * Returns the store holding an array of moles, if every mole in the array
+     * is in the same store, the mole at index i has the ID i, and the store
+     * holds nothing else. Otherwise the moles have to be drawn one object at a
+     * time, and null is returned.
+     *
+     * @param moles the moles to be drawn
+     * @return the store holding exactly those moles, or null
+     */
+    private static EntityStore sharedStore(Mole[] moles) {
+        EntityStore store = null;
+        for (int i = 0; i < moles.length; i++) {
+            if (moles[i] != null) {
+                if (store == null) {
+                    store = moles[i].getStore();
+                }
+                if (moles[i].getStore() != store || moles[i].getId() != i) {
+                    return null;
+                }
+            }
+        }
+        if (store == null || store.size() > moles.length) {
+            return null;
+        }
+        for (int id = 0; id < store.size(); id++) {
+            if (moles[id] == null && store.getKind(id) != EntityStore.NONE) {
+                return null;
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Calculates where the level starts along one axis of the panel. A level
+     * that fits is centred, otherwise the level is positioned so the focus
+     * point is as close to the centre of the panel as possible without
+     * showing space beyond the edge of the level.
+     *
+     * @param view the size of the panel along this axis
+     * @param level the size of the level in pixels along this axis
+     * @param focus the position in the level to keep in view
+     * @return the position of the start of the level in the panel
+     */
+    private static int origin(int view, int level, int focus) {
+        if (level <= view) {
+            return (view - level) / 2;
+        }
+        return Math.max(view - level, Math.min(0, view / 2 - focus));
+    }
+
+    /**
+     * Draws a fullness bar for a mole at the bottom of the tile that the mole
+     * is located in.
+     *
+     * @param g2 The graphics object to use for drawing
+     * @param moleX The X position of the mole
+     * @param moleY The Y position of the mole
+     * @param fullness The fullness of the mole
+     * @param maxFullness The maximum fullness of the mole
+     */
+    private void drawFullnessBar(Graphics2D g2, int moleX, int moleY, int fullness, int maxFullness) {
+        int barHeight = barHeight();
+        int x = originX + moleX * tileSize;
+        int y = originY + moleY * tileSize + tileSize - barHeight;
+        g2.setColor(Color.GREEN);
+        bar.setRect(x, y, tileSize, barHeight);
+        g2.fill(bar);
+        if (fullness > 0) {
+            double fullRatio = (double) fullness / (double) maxFullness;
+            g2.setColor(Color.RED);
+            bar.setRect(x, y, tileSize * fullRatio, barHeight);
+            g2.fill(bar);
+        }
+    }
+
+    /**
+     * Draws an energy bar for the given Player at the bottom of the tile that
+     * the Player is located in.
+     *
+     * @param g2 The graphics object to use for drawing
+     * @param p The Player that the energy bar will be drawn for
+     */
+    private void drawEnergyBar(Graphics2D g2, Player p) {
+        double remainingEnergy = (double) p.getEnergy() / (double) p.getMaxEnergy();
+        int barHeight = barHeight();
+        int x = originX + p.getX() * tileSize;
+        int y = originY + p.getY() * tileSize + tileSize - barHeight;
+        g2.setColor(Color.BLUE);
+        bar.setRect(x, y, tileSize, barHeight);
+        g2.fill(bar);
+        g2.setColor(Color.CYAN);
+        bar.setRect(x, y, tileSize * remainingEnergy, barHeight);
+        g2.fill(bar);
+    }
+
+    /**
+     * @return the height of fullness and energy bars at the current tile size
+     */
+    private int barHeight() {
+        return Math.max(1, GameGUI.BAR_HEIGHT * tileSize / GameGUI.TILE_HEIGHT);
+    }
+}
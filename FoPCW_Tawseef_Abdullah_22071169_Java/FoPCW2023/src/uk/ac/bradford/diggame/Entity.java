@@ -1,35 +1,69 @@
 package uk.ac.bradford.diggame;
 
 /**
- * The Entity class stores basic state information for both the Player and Mole
- * object types in the game.
+ * The Entity class gives access to basic state information for both the Player
+ * and Mole object types in the game. The state itself is kept in an
+ * EntityStore, so an Entity object is a view onto one entity in a store.
  * 
  * @author prtrundl
  */
 public abstract class Entity {
     
     /**
-     * xPos is the current x position in the game for this entity. Together with the
-     * yPos attribute this determines the position of this Entity when it is drawn to
-     * the screen using the style X,Y. 0,0 is the top left tile in the level.
-     * 1,0 is the tile to the right of 0,0. 0,1 is the tile below 0,0 etc.
+     * The store that holds the state of this Entity. The X and Y position in
+     * the store determine the position of this Entity when it is drawn to the
+     * screen using the style X,Y. 0,0 is the top left tile in the level. 1,0 is
+     * the tile to the right of 0,0. 0,1 is the tile below 0,0 etc.
      */
-    private int xPos;
+    final EntityStore store;
     
     /**
-     * yPos is the current y position in the game for this entity. Together with the
-     * xPos attribute this sets the position of this Entity when it is drawn to
-     * the screen using the style X,Y. 0,0 is the top left tile in the level.
-     * 1,0 is the tile to the right of 0,0. 0,1 is the tile below 0,0.
+     * The ID of this Entity in its store.
      */
-    private int yPos;
+    final int id;
+    
+    /**
+     * Adds a new entity to a store and creates a view onto it.
+     * @param store the store to add the entity to
+     * @param kind the kind of entity, from the EntityStore
+     * @param x the starting X position of the entity
+     * @param y the starting Y position of the entity
+     */
+    protected Entity(EntityStore store, byte kind, int x, int y) {
+        this.store = store;
+        this.id = store.add(kind, x, y);
+    }
+    
+    /**
+     * Creates a view onto an entity that is already in a store.
+     * @param store the store holding the entity
+     * @param id the ID of the entity in the store
+     */
+    protected Entity(EntityStore store, int id) {
+        this.store = store;
+        this.id = id;
+    }
+    
+    /**
+     * @return the store that holds the state of this Entity
+     */
+    public EntityStore getStore() {
+        return store;
+    }
+    
+    /**
+     * @return the ID of this Entity in its store
+     */
+    public int getId() {
+        return id;
+    }
         
     /**
      * This method returns the current X position for this entity in the game
      * @return The X co-ordinate of this Entity in the game
      */
     public int getX() {
-        return xPos;
+        return store.x[id];
     }
     
     /**
@@ -37,7 +71,7 @@ public abstract class Entity {
      * @return The Y co-ordinate of this Entity in the game
      */
     public int getY() {
-        return yPos;
+        return store.y[id];
     }
     
     /**
@@ -46,8 +80,7 @@ public abstract class Entity {
      * @param y The new Y position for this Entity
      */
     public void setPosition (int x, int y) {
-        xPos = x;
-        yPos = y;
+        store.setPosition(id, x, y);
     }
     
 }
@@ -0,0 +1,304 @@
+package uk.ac.bradford.diggame;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The EntityStore class holds the state of many entities in parallel arrays of
+ * primitives, one array per attribute, instead of in a separate object for
+ * every entity. Each entity has an ID, which is its index in the arrays and
+ * never changes or gets reused until the store is cleared, so code that loops
+ * over every entity (such as checking which moles should explode, or drawing
+ * them) reads each array from start to end instead of following a reference to
+ * each entity in turn.
+ *
+ * The Entity, Player and Mole classes are views onto an entity in a store, so
+ * code that uses them keeps working. Code in this package that needs to be
+ * fast can read the arrays directly, but positions and energy must be changed
+ * with setPosition() and setEnergy(), which keep a Zobrist hash of the
+ * positions and energy of every entity up to date.
+ */
+public class EntityStore {
+
+    /**
+     * Kinds of entity. An entity that has been removed has the kind NONE.
+     */
+    public static final byte NONE = 0;
+    public static final byte PLAYER = 1;
+    public static final byte MOLE = 2;
+
+    /**
+     * The attributes of each entity, indexed by ID. Fullness is only used by
+     * moles and energy only by players.
+     */
+    byte[] kind;
+    int[] x;
+    int[] y;
+    int[] fullness;
+    int[] maxFullness;
+    int[] energy;
+    int[] maxEnergy;
+
+    /**
+     * The number of IDs that have been given out, which is also the next ID.
+     */
+    private int size;
+
+    /**
+     * The number of entities that have not been removed.
+     */
+    private int live;
+
+    /**
+     * The XOR of the Zobrist keys for the position of every entity that has
+     * not been removed and the energy of every entity.
+     */
+    private long hash;
+
+    /**
+     * Creates an empty store.
+     *
+     * @param capacity the number of entities to make room for at first
+     */
+    public EntityStore(int capacity) {
+        capacity = Math.max(1, capacity);
+        kind = new byte[capacity];
+        x = new int[capacity];
+        y = new int[capacity];
+        fullness = new int[capacity];
+        maxFullness = new int[capacity];
+        energy = new int[capacity];
+        maxEnergy = new int[capacity];
+    }
+
+    /**
+     * Adds an entity to the store.
+     *
+     * @param entityKind PLAYER or MOLE
+     * @param xPos the X position of the entity
+     * @param yPos the Y position of the entity
+     * @return the ID of the new entity
+     */
+    public int add(byte entityKind, int xPos, int yPos) {
+        if (size == kind.length) {
+            int capacity = kind.length * 2;
+            kind = Arrays.copyOf(kind, capacity);
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+            fullness = Arrays.copyOf(fullness, capacity);
+            maxFullness = Arrays.copyOf(maxFullness, capacity);
+            energy = Arrays.copyOf(energy, capacity);
+            maxEnergy = Arrays.copyOf(maxEnergy, capacity);
+        }
+        int id = size++;
+        kind[id] = entityKind;
+        x[id] = xPos;
+        y[id] = yPos;
+        fullness[id] = 0;
+        maxFullness[id] = 0;
+        energy[id] = 0;
+        maxEnergy[id] = 0;
+        live++;
+        hash ^= ZobristHash.entityKey(id, entityKind, xPos, yPos) ^ ZobristHash.energyKey(id, 0);
+        return id;
+    }
+
+    /**
+     * Removes every entity, so IDs are given out from 0 again. The arrays are
+     * kept at their current capacity, so a store can be refilled for each new
+     * level without allocating.
+     */
+    public void clear() {
+        size = 0;
+        live = 0;
+        hash = 0;
+    }
+
+    /**
+     * Removes an entity. Its ID is not reused, and its attributes are kept so
+     * it can be brought back with revive().
+     *
+     * @param id the ID of the entity
+     */
+    public void remove(int id) {
+        if (kind[id] != NONE) {
+            hash ^= ZobristHash.entityKey(id, kind[id], x[id], y[id]);
+            kind[id] = NONE;
+            live--;
+        }
+    }
+
+    /**
+     * Brings back an entity that was removed, for example when an earlier turn
+     * is restored.
+     *
+     * @param id the ID of the entity
+     * @param entityKind the kind the entity had before it was removed
+     */
+    public void revive(int id, byte entityKind) {
+        if (kind[id] == NONE) {
+            live++;
+        } else {
+            hash ^= ZobristHash.entityKey(id, kind[id], x[id], y[id]);
+        }
+        kind[id] = entityKind;
+        hash ^= ZobristHash.entityKey(id, entityKind, x[id], y[id]);
+    }
+
+    /**
+     * Moves an entity.
+     *
+     * @param id the ID of the entity
+     * @param xPos the new X position
+     * @param yPos the new Y position
+     */
+    public void setPosition(int id, int xPos, int yPos) {
+        if (kind[id] != NONE) {
+            hash ^= ZobristHash.entityKey(id, kind[id], x[id], y[id])
+                    ^ ZobristHash.entityKey(id, kind[id], xPos, yPos);
+        }
+        x[id] = xPos;
+        y[id] = yPos;
+    }
+
+    /**
+     * Sets the energy of an entity.
+     *
+     * @param id the ID of the entity
+     * @param value the new energy
+     */
+    public void setEnergy(int id, int value) {
+        hash ^= ZobristHash.energyKey(id, energy[id]) ^ ZobristHash.energyKey(id, value);
+        energy[id] = value;
+    }
+
+    /**
+     * @return the Zobrist hash of the positions and energy of the entities,
+     * kept up to date as they change
+     */
+    public long getHash() {
+        return hash;
+    }
+
+    /**
+     * Calculates the Zobrist hash of the entities from scratch, to check the
+     * hash kept by getHash().
+     *
+     * @return the hash of the positions and energy of the entities
+     */
+    public long computeHash() {
+        long h = 0;
+        for (int id = 0; id < size; id++) {
+            if (kind[id] != NONE) {
+                h ^= ZobristHash.entityKey(id, kind[id], x[id], y[id]);
+            }
+            h ^= ZobristHash.energyKey(id, energy[id]);
+        }
+        return h;
+    }
+
+    /**
+     * @return the number of IDs given out, so IDs run from 0 to size() - 1
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of entities that have not been removed
+     */
+    public int liveCount() {
+        return live;
+    }
+
+    /**
+     * @param id the ID of an entity
+     * @return the kind of the entity, or NONE if it has been removed
+     */
+    public byte getKind(int id) {
+        return kind[id];
+    }
+
+    /**
+     * Measures looping over many moles to find the ones that should explode,
+     * with one object per mole compared with this store and with the Mole
+     * views onto it. Usage: EntityStore [entities]
+     *
+     * @param args optional number of entities
+     */
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Random rng = new Random(1);
+        EntityStore store = new EntityStore(n);
+        Mole[] views = new Mole[n];
+        ObjectMole[] objects = new ObjectMole[n];
+        Object[] garbage = new Object[n];
+        for (int i = 0; i < n; i++) {
+            int max = 100 + rng.nextInt(400);
+            int full = rng.nextInt(max + 50);
+            objects[i] = new ObjectMole(max, rng.nextInt(35), rng.nextInt(18));
+            objects[i].fullness = full;
+            garbage[i] = new int[rng.nextInt(8)];    //spread the objects out as a real heap would
+            views[i] = new Mole(store, max, objects[i].x, objects[i].y);
+            views[i].changeFullness(full);
+        }
+        garbage = null;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            long objectResult = 0;
+            for (int i = 0; i < n; i++) {
+                ObjectMole m = objects[i];
+                if (m.fullness >= m.maxFullness) {
+                    objectResult += m.x + m.y;
+                }
+            }
+            long objectNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            long viewResult = 0;
+            for (int i = 0; i < n; i++) {
+                Mole m = views[i];
+                if (m.getFullness() >= m.getMaxFullness()) {
+                    viewResult += m.getX() + m.getY();
+                }
+            }
+            long viewNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            long storeResult = 0;
+            int size = store.size;
+            byte[] kinds = store.kind;
+            int[] full = store.fullness;
+            int[] max = store.maxFullness;
+            int[] xs = store.x;
+            int[] ys = store.y;
+            for (int id = 0; id < size; id++) {
+                if (kinds[id] == MOLE && full[id] >= max[id]) {
+                    storeResult += xs[id] + ys[id];
+                }
+            }
+            long storeNanos = System.nanoTime() - start;
+            System.out.printf("%d entities: objects %.2f ns, Mole views %.2f ns, store arrays %.2f ns per entity%s%n",
+                    n, (double) objectNanos / n, (double) viewNanos / n, (double) storeNanos / n,
+                    objectResult == storeResult && viewResult == storeResult ? "" : " (results differ!)");
+        }
+    }
+
+    /**
+     * A mole stored as its own object, as moles were before this class, for
+     * the benchmark in main().
+     */
+    private static class ObjectMole {
+
+        final int maxFullness;
+        int fullness;
+        int x;
+        int y;
+
+        ObjectMole(int maxFullness, int x, int y) {
+            this.maxFullness = maxFullness;
+            this.x = x;
+            this.y = y;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package uk.ac.bradford.diggame;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+
+/**
+ * The FrameExporter class writes game states to a numbered sequence of PNG
+ * images, for example to make a clip of a session for a bug report, without
+ * recording the screen. Frames are drawn with the same code the Canvas uses to
+ * draw the game, into offscreen images, so exporting works with
+ * java.awt.headless=true.
+ *
+ * Drawing happens on the thread that calls exportFrame(), because the game
+ * state changes after every turn, but PNG encoding (the slow part) happens on
+ * a pool of worker threads. A fixed number of images are allocated up front
+ * and reused, so memory use is bounded: when every image is waiting to be
+ * encoded, exportFrame() blocks until one is free, which slows the caller down
+ * to the speed of the encoders rather than queueing frames without limit.
+ */
+public class FrameExporter {
+
+    /**
+     * The folder that frames are written to.
+     */
+    private final File folder;
+
+    /**
+     * Canvas used only to draw frames into images, it is never shown.
+     */
+    private final Canvas canvas = new Canvas();
+
+    /**
+     * Images that are free to draw the next frame into. Images are taken from
+     * this queue to draw a frame and put back once it has been encoded.
+     */
+    private final BlockingQueue<BufferedImage> freeImages;
+
+    /**
+     * The worker threads that encode and write frames.
+     */
+    private final ExecutorService encoders;
+
+    /**
+     * The number of frames passed to exportFrame() so far, used to number the
+     * frame files, and the number of frames that have been written.
+     */
+    private int framesSubmitted;
+    private final AtomicInteger framesWritten = new AtomicInteger();
+
+    /**
+     * The first error that happened while writing a frame, if any.
+     */
+    private volatile IOException error;
+
+    /**
+     * The value of System.nanoTime() when this exporter was created.
+     */
+    private final long startTime = System.nanoTime();
+
+    /**
+     * Creates an exporter that writes frames of the given size into a folder,
+     * which is created if it does not exist.
+     *
+     * @param folder the folder to write frame images into
+     * @param width the width of each frame in pixels
+     * @param height the height of each frame in pixels
+     * @param threads the number of threads used to encode frames
+     * @param maxFrames the maximum number of frames held in memory at once
+     */
+    public FrameExporter(File folder, int width, int height, int threads, int maxFrames) {
+        this.folder = folder;
+        folder.mkdirs();
+        freeImages = new ArrayBlockingQueue<>(maxFrames);
+        for (int i = 0; i < maxFrames; i++) {
+            freeImages.add(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB));
+        }
+        encoders = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "frame-encoder");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Draws a game state into the next frame and queues it to be written.
+     * Blocks if the maximum number of frames are already waiting to be
+     * written.
+     *
+     * @param tiles the tiles of the level to draw
+     * @param player the player to draw, or null
+     * @param moles the array of moles to draw, or null
+     * @throws InterruptedException if the thread is interrupted while waiting
+     * for a free frame
+     */
+    public void exportFrame(Tile[][] tiles, Player player, Mole[] moles) throws InterruptedException {
+        BufferedImage image = freeImages.take();
+        canvas.drawTo(image, tiles, player, moles);
+        File file = new File(folder, String.format("frame_%06d.png", framesSubmitted++));
+        encoders.execute(() -> {
+            try {
+                ImageIO.write(image, "png", file);
+                framesWritten.incrementAndGet();
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+            } finally {
+                freeImages.add(image);
+            }
+        });
+    }
+
+    /**
+     * Waits for all queued frames to be written and stops the encoder threads.
+     *
+     * @throws IOException if any frame could not be written
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void finish() throws IOException, InterruptedException {
+        encoders.shutdown();
+        encoders.awaitTermination(1, TimeUnit.HOURS);
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * @return the number of frames written per second since this exporter was
+     * created
+     */
+    public double getFramesPerSecond() {
+        return framesWritten.get() * 1e9 / (System.nanoTime() - startTime);
+    }
+
+    /**
+     * @return the number of frames written so far
+     */
+    public int getFramesWritten() {
+        return framesWritten.get();
+    }
+
+    /**
+     * Plays a game without a window using random key presses, exporting a
+     * frame after every turn, and reports the export speed. Usage:
+     * FrameExporter folder [seed] [turns] [threads] [width] [height]
+     *
+     * @param args the output folder, optional seed, number of turns, number of
+     * encoder threads and frame size
+     */
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        File folder = new File(args.length > 0 ? args[0] : "frames");
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 123;
+        int turns = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int threads = args.length > 3 ? Integer.parseInt(args[3])
+                : Runtime.getRuntime().availableProcessors();
+        int width = args.length > 4 ? Integer.parseInt(args[4]) : 1120;
+        int height = args.length > 5 ? Integer.parseInt(args[5]) : 576;
+
+        GameEngine engine = new GameEngine(null, seed);
+        Random keys = new Random(seed);
+        char[] directions = {'N', 'S', 'E', 'W'};
+        FrameExporter exporter = new FrameExporter(folder, width, height, threads, threads * 2);
+        engine.startGame();
+        exporter.exportFrame(engine.getLevel(), engine.getPlayer(), engine.getMoles());
+        for (int turn = 0; turn < turns; turn++) {
+            engine.movePlayer(directions[keys.nextInt(directions.length)]);
+            engine.doTurn();
+            exporter.exportFrame(engine.getLevel(), engine.getPlayer(), engine.getMoles());
+        }
+        exporter.finish();
+        System.out.printf("%d frames written to %s at %.1f frames/s using %d encoder threads%n",
+                exporter.getFramesWritten(), folder, exporter.getFramesPerSecond(), threads);
+    }
+}
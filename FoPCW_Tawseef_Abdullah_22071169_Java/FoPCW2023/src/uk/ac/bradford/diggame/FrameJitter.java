@@ -0,0 +1,95 @@
+package uk.ac.bradford.diggame;
+
+import java.util.Arrays;
+
+/**
+ * The FrameJitter class measures how evenly frames reach the screen. It keeps
+ * the times between the last few hundred frames and reports their mean, their
+ * standard deviation and how far the worst of them were from the intended frame
+ * time. A smooth display has intervals close to the intended frame time, and
+ * the spread of the intervals is the jitter the player sees as stutter.
+ *
+ * Recording does not allocate, so it can be called for every frame.
+ */
+public class FrameJitter {
+
+    private final long[] intervals;
+    private final long targetNanos;
+    private int next;
+    private int count;
+    private long lastNanos;
+
+    /**
+     * Creates an empty measurement.
+     *
+     * @param samples the number of recent intervals to keep
+     * @param framesPerSecond the intended frame rate
+     */
+    public FrameJitter(int samples, int framesPerSecond) {
+        intervals = new long[samples];
+        targetNanos = 1_000_000_000L / framesPerSecond;
+    }
+
+    /**
+     * Records that a frame reached the screen.
+     *
+     * @param nanos the value of System.nanoTime() when the frame was shown
+     */
+    public synchronized void record(long nanos) {
+        if (lastNanos != 0) {
+            intervals[next] = nanos - lastNanos;
+            next = (next + 1) % intervals.length;
+            count = Math.min(count + 1, intervals.length);
+        }
+        lastNanos = nanos;
+    }
+
+    /**
+     * Forgets every interval recorded so far.
+     */
+    public synchronized void reset() {
+        next = 0;
+        count = 0;
+        lastNanos = 0;
+    }
+
+    /**
+     * @return the number of intervals currently kept
+     */
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * Summarises the recorded intervals.
+     *
+     * @return the mean and standard deviation of the intervals, the 99th
+     * percentile and largest distance from the intended frame time, and the
+     * number of intervals that were more than half a frame late
+     */
+    public synchronized String summary() {
+        if (count == 0) {
+            return "no frames";
+        }
+        double mean = 0;
+        for (int i = 0; i < count; i++) {
+            mean += intervals[i];
+        }
+        mean /= count;
+        double variance = 0;
+        long[] deviations = new long[count];
+        int late = 0;
+        for (int i = 0; i < count; i++) {
+            variance += (intervals[i] - mean) * (intervals[i] - mean);
+            deviations[i] = Math.abs(intervals[i] - targetNanos);
+            if (intervals[i] > targetNanos * 3 / 2) {
+                late++;
+            }
+        }
+        Arrays.sort(deviations);
+        return String.format("%d frames, interval %.2f ms (target %.2f), jitter sd %.2f ms,"
+                + " p99 %.2f ms, max %.2f ms, %d late", count, mean / 1e6, targetNanos / 1e6,
+                Math.sqrt(variance / count) / 1e6, deviations[(count - 1) * 99 / 100] / 1e6,
+                deviations[count - 1] / 1e6, late);
+    }
+}
@@ -1,6 +1,11 @@
 package uk.ac.bradford.diggame;
 
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import uk.ac.bradford.diggame.Tile.TileType;
 
 /**
@@ -54,11 +59,19 @@ public class GameEngine {
      */
     private int score = 0;
 
+    /**
+     * The balance rules for the game, such as tile durabilities, player energy
+     * and the number of moles on each level. Levels are always generated with
+     * the default rules, so the rules of an engine may only differ from them
+     * in how the game plays.
+     */
+    private final GameRules rules;
+
     /**
      * The current mining strength of the player, used to calculate durability
      * reductions when the player mines a tile.
      */
-    private int miningStrength = 5;
+    private int miningStrength;
 
     /**
      * A variable to store the X coordinate of the first BASE tile generated by
@@ -78,6 +91,14 @@ public class GameEngine {
      */
     private GameGUI gui;
 
+    /**
+     * Held while the state of the game is changed by a key press, a click or
+     * a turn of a planned route. It is the frame lock of the GUI, which the
+     * render thread of an ActiveRenderer holds while it draws a frame, so a
+     * frame never sees a turn half played.
+     */
+    private final Object frameLock;
+
     /**
      * The 2 dimensional array of tiles that represent the current level. The
      * size of this array should use the LEVEL_HEIGHT and LEVEL_WIDTH attributes
@@ -86,6 +107,14 @@ public class GameEngine {
      */
     private Tile[][] level;
 
+    /**
+     * The current level seen through the TileGrid interface, which is how
+     * movePlayer(), moveMole() and mineTile() read and mine tiles, so they
+     * work the same on any grid storage. It is pointed at each new level
+     * array as the level changes.
+     */
+    private final HeapTileGrid grid = new HeapTileGrid(null);
+
     /**
      * A Player object that is the current player. This object stores the state
      * information for the player, including energy and the current position
@@ -107,6 +136,291 @@ public class GameEngine {
      */
     private Mole[] moles;
 
+    /**
+     * The store holding the state of the moles in the current level. The mole
+     * at index i of the moles array always has the ID i in this store, so
+     * loops over every mole can read the arrays of the store directly.
+     */
+    private EntityStore moleStore = new EntityStore(1);
+
+    /**
+     * The maximum time spent generating and evaluating candidate levels for a
+     * single call to generateLevel(), in nanoseconds.
+     */
+    private static final long GENERATION_BUDGET_NANOS = 150_000_000L;
+
+    /**
+     * The number of candidate levels generated for a single call to
+     * generateLevel() in a game with a fixed seed, which does not use
+     * GENERATION_BUDGET_NANOS, so that the level it gets never depends on
+     * the speed of the machine.
+     */
+    private static final int SEEDED_CANDIDATES = 8;
+
+    /**
+     * True if this engine was created with a fixed seed, so that levels are
+     * generated by a fixed amount of work instead of within a time budget.
+     */
+    private boolean repeatable;
+
+    /**
+     * The evaluator used to run simulated playthroughs of candidate levels so
+     * that unwinnable or trivial levels are not shown to the player. It is
+     * shared by all engines, so creating many engines (for example in the
+     * SoakHarness) does not create a new pool of worker threads each time.
+     */
+    private static final LevelEvaluator evaluator = new LevelEvaluator(16);
+
+    /**
+     * Repairs candidate levels so that all ore can be reached from the BASE.
+     * A LevelConnector keeps its search arrays between levels, so levels
+     * generated on the pregenerator thread have a connector of their own.
+     */
+    private final LevelConnector connector = new LevelConnector();
+    private final LevelConnector pregeneratorConnector = new LevelConnector();
+
+    /**
+     * The event bus that mined tiles, energy spent, mole explosions and
+     * completed levels are published to, for scoring, sound, telemetry and
+     * other listeners.
+     */
+    private final GameEventBus events = new GameEventBus(4096);
+
+    /**
+     * The tiles the player can currently see and has explored, for
+     * fog-of-war, or null if the sight radius in the GameRules turns fog off.
+     */
+    private final Visibility visibility;
+
+    /**
+     * Makes unsupported DIRT and ROCK fall into the tunnels under them, or
+     * null if the collapse interval in the GameRules turns collapsing off.
+     */
+    private final TerrainPhysics terrain;
+
+    /**
+     * When this many ore tiles or fewer are left in the current level, the next
+     * level starts being generated in the background.
+     */
+    private static final int PREGENERATE_ORE_THRESHOLD = 10;
+
+    /**
+     * The single background thread used to generate the next level.
+     */
+    private static final ExecutorService pregenerator = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "level-pregenerator");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * The next level while it is being generated in the background, or null if
+     * it has not been started yet.
+     */
+    private Future<PreparedLevel> preparedLevel;
+
+    /**
+     * The storage of the level being played, and the storage the next level is
+     * generated into. When a level is completed the storage of the next level
+     * becomes current and the old current storage is retired, so the tiles,
+     * mole store and Mole objects of a level are refilled two levels later
+     * instead of being thrown away.
+     */
+    private PreparedLevel current = new PreparedLevel();
+    private PreparedLevel spare = new PreparedLevel();
+
+    /**
+     * The storage of the level before the current one, which the GUI may still
+     * be drawing, or null. It becomes the spare storage once the GUI has been
+     * given the current level, so the pregenerator never writes into tiles or
+     * moles that are still on screen. Until then spare is null and no level is
+     * pregenerated.
+     */
+    private PreparedLevel retired;
+
+    /**
+     * The number of ore tiles left in the current level, kept up to date by
+     * mineTile().
+     */
+    private int oreRemaining;
+
+    /**
+     * The number of tiles destroyed or moved by collapsing terrain since the
+     * end of the last turn, shown by the performance overlay.
+     */
+    private int tilesChanged;
+
+    /**
+     * The XOR of the Zobrist keys of every tile in the current level, updated
+     * by mineTile() whenever a tile changes type or damage stage.
+     */
+    private long tileHash;
+
+    /**
+     * The most turns that can be undone, and the most memory the turn history
+     * may use.
+     */
+    private static final int HISTORY_TURNS = 500;
+    private static final long HISTORY_BYTES = 8L * 1024 * 1024;
+
+    /**
+     * Snapshots of the last few turns of the current level, so that turns can
+     * be undone.
+     */
+    private final TurnHistory history = new TurnHistory(LEVEL_WIDTH, LEVEL_HEIGHT, HISTORY_TURNS, HISTORY_BYTES);
+
+    /**
+     * Kinds of timer used with the TurnScheduler.
+     */
+    private static final int TIMER_ENERGY = 0;
+    private static final int TIMER_MOLE_MOVE = 1;
+    private static final int TIMER_COLLAPSE = 2;
+
+    /**
+     * Runs periodic effects, such as energy regeneration and mole movement, on
+     * the turns they are due.
+     */
+    private final TurnScheduler timers = new TurnScheduler(64);
+
+    /**
+     * Passes timers from the scheduler to onTimer(), created once so that
+     * advancing the scheduler does not create an object every turn.
+     */
+    private final TurnScheduler.Handler timerHandler = this::onTimer;
+
+    /**
+     * Plans routes for the player to a tile chosen with the mouse.
+     */
+    private final RoutePlanner routePlanner;
+
+    /**
+     * The next turn of the planned route to play, and the tile the route
+     * leads to. routeTargetX is -1 when there is no route to follow.
+     */
+    private int routeIndex;
+    private int routeTargetX = -1;
+    private int routeTargetY;
+
+    /**
+     * The storage for one level: its tiles and moles, the position of its
+     * first BASE tile, the number of ore tiles in it and the Zobrist hash of
+     * its tiles. A level is generated by filling this storage in place, so
+     * after the first few levels a new level allocates no tiles, no mole store
+     * and no Mole objects. The mole store and the moles array only grow when a
+     * level has more moles than any level before it in this storage, and the
+     * moles array may have null elements after the last mole.
+     */
+    private static class PreparedLevel {
+
+        /**
+         * The tiles of the level, and a second grid that candidate levels are
+         * generated into. buildLevel() keeps the best candidate so far by
+         * swapping the two rather than copying tiles.
+         */
+        Tile[][] tiles = newGrid();
+        Tile[][] candidate = newGrid();
+
+        /**
+         * The type of every tile of the level packed one byte per tile, for
+         * questions about many tiles at once. The engine keeps it up to date
+         * as tiles change while the level is played.
+         */
+        final PackedGrid types = new PackedGrid(LEVEL_WIDTH, LEVEL_HEIGHT);
+
+        /**
+         * Where the ore tiles of the level are, for nearest-ore and region
+         * queries. The engine removes ore from it as it is mined.
+         */
+        final OreIndex ores = new OreIndex(LEVEL_WIDTH, LEVEL_HEIGHT);
+
+        final EntityStore moleStore = new EntityStore(1);
+        Mole[] moles = new Mole[0];
+
+        /**
+         * A Mole view onto every ID in the mole store, so that moles which
+         * exploded in an earlier level can be put back into the moles array.
+         */
+        private Mole[] views = new Mole[0];
+
+        int baseX;
+        int baseY;
+        int ore;
+        long tileHash;
+
+        private static Tile[][] newGrid() {
+            Tile[][] grid = new Tile[LEVEL_WIDTH][LEVEL_HEIGHT];
+            for (int i = 0; i < LEVEL_WIDTH; i++) {
+                for (int j = 0; j < LEVEL_HEIGHT; j++) {
+                    grid[i][j] = new Tile(TileType.EMPTY);
+                }
+            }
+            return grid;
+        }
+
+        /**
+         * Makes the candidate grid the level, and the old level the grid the
+         * next candidate is generated into.
+         */
+        void keepCandidate() {
+            Tile[][] kept = candidate;
+            candidate = tiles;
+            tiles = kept;
+        }
+
+        /**
+         * Packs the tile types of the level, finds its first BASE tile, counts
+         * and indexes its ore tiles and calculates the Zobrist hash of its
+         * tiles.
+         */
+        void scanTiles() {
+            types.copyFrom(tiles);
+            ores.build(types);
+            int base = types.firstIndexOf(TileType.BASE);
+            if (base >= 0) {
+                baseX = base / LEVEL_HEIGHT;
+                baseY = base % LEVEL_HEIGHT;
+            }
+            ore = types.countOre();
+            tileHash = ZobristHash.hashTiles(tiles);
+        }
+
+        /**
+         * Empties the mole store and makes sure it, the moles array and the
+         * views can hold the given number of moles, growing them to at least
+         * double their size if they cannot.
+         */
+        void clearMoles(int count) {
+            moleStore.clear();
+            if (views.length < count) {
+                int capacity = Math.max(count, views.length * 2);
+                int old = views.length;
+                views = Arrays.copyOf(views, capacity);
+                for (int id = old; id < capacity; id++) {
+                    views[id] = new Mole(moleStore, id);
+                }
+                moles = new Mole[capacity];
+            }
+            Arrays.fill(moles, null);
+        }
+
+        /**
+         * Returns the Mole view onto the given ID of the mole store, for
+         * putting a mole that exploded back into the moles array.
+         */
+        Mole view(int id) {
+            return views[id];
+        }
+
+        /**
+         * Adds a mole to the store and the moles array, using the next ID.
+         */
+        void addMole(int maxFullness, int x, int y) {
+            int id = moleStore.add(EntityStore.MOLE, x, y);
+            moleStore.maxFullness[id] = maxFullness;
+            moles[id] = views[id];
+        }
+    }
+
     /**
      * Constructor that creates a GameEngine object and connects it with a
      * GameGUI object.
@@ -115,7 +429,110 @@ public class GameEngine {
      * in order to draw levels and entities to the screen.
      */
     public GameEngine(GameGUI gui) {
+        this(gui, GameRules.getDefault());
+    }
+
+    private GameEngine(GameGUI gui, GameRules rules) {
         this.gui = gui;
+        this.frameLock = gui != null ? gui.getFrameLock() : new Object();
+        this.rules = rules;
+        miningStrength = rules.getMiningStrength();
+        visibility = rules.getSightRadius() > 0
+                ? new Visibility(LEVEL_WIDTH, LEVEL_HEIGHT, rules.getSightRadius()) : null;
+        terrain = rules.getCollapseInterval() > 0 ? new TerrainPhysics(new TerrainListener()) : null;
+        routePlanner = new RoutePlanner(LEVEL_WIDTH, LEVEL_HEIGHT, rules);
+    }
+
+    /**
+     * Constructor that creates a GameEngine object with a fixed random seed, so
+     * that the same seed and the same key presses always play out the same
+     * way. The gui may be null to run the game without a window, for example
+     * when exporting frames or running simulations.
+     *
+     * @param gui The GameGUI object that this engine will pass information to,
+     * or null if nothing should be drawn
+     * @param seed The seed for the random number generator of this engine
+     */
+    GameEngine(GameGUI gui, long seed) {
+        this(gui, seed, GameRules.getDefault());
+    }
+
+    /**
+     * Constructor that creates a GameEngine object with a fixed random seed
+     * that plays by the given rules, for tools that need to change how the
+     * game plays, such as turning terrain collapse off. Levels are still
+     * generated with the default rules, so the same seed gives the same
+     * levels whatever rules are given.
+     *
+     * @param gui The GameGUI object that this engine will pass information to,
+     * or null if nothing should be drawn
+     * @param seed The seed for the random number generator of this engine
+     * @param rules The rules the game is played by
+     */
+    GameEngine(GameGUI gui, long seed, GameRules rules) {
+        this(gui, rules);
+        this.rng = new Random(seed);
+        this.repeatable = true;
+    }
+
+    /**
+     * Returns the index of the ore tiles left in the current level, which
+     * bots, mole AI and the GUI can use to find the nearest ore to a position
+     * or check an area for ore without scanning the level. The index is kept
+     * up to date as ore is mined. A different index is returned after the
+     * level changes.
+     *
+     * @return the ore index of the current level
+     */
+    public OreIndex getOreIndex() {
+        return current.ores;
+    }
+
+    /**
+     * Returns the event bus of this engine, which listeners can subscribe to in
+     * order to be told about mined tiles, mole explosions and completed levels.
+     *
+     * @return the GameEventBus that this engine publishes events to
+     */
+    public GameEventBus getEventBus() {
+        return events;
+    }
+
+    /**
+     * @return the tiles of the current level
+     */
+    Tile[][] getLevel() {
+        return level;
+    }
+
+    /**
+     * @return the current player
+     */
+    Player getPlayer() {
+        return player;
+    }
+
+    /**
+     * @return the array of moles in the current level, which may contain null
+     * elements
+     */
+    Mole[] getMoles() {
+        return moles;
+    }
+
+    /**
+     * @return the current level number
+     */
+    int getLevelNumber() {
+        return levelNumber;
+    }
+
+    /**
+     * @return the number of ore tiles the engine believes are left in the
+     * current level
+     */
+    int getOreRemaining() {
+        return oreRemaining;
     }
 
     /**
@@ -131,42 +548,116 @@ public class GameEngine {
      *
      * Later tasks will require additions to this method to add new content, see
      * the specification document for more details.
+     *
+     * Random levels are first passed through the LevelConnector so that every
+     * ore tile can be reached from a BASE within the player's energy, and are
+     * then checked by the LevelEvaluator before they are used, and
+     * levels that are rarely completed or are trivial are regenerated until one
+     * is accepted or GENERATION_BUDGET_NANOS runs out, in which case the best
+     * candidate seen so far is used. A game with a fixed seed generates up to
+     * SEEDED_CANDIDATES candidates instead, each evaluated in full, so the
+     * same seed always gives the same levels.
+     *
+     * The level is generated into the spare level storage, reusing the Tile
+     * objects of the level before last, which then becomes the current
+     * storage. If the GUI has not yet let go of the level before last, new
+     * storage is used instead.
      */
     private void generateLevel() {
         //YOUR CODE HERE
-        level = new Tile[LEVEL_WIDTH][LEVEL_HEIGHT];
-        for (int i = 0; i < LEVEL_WIDTH; i++) {
-            for (int j = 0; j < LEVEL_HEIGHT; j++) {
-                int n = rng.nextInt(100);
-
-                if (n >= 0 && n <= 4) {
-                    level[i][j] = new Tile(TileType.URANIUM); //5%
-                } else if (n >= 5 && n <= 14) {
-                    level[i][j] = new Tile(TileType.SILVER); //10%
-                } else if (n >= 15 && n <= 29) {
-                    level[i][j] = new Tile(TileType.COPPER); //15%
-                } else if (n >= 30 && n <= 44) {
-                    level[i][j] = new Tile(TileType.ROCK); //15%
-                } else if (n >= 45 && n <= 59) {
-                    level[i][j] = new Tile(TileType.HARD_DIRT); //15%
-                } else if (n >= 60 && n <= 79) {
-                    level[i][j] = new Tile(TileType.DIRT); //20%
-                } else if (n >= 80 && n <= 94) {
-                    level[i][j] = new Tile(TileType.EMPTY); //15%
-                } else if (n >= 95 && n <= 99) {
-                    level[i][j] = new Tile(TileType.BASE); //5%
-                }
+        PreparedLevel generated = spare != null ? spare : new PreparedLevel();
+        buildLevel(rng, levelNumber, generated, connector);
+        retire(current);
+        current = generated;
+        level = generated.tiles;
+        grid.setTiles(level);
+        if (terrain != null) {
+            terrain.reset(grid);
+        }
+        baseX = generated.baseX;
+        baseY = generated.baseY;
+        oreRemaining = generated.ore;
+        tileHash = generated.tileHash;
+    }
+
+    /**
+     * Generates candidate levels until the LevelEvaluator accepts one or
+     * GENERATION_BUDGET_NANOS runs out, in which case the best candidate seen
+     * so far is kept. In a game with a fixed seed, SEEDED_CANDIDATES
+     * candidates at most are generated and every playthrough of each is run,
+     * so the random numbers used and the candidate kept do not depend on
+     * timing. The tiles of the level are written into the given
+     * storage, which must not be the level being played, so this method can
+     * also be run on the pregenerator thread, but never on two threads at
+     * once.
+     *
+     * @param random the random number generator used to create the level
+     * @param forLevel the number of the level to create
+     * @param into the storage to generate the level in
+     * @param connector the LevelConnector of the thread this is run on
+     */
+    private void buildLevel(Random random, int forLevel, PreparedLevel into, LevelConnector connector) {
+        long deadline = System.nanoTime() + GENERATION_BUDGET_NANOS;
+        LevelEvaluator.Evaluation bestEvaluation = null;
+        int candidates = 0;
+        do {
+            Tile[][] candidate = into.candidate;
+            randomLevel(random, candidate, forLevel);
+            connector.connect(candidate, random);
+            long seed = random.nextLong();
+            LevelEvaluator.Evaluation e = repeatable ? evaluator.evaluate(candidate, seed)
+                    : evaluator.evaluate(candidate, seed, deadline);
+            candidates++;
+            if (e.isAcceptable()) {
+                into.keepCandidate();
+                break;
+            }
+            if (bestEvaluation == null || e.getCompletionRate() > bestEvaluation.getCompletionRate()) {
+                into.keepCandidate();
+                bestEvaluation = e;
+            }
+        } while (repeatable ? candidates < SEEDED_CANDIDATES : System.nanoTime() < deadline);
+        into.scanTiles();
+    }
+
+    /**
+     * Creates a level by choosing the type of every tile at random, using the
+     * spawn weights for the level number from the GameRules. The level is not
+     * checked in any way, so it may have no BASE tile or ore that cannot be
+     * reached.
+     *
+     * @param rng the random number generator used to choose tile types
+     * @param width the width of the level in tiles
+     * @param height the height of the level in tiles
+     * @param forLevel the level number used to look up spawn weights
+     * @return a new width by height array of tiles
+     */
+    static Tile[][] randomLevel(Random rng, int width, int height, int forLevel) {
+        Tile[][] level = new Tile[width][height];
+        for (int i = 0; i < width; i++) {
+            for (int j = 0; j < height; j++) {
+                level[i][j] = new Tile(TileType.EMPTY);
             }
         }
+        randomLevel(rng, level, forLevel);
+        return level;
+    }
 
-        for (int i = 0; i < LEVEL_WIDTH; i++) {
-            for (int j = 0; j < LEVEL_HEIGHT; j++) {
-                if (level[i][j].getType() == TileType.BASE) {
-                    if (baseX == 0 && baseY == 0) {
-                        baseX = i;
-                        baseY = j;
-                    }
-                }
+    /**
+     * Fills an existing level with random tiles in the same way as
+     * randomLevel(Random, int, int, int), resetting the Tile objects already
+     * in it instead of creating new ones.
+     *
+     * @param rng the random number generator used to choose tile types
+     * @param level the level to fill
+     * @param forLevel the level number used to look up spawn weights
+     */
+    static void randomLevel(Random rng, Tile[][] level, int forLevel) {
+        AliasSampler sampler = GameRules.getDefault().getTileSampler(forLevel);
+        TileType[] types = TileType.values();
+        for (int i = 0; i < level.length; i++) {
+            for (int j = 0; j < level[i].length; j++) {
+                level[i][j].reset(types[sampler.sample(rng)]);
             }
         }
     }
@@ -189,12 +680,142 @@ public class GameEngine {
      */
     private void addMoles() {
         //YOUR CODE HERE
-        moles = new Mole[levelNumber + 4];
-        for (int i = 0; i < moles.length; i++) {
-            int xPos = rng.nextInt(1, 34);
-            int yPos = rng.nextInt(1, 17);
-            moles[i] = new Mole(100 + levelNumber * 100, xPos, yPos);
+        createMoles(rng, levelNumber, current);
+        moles = current.moles;
+        moleStore = current.moleStore;
+    }
+
+    /**
+     * Places the moles for a level at random positions away from the edges of
+     * the level, replacing any moles already in the storage. The number of
+     * moles and how much they can eat before they explode depend on the level
+     * number, as set in the GameRules.
+     *
+     * @param random the random number generator used to place the moles
+     * @param forLevel the number of the level the moles are for
+     * @param into the storage of the level, whose mole at index i of the moles
+     * array will have the ID i in its mole store
+     */
+    private void createMoles(Random random, int forLevel, PreparedLevel into) {
+        int count = rules.getMoleCount(forLevel);
+        into.clearMoles(count);
+        for (int i = 0; i < count; i++) {
+            int xPos = random.nextInt(1, 34);
+            int yPos = random.nextInt(1, 17);
+            into.addMole(rules.getMoleFullness(forLevel), xPos, yPos);
+        }
+    }
+
+    /**
+     * Starts generating the next level on the pregenerator thread, once only a
+     * few ore tiles are left in the current level. The level is generated
+     * with its own random number generator, seeded from rng on this thread,
+     * so a game with a fixed seed still always plays out the same way.
+     */
+    private void pregenerateNextLevel() {
+        if (preparedLevel != null || spare == null || oreRemaining > PREGENERATE_ORE_THRESHOLD) {
+            return;
+        }
+        startPregeneration();
+    }
+
+    /**
+     * Submits the next level to the pregenerator thread.
+     */
+    private void startPregeneration() {
+        long seed = rng.nextLong();
+        int forLevel = levelNumber + 1;
+        PreparedLevel into = spare != null ? spare : new PreparedLevel();
+        spare = into;
+        preparedLevel = pregenerator.submit(() -> {
+            Random random = new Random(seed);
+            buildLevel(random, forLevel, into, pregeneratorConnector);
+            createMoles(random, forLevel, into);
+            return into;
+        });
+    }
+
+    /**
+     * Returns the level prepared by the pregenerator thread, waiting for it if
+     * it is not quite finished, or null if no level was prepared or preparing
+     * it failed. If this thread is interrupted while it waits, the level is
+     * cancelled and null is returned once the pregenerator has stopped, so the
+     * level can be generated on this thread instead.
+     */
+    private PreparedLevel takePreparedLevel() {
+        Future<PreparedLevel> pending = preparedLevel;
+        preparedLevel = null;
+        if (pending == null) {
+            return null;
+        }
+        try {
+            PreparedLevel prepared = pending.get();
+            spare = null;
+            return prepared;
+        } catch (InterruptedException e) {
+            pending.cancel(true);
+            awaitPregenerator();    //it may still be writing to spare
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.out.println("Exception preparing level: " + e.getCause());
+            e.printStackTrace(System.out);
         }
+        return null;
+    }
+
+    /**
+     * Waits until the pregenerator thread has finished everything submitted to
+     * it so far, including a cancelled level that is still being generated,
+     * even if this thread is interrupted while it waits.
+     */
+    private static void awaitPregenerator() {
+        Future<?> barrier = pregenerator.submit(() -> {
+        });
+        boolean interrupted = false;
+        while (true) {
+            try {
+                barrier.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Retires the storage of the level that was being played. Without a GUI
+     * nothing is drawing it, so it can be reused straight away.
+     */
+    private void retire(PreparedLevel old) {
+        if (gui == null) {
+            spare = old;
+        } else {
+            retired = old;
+        }
+    }
+
+    /**
+     * Gives the GUI the level, player and moles to draw. The GUI no longer
+     * holds the storage of the level before, so it can now be reused.
+     */
+    private void updateDisplay() {
+        gui.updateDisplay(level, player, moles);
+        if (retired != null) {
+            spare = retired;
+            retired = null;
+        }
+    }
+
+    /**
+     * @return true if the given type is COPPER, SILVER or URANIUM
+     */
+    private static boolean isOre(TileType type) {
+        return type == TileType.COPPER || type == TileType.SILVER || type == TileType.URANIUM;
     }
 
     /**
@@ -213,7 +834,7 @@ public class GameEngine {
      */
     private void createPlayer() {
         //YOUR CODE HERE
-        player = new Player(300, baseX, baseY);
+        player = new Player(rules.getPlayerEnergy(), baseX, baseY);
     }
 
     /**
@@ -234,106 +855,247 @@ public class GameEngine {
      * move. N is up, S is down, W is left and E is right.
      */
     public void movePlayer(char direction) {
-        //YOUR CODE HERE
-        int playerX = player.getX();
-        int playerY = player.getY();
-        switch (direction) {
-            case 'N':
-                if (playerY - 1 >= 0) {
-                    Tile tileN = level[playerX][playerY - 1];
-                    if (tileN.getType() == TileType.EMPTY || tileN.getType() == TileType.BASE) {
-                        player.setPosition(playerX, playerY - 1);
-                    } else {
-                        if (player.getEnergy() >= tileN.getDurability()) {
-                            TileType t;
-                            t = tileN.mine(miningStrength);
-                            player.changeEnergy(-tileN.getDurability());
-                            if (t == TileType.URANIUM) {
-                                miningStrength = 25;
+        synchronized (frameLock) {
+            //YOUR CODE HERE
+            int playerX = player.getX();
+            int playerY = player.getY();
+            switch (direction) {
+                case 'N':
+                    if (playerY - 1 >= 0) {
+                        TileType typeN = grid.getType(playerX, playerY - 1);
+                        if (typeN == TileType.EMPTY || typeN == TileType.BASE) {
+                            player.setPosition(playerX, playerY - 1);
+                        } else {
+                            if (player.getEnergy() >= grid.getDurability(playerX, playerY - 1)) {
+                                TileType t;
+                                t = mineTile(playerX, playerY - 1, miningStrength);
+                                spendEnergy(grid.getDurability(playerX, playerY - 1));
+                                if (t == TileType.URANIUM) {
+                                    miningStrength = rules.getUraniumMiningStrength();
+                                }
                             }
                         }
                     }
-                }
-                break;
+                    break;
 
-            case 'S':
-                if (playerY + 1 <= 17) {
-                    Tile tileS = level[playerX][playerY + 1];
-                    if (tileS.getType() == TileType.EMPTY || tileS.getType() == TileType.BASE) {
-                        player.setPosition(playerX, playerY + 1);
-                    } else {
-                        if (player.getEnergy() >= tileS.getDurability()) {
-                            TileType t;
-                            t = tileS.mine(miningStrength);
-                            player.changeEnergy(-tileS.getDurability());
-                            if (t == TileType.URANIUM) {
-                                miningStrength = 25;
+                case 'S':
+                    if (playerY + 1 <= 17) {
+                        TileType typeS = grid.getType(playerX, playerY + 1);
+                        if (typeS == TileType.EMPTY || typeS == TileType.BASE) {
+                            player.setPosition(playerX, playerY + 1);
+                        } else {
+                            if (player.getEnergy() >= grid.getDurability(playerX, playerY + 1)) {
+                                TileType t;
+                                t = mineTile(playerX, playerY + 1, miningStrength);
+                                spendEnergy(grid.getDurability(playerX, playerY + 1));
+                                if (t == TileType.URANIUM) {
+                                    miningStrength = rules.getUraniumMiningStrength();
+                                }
                             }
                         }
                     }
-                }
-                break;
+                    break;
 
-            case 'E':
-                if (playerX + 1 <= 34) {
-                    Tile tileE = level[playerX + 1][playerY];
-                    if (tileE.getType() == TileType.EMPTY || tileE.getType() == TileType.BASE) {
-                        player.setPosition(playerX + 1, playerY);
-                    } else {
-                        if (player.getEnergy() >= tileE.getDurability()) {
-                            TileType t;
-                            t = tileE.mine(miningStrength);
-                            player.changeEnergy(-tileE.getDurability());
-                            if (t == TileType.URANIUM) {
-                                miningStrength = 25;
+                case 'E':
+                    if (playerX + 1 <= 34) {
+                        TileType typeE = grid.getType(playerX + 1, playerY);
+                        if (typeE == TileType.EMPTY || typeE == TileType.BASE) {
+                            player.setPosition(playerX + 1, playerY);
+                        } else {
+                            if (player.getEnergy() >= grid.getDurability(playerX + 1, playerY)) {
+                                TileType t;
+                                t = mineTile(playerX + 1, playerY, miningStrength);
+                                spendEnergy(grid.getDurability(playerX + 1, playerY));
+                                if (t == TileType.URANIUM) {
+                                    miningStrength = rules.getUraniumMiningStrength();
+                                }
                             }
                         }
                     }
-                }
-                break;
+                    break;
 
-            case 'W':
-                if (playerX - 1 >= 0) {
-                    Tile tileW = level[playerX - 1][playerY];
-                    if (tileW.getType() == TileType.EMPTY || tileW.getType() == TileType.BASE) {
-                        player.setPosition(playerX - 1, playerY);
-                    } else {
-                        if (player.getEnergy() >= tileW.getDurability()) {
-                            TileType t;
-                            t = tileW.mine(miningStrength);
-                            player.changeEnergy(-tileW.getDurability());
-                            if (t == TileType.URANIUM) {
-                                miningStrength = 25;
+                case 'W':
+                    if (playerX - 1 >= 0) {
+                        TileType typeW = grid.getType(playerX - 1, playerY);
+                        if (typeW == TileType.EMPTY || typeW == TileType.BASE) {
+                            player.setPosition(playerX - 1, playerY);
+                        } else {
+                            if (player.getEnergy() >= grid.getDurability(playerX - 1, playerY)) {
+                                TileType t;
+                                t = mineTile(playerX - 1, playerY, miningStrength);
+                                spendEnergy(grid.getDurability(playerX - 1, playerY));
+                                if (t == TileType.URANIUM) {
+                                    miningStrength = rules.getUraniumMiningStrength();
+                                }
                             }
                         }
                     }
-                }
-                break;
+                    break;
 
-            default:
+                default:
+            }
+            if (grid.getType(playerX, playerY) == TileType.BASE) {
+                player.changeEnergy(player.getMaxEnergy());
+            }
         }
-        if (level[playerX][playerY].getType() == TileType.BASE) {
-            player.changeEnergy(player.getMaxEnergy());
+    }
+
+    /**
+     * Takes energy from the player for mining and publishes an ENERGY_SPENT
+     * event with the energy actually taken.
+     *
+     * @param amount the energy to take
+     */
+    private void spendEnergy(int amount) {
+        int before = player.getEnergy();
+        player.changeEnergy(-amount);
+        int spent = before - player.getEnergy();
+        if (spent > 0) {
+            events.publish(GameEvent.Type.ENERGY_SPENT, player.getX(), player.getY(), spent, turnNumber);
         }
     }
 
     /**
-     * Moves all moles on the current level. This method iterates over all
-     * elements of the moles array (using a for loop) and checks if each one is
-     * null (using an if statement inside that for loop). For every element of
-     * the array that is NOT null, this method calls the moveMole method and
-     * passes it the current array element (i.e. the current mole object being
-     * used in the loop).
+     * Mines the tile at the given position, which is how the player, moles and
+     * explosions all mine tiles. If the tile is destroyed a TILE_MINED event is
+     * published.
+     *
+     * @param x the X position of the tile to mine
+     * @param y the Y position of the tile to mine
+     * @param strength the amount of durability to reduce for the tile
+     * @return null if the tile was not destroyed, or the type of the tile
+     * before it was destroyed
      */
-    private void moveAllMoles() {
-        //YOUR CODE HERE
+    private TileType mineTile(int x, int y, int strength) {
+        int cell = x * LEVEL_HEIGHT + y;
+        long before = ZobristHash.tileKey(cell, grid, x, y);
+        TileType destroyed = grid.mine(x, y, strength);
+        tileHash ^= before ^ ZobristHash.tileKey(cell, grid, x, y);
+        history.markDirty(x, y);
+        if (destroyed != null) {
+            current.types.setType(x, y, TileType.EMPTY);
+            if (isOre(destroyed)) {
+                oreRemaining--;
+                current.ores.remove(x, y);
+            }
+            tilesChanged++;
+            if (visibility != null) {
+                visibility.tileChanged(x, y);
+            }
+            if (gui != null) {
+                gui.tileChanged(x, y);
+            }
+            if (terrain != null) {
+                terrain.wake(x, y);
+            }
+            events.publish(GameEvent.Type.TILE_MINED, x, y, destroyed.ordinal(), turnNumber);
+        }
+        return destroyed;
+    }
+
+    /**
+     * Sets up the timers for the current level: the player regains energy
+     * every turn, every mole moves on each turn number that is a multiple
+     * of the mole move interval, and the terrain settles on each multiple of
+     * the collapse interval. This replaces checking the turn number for
+     * every effect in doTurn(), and must be called whenever the level, the
+     * moles or the turn number are replaced.
+     */
+    private void scheduleTimers() {
+        timers.reset(turnNumber);
+        timers.schedule(1, 1, TIMER_ENERGY, 0);
+        int interval = rules.getMoleMoveInterval();
+        int delay = interval - turnNumber % interval;
         for (int i = 0; i < moles.length; i++) {
             if (moles[i] != null) {
-                moveMole(moles[i]);
-                if (moles[i].getFullness() >= moles[i].getMaxFullness()) {
-                    explode(moles[i]);
+                timers.schedule(delay, interval, TIMER_MOLE_MOVE, i);
+            }
+        }
+        if (terrain != null) {
+            int collapseInterval = rules.getCollapseInterval();
+            timers.schedule(collapseInterval - turnNumber % collapseInterval, collapseInterval, TIMER_COLLAPSE, 0);
+        }
+    }
+
+    /**
+     * Keeps the engine up to date as the TerrainPhysics moves tiles: falling
+     * tiles are blocked by the player and by moles, and every tile that moves
+     * is recorded in the tile hash and the turn history and redrawn, in the
+     * same way as a tile destroyed by mineTile().
+     */
+    private class TerrainListener implements TerrainPhysics.Listener {
+
+        @Override
+        public boolean isOccupied(int x, int y) {
+            if (player.getX() == x && player.getY() == y) {
+                return true;
+            }
+            byte[] kind = moleStore.kind;
+            int[] moleX = moleStore.x;
+            int[] moleY = moleStore.y;
+            for (int id = 0; id < moleStore.size(); id++) {
+                if (kind[id] == EntityStore.MOLE && moleX[id] == x && moleY[id] == y) {
+                    return true;
                 }
             }
+            return false;
+        }
+
+        @Override
+        public void tileMoved(int fromX, int fromY, int toX, int toY, TileType type, int durability) {
+            int from = fromX * LEVEL_HEIGHT + fromY;
+            int to = toX * LEVEL_HEIGHT + toY;
+            tileHash ^= ZobristHash.tileKey(from, type, ZobristHash.damageStage(durability, rules.getDurability(type)))
+                    ^ ZobristHash.tileKey(from, grid, fromX, fromY)
+                    ^ ZobristHash.tileKey(to, TileType.EMPTY, ZobristHash.DAMAGE_STAGES - 1)
+                    ^ ZobristHash.tileKey(to, grid, toX, toY);
+            current.types.setType(fromX, fromY, TileType.EMPTY);
+            current.types.setType(toX, toY, type);
+            history.markDirty(fromX, fromY);
+            history.markDirty(toX, toY);
+            tilesChanged++;
+            if (visibility != null) {
+                visibility.tileChanged(fromX, fromY);
+                visibility.tileChanged(toX, toY);
+            }
+            if (gui != null) {
+                gui.tileChanged(fromX, fromY);
+                gui.tileChanged(toX, toY);
+            }
+        }
+    }
+
+    /**
+     * Runs a timer from the TurnScheduler. A mole movement timer moves the mole
+     * at the index in its payload and makes it explode if it is full, or is
+     * cancelled if that mole has already exploded. Moles due on the same turn
+     * move in the order of the moles array. A collapse timer steps the
+     * terrain physics, after any moles due on the same turn have moved.
+     *
+     * @param handle the handle of the timer
+     * @param kind the kind of timer
+     * @param payload the index of the mole for mole movement timers
+     */
+    private void onTimer(int handle, int kind, int payload) {
+        switch (kind) {
+            case TIMER_ENERGY:
+                player.changeEnergy(rules.getEnergyPerTurn());
+                break;
+            case TIMER_MOLE_MOVE:
+                Mole m = moles[payload];
+                if (m == null) {
+                    timers.cancel(handle);
+                } else {
+                    moveMole(m);
+                    if (m.getFullness() >= m.getMaxFullness()) {
+                        explode(m);
+                    }
+                }
+                break;
+            case TIMER_COLLAPSE:
+                terrain.step();
+                break;
+            default:
         }
     }
 
@@ -356,48 +1118,48 @@ public class GameEngine {
         switch (n) {
             case 0:
                 if (moleY - 1 >= 1 && moleX != playerX && moleY - 1 != playerY) {
-                    Tile tileN = level[moleX][moleY - 1];
-                    if (tileN.getType() == TileType.EMPTY || tileN.getType() == TileType.BASE) {
+                    TileType typeN = grid.getType(moleX, moleY - 1);
+                    if (typeN == TileType.EMPTY || typeN == TileType.BASE) {
                         m.setPosition(moleX, moleY - 1);
                     } else {
-                        int duraN = tileN.getDurability();
-                        tileN.mine(miningStrength);
+                        int duraN = grid.getDurability(moleX, moleY - 1);
+                        mineTile(moleX, moleY - 1, miningStrength);
                         m.changeFullness(duraN);
                     }
                 }
                 break;
             case 1:
                 if (moleY + 1 <= 16) {
-                    Tile tileS = level[moleX][moleY + 1];
-                    if (tileS.getType() == TileType.EMPTY || tileS.getType() == TileType.BASE) {
+                    TileType typeS = grid.getType(moleX, moleY + 1);
+                    if (typeS == TileType.EMPTY || typeS == TileType.BASE) {
                         m.setPosition(moleX, moleY + 1);
                     } else {
-                        int duraS = tileS.getDurability();
-                        tileS.mine(miningStrength);
+                        int duraS = grid.getDurability(moleX, moleY + 1);
+                        mineTile(moleX, moleY + 1, miningStrength);
                         m.changeFullness(duraS);
                     }
                 }
                 break;
             case 2:
                 if (moleX + 1 <= 33) {
-                    Tile tileE = level[moleX + 1][moleY];
-                    if (tileE.getType() == TileType.EMPTY || tileE.getType() == TileType.BASE) {
+                    TileType typeE = grid.getType(moleX + 1, moleY);
+                    if (typeE == TileType.EMPTY || typeE == TileType.BASE) {
                         m.setPosition(moleX + 1, moleY);
                     } else {
-                        int duraE = tileE.getDurability();
-                        tileE.mine(miningStrength);
+                        int duraE = grid.getDurability(moleX + 1, moleY);
+                        mineTile(moleX + 1, moleY, miningStrength);
                         m.changeFullness(duraE);
                     }
                 }
                 break;
             case 3:
                 if (moleX - 1 >= 1) {
-                    Tile tileW = level[moleX - 1][moleY];
-                    if (tileW.getType() == TileType.EMPTY || tileW.getType() == TileType.BASE) {
+                    TileType typeW = grid.getType(moleX - 1, moleY);
+                    if (typeW == TileType.EMPTY || typeW == TileType.BASE) {
                         m.setPosition(moleX - 1, moleY);
                     } else {
-                        int duraW = tileW.getDurability();
-                        tileW.mine(miningStrength);
+                        int duraW = grid.getDurability(moleX - 1, moleY);
+                        mineTile(moleX - 1, moleY, miningStrength);
                         m.changeFullness(duraW);
                     }
                 }
@@ -417,27 +1179,14 @@ public class GameEngine {
         //YOUR CODE HERE
         int moleX = m.getX();
         int moleY = m.getY();
-       
-        Tile tileN = level[moleX][moleY - 1];
-        Tile tileS = level[moleX][moleY + 1];
-        Tile tileE = level[moleX + 1][moleY];
-        Tile tileW = level[moleX - 1][moleY];
-        Tile tileNE = level[moleX + 1][moleY - 1];
-        Tile tileNW = level[moleX - 1][moleY - 1];
-        Tile tileSE = level[moleX + 1][moleY + 1];
-        Tile tileSW = level[moleX - 1][moleY + 1];
-        Tile tileCurrent = level[moleX][moleY];
-        
-        tileN.mine(100);
-        tileS.mine(100);
-        tileE.mine(100);
-        tileW.mine(100);
-        tileNE.mine(100);
-        tileNW.mine(100);
-        tileSE.mine(100);
-        tileSW.mine(100);
-        tileCurrent.mine(100);
-        
+        events.publish(GameEvent.Type.MOLE_EXPLODED, moleX, moleY, m.getFullness(), turnNumber);
+
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dy = -1; dy <= 1; dy++) {
+                mineTile(moleX + dx, moleY + dy, rules.getExplosionStrength());
+            }
+        }
+
         //The code would generate an error if a mole explodes at the edge of the
         //level as it would try to mine a few tiles that are out of bounds. So, 
         //the moles have simply been prevented to move to the edge of the level. 
@@ -450,14 +1199,20 @@ public class GameEngine {
      * set to null in the moles array. You will need to check if the array
      * element currently being examined is null, before you attempt to call any
      * methods on the array element.
+     *
+     * The check runs over the arrays of the mole store rather than calling
+     * methods on each Mole object, and exploded moles are removed from the
+     * store as well as the array.
      */
     private void clearExplodedMoles() {
         //YOUR CODE HERE
-        for (int i = 0; i < moles.length; i++) {
-            if (moles[i] != null) {
-                if (moles[i].getFullness() >= moles[i].getMaxFullness()) {
-                    moles[i] = null;
-                }
+        byte[] kind = moleStore.kind;
+        int[] fullness = moleStore.fullness;
+        int[] maxFullness = moleStore.maxFullness;
+        for (int id = 0; id < moleStore.size(); id++) {
+            if (kind[id] == EntityStore.MOLE && fullness[id] >= maxFullness[id]) {
+                moleStore.remove(id);
+                moles[id] = null;
             }
         }
     }
@@ -471,14 +1226,57 @@ public class GameEngine {
      * the returned 2D array, add new Moles, and finally place the player in the
      * new level.
      *
+     * If the next level has already been generated in the background by
+     * pregenerateNextLevel() it is swapped in instead, so the turn that
+     * completes a level does not pay the cost of generating the next one.
+     *
      */
     private void nextLevel() {
         //YOUR CODE HERE
+        events.publish(GameEvent.Type.LEVEL_COMPLETED, player.getX(), player.getY(), levelNumber, turnNumber);
         levelNumber++;
-        generateLevel();
-        addMoles();
+        PreparedLevel next = takePreparedLevel();
+        if (next != null) {
+            retire(current);
+            current = next;
+            level = next.tiles;
+            grid.setTiles(level);
+            if (terrain != null) {
+                terrain.reset(grid);
+            }
+            moles = next.moles;
+            moleStore = next.moleStore;
+            baseX = next.baseX;
+            baseY = next.baseY;
+            oreRemaining = next.ore;
+            tileHash = next.tileHash;
+        } else {
+            generateLevel();
+            addMoles();
+        }
         placePlayer();
-        miningStrength = 5;
+        miningStrength = rules.getMiningStrength();
+        if (visibility != null) {
+            visibility.reset();
+            visibility.update(level, player.getX(), player.getY());
+        }
+        history.clear();
+        scheduleTimers();
+        cancelRoute();
+    }
+
+    /**
+     * Moves straight on to the next level as if the current one had just been
+     * completed, for tools that measure level transitions.
+     *
+     * @param inBackground true to generate the next level on the pregenerator
+     * thread, as happens in play, or false to generate it on this thread
+     */
+    void skipLevel(boolean inBackground) {
+        if (inBackground && preparedLevel == null) {
+            startPregeneration();
+        }
+        nextLevel();
     }
 
     /**
@@ -502,41 +1300,285 @@ public class GameEngine {
      * have been searched and no ore tiles were found then it should return
      * false.
      *
+     * The search runs over the packed tile types of the level, eight tiles at
+     * a time.
+     *
      * @return true if no ore tiles exist in the level, false otherwise.
      */
     private boolean allOreMined() {
         //YOUR CODE HERE
-        boolean oreMined = true;
-        for (int i = 0; i < LEVEL_WIDTH; i++) {
-            for (int j = 0; j < LEVEL_HEIGHT; j++) {
-                if (level[i][j].getType() == TileType.URANIUM
-                        || level[i][j].getType() == TileType.SILVER
-                        || level[i][j].getType() == TileType.COPPER) {
-                    oreMined = false;
-                }
-            }
-        }
-        return oreMined;//return the calculated value here instead of false
+        return !current.types.anyOreInRect(0, 0, LEVEL_WIDTH, LEVEL_HEIGHT);
     }
 
     /**
      * Performs a single turn of the game when the user presses a key on the
-     * keyboard. The method clears exploded moles, periodically moves any moles
-     * in the level, and increments the turn number. Finally it requests the GUI
+     * keyboard. The method increments the turn number, runs the timers that
+     * are due (energy regeneration and mole movement) and clears exploded
+     * moles. Finally it requests the GUI
      * to redraw the game level by passing it the level, player and moles
      * objects for the current level.
      *
+     * While the performance overlay is showing, the time and memory used by
+     * the turn, and the size of the undo history, are recorded by it.
      */
     public void doTurn() {
-        player.changeEnergy(1);
-        turnNumber++;
-        if (turnNumber % 4 == 0) {
-            moveAllMoles();
+        synchronized (frameLock) {
+            PerfHud hud = gui != null ? gui.getPerfHud() : null;
+            boolean measure = hud != null && hud.isEnabled();
+            long start = measure ? System.nanoTime() : 0;
+            long allocated = measure ? PerfHud.allocatedBytes() : 0;
+            turnNumber++;
+            timers.advance(turnNumber, timerHandler);
+            clearExplodedMoles();
+            pregenerateNextLevel();
+            if (visibility != null) {
+                visibility.update(level, player.getX(), player.getY());
+            }
+            if (gui != null) {
+                updateDisplay();
+            }
+            if (allOreMined() == true && level[player.getX()][player.getY()].getType() == TileType.BASE) {
+                nextLevel();
+            }
+            history.record(level, captureState());
+            if (measure) {
+                int liveMoles = 0;
+                for (int i = 0; i < moles.length; i++) {
+                    if (moles[i] != null) {
+                        liveMoles++;
+                    }
+                }
+                hud.recordTurn(System.nanoTime() - start, PerfHud.allocatedBytes() - allocated, liveMoles, tilesChanged);
+                hud.recordHistory(history.getRetainedTurns(), history.getBytesPerTurn());
+            }
+            tilesChanged = 0;
         }
-        clearExplodedMoles();
-        gui.updateDisplay(level, player, moles);
-        if (allOreMined() == true && level[player.getX()][player.getY()].getType() == TileType.BASE) {
-            nextLevel();
+    }
+
+    /**
+     * Returns a 64-bit fingerprint of the state of the game: the type and
+     * damage stage of every tile, the positions of the player and moles, the
+     * player's energy, the level number and the mining strength. Two games in
+     * the same state have the same hash, so comparing hashes turn by turn
+     * shows where a replay starts to differ from a live game, and the hash can
+     * be used as a key for positions already seen by a search.
+     *
+     * The hash is Zobrist hashing kept up to date as each tile and entity
+     * changes, so this method takes constant time.
+     *
+     * @return the hash of the current state
+     */
+    public long stateHash() {
+        return tileHash ^ Long.rotateLeft(player.getStore().getHash(), 1) ^ moleStore.getHash()
+                ^ ZobristHash.levelKey(levelNumber) ^ ZobristHash.strengthKey(miningStrength);
+    }
+
+    /**
+     * Calculates the same hash as stateHash() from scratch, to check that the
+     * hash kept up to date turn by turn is right. The player's part of the
+     * hash is rotated so that its keys cannot cancel out keys from the mole
+     * store, whose IDs also start at 0.
+     *
+     * @return the hash of the current state
+     */
+    long recomputeStateHash() {
+        return ZobristHash.hashTiles(level) ^ Long.rotateLeft(player.getStore().computeHash(), 1)
+                ^ moleStore.computeHash()
+                ^ ZobristHash.levelKey(levelNumber) ^ ZobristHash.strengthKey(miningStrength);
+    }
+
+    /**
+     * Undoes the last turn, if there is one to undo in the current level.
+     * Called by the InputHandler when the undo key is pressed.
+     */
+    public void undoTurn() {
+        synchronized (frameLock) {
+            if (rewind(1)) {
+                PerfHud hud = gui != null ? gui.getPerfHud() : null;
+                if (hud != null && hud.isEnabled()) {
+                    hud.recordHistory(history.getRetainedTurns(), history.getBytesPerTurn());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of turns that can currently be undone
+     */
+    public int getUndoableTurns() {
+        return history.getRetainedTurns();
+    }
+
+    /**
+     * @return the approximate memory the undo history uses per turn, in bytes
+     */
+    public long getHistoryBytesPerTurn() {
+        return history.getBytesPerTurn();
+    }
+
+    /**
+     * Puts the game back to how it was a number of turns ago. Turns can only be
+     * undone within the current level, and only as far back as the turn
+     * history reaches. The random number generator is not rewound, so moles
+     * may move differently the second time around.
+     *
+     * @param turns how many turns to go back
+     * @return true if the game was rewound, false if that turn is not in the
+     * history
+     */
+    public boolean rewind(int turns) {
+        synchronized (frameLock) {
+            int[] state = history.rewind(turns, level);
+            if (state == null) {
+                return false;
+            }
+            restoreState(state);
+            tileHash = ZobristHash.hashTiles(level);
+            current.types.copyFrom(level);
+            current.ores.build(current.types);
+            if (terrain != null) {
+                terrain.reset(grid);
+            }
+            scheduleTimers();
+            cancelRoute();
+            if (visibility != null) {
+                visibility.invalidate();
+                visibility.update(level, player.getX(), player.getY());
+            }
+            if (gui != null) {
+                gui.levelChanged();
+                updateDisplay();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Plans a route for the player to a tile, digging through anything in the
+     * way, which is then played one turn at a time by followRoute(). Any route
+     * already being followed is replaced.
+     *
+     * @param x the X position of the tile to go to
+     * @param y the Y position of the tile to go to
+     * @return true if a route was planned, false if the tile is outside the
+     * level, cannot be reached or is where the player already is
+     */
+    public boolean planRoute(int x, int y) {
+        synchronized (frameLock) {
+            cancelRoute();
+            if (x < 0 || y < 0 || x >= LEVEL_WIDTH || y >= LEVEL_HEIGHT) {
+                return false;
+            }
+            int length = routePlanner.plan(level, player.getX(), player.getY(), x, y,
+                    player.getEnergy(), player.getMaxEnergy(), miningStrength);
+            if (length <= 0) {
+                return false;
+            }
+            routeIndex = 0;
+            routeTargetX = x;
+            routeTargetY = y;
+            return true;
+        }
+    }
+
+    /**
+     * @return true if there is a planned route still to follow
+     */
+    public boolean hasRoute() {
+        return routeTargetX >= 0;
+    }
+
+    /**
+     * Stops following the planned route, for example when the player presses
+     * a key.
+     */
+    public void cancelRoute() {
+        routeTargetX = -1;
+    }
+
+    /**
+     * Plays the next turn of the planned route: moves the player and then
+     * calls doTurn(). If the player is not where the route expects, because a
+     * mole has blown up part of it, the route is planned again first. The
+     * route ends when the target is reached or the level changes.
+     *
+     * @return true if a turn was played, false if there is no route to follow
+     */
+    public boolean followRoute() {
+        synchronized (frameLock) {
+            if (!hasRoute()) {
+                return false;
+            }
+            if (routePlanner.getCell(routeIndex) != player.getX() * LEVEL_HEIGHT + player.getY()
+                    && !planRoute(routeTargetX, routeTargetY)) {
+                return false;
+            }
+            char move = routePlanner.getMove(routeIndex++);
+            boolean last = routeIndex == routePlanner.getLength();
+            movePlayer(move);
+            doTurn();
+            if (last) {
+                cancelRoute();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Packs the state of the engine, player and moles into an int array for
+     * the turn history. Each mole uses four ints: X, Y, fullness and maximum
+     * fullness, with a maximum fullness of -1 for a mole that has exploded.
+     */
+    private int[] captureState() {
+        int[] state = new int[8 + 4 * moles.length];
+        state[0] = turnNumber;
+        state[1] = score;
+        state[2] = miningStrength;
+        state[3] = oreRemaining;
+        state[4] = player.getX();
+        state[5] = player.getY();
+        state[6] = player.getEnergy();
+        state[7] = moles.length;
+        for (int i = 0; i < moles.length; i++) {
+            int at = 8 + 4 * i;
+            if (moles[i] == null) {
+                state[at + 3] = -1;
+            } else {
+                state[at] = moles[i].getX();
+                state[at + 1] = moles[i].getY();
+                state[at + 2] = moles[i].getFullness();
+                state[at + 3] = moles[i].getMaxFullness();
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Sets the engine, player and moles back to a state packed by
+     * captureState().
+     */
+    private void restoreState(int[] state) {
+        turnNumber = state[0];
+        score = state[1];
+        miningStrength = state[2];
+        oreRemaining = state[3];
+        player.setPosition(state[4], state[5]);
+        player.changeEnergy(state[6] - player.getEnergy());
+        for (int i = 0; i < state[7]; i++) {
+            int at = 8 + 4 * i;
+            if (state[at + 3] < 0) {
+                if (moles[i] != null) {
+                    moleStore.remove(i);
+                    moles[i] = null;
+                }
+            } else {
+                if (moles[i] == null) {
+                    moleStore.revive(i, EntityStore.MOLE);
+                    moles[i] = current.view(i);
+                }
+                moles[i].setPosition(state[at], state[at + 1]);
+                moles[i].changeFullness(state[at + 2] - moles[i].getFullness());
+            }
         }
     }
 
@@ -546,9 +1588,21 @@ public class GameEngine {
      * information on level, player and moles.
      */
     public void startGame() {
-        generateLevel();
-        addMoles();
-        createPlayer();
-        gui.updateDisplay(level, player, moles);
+        synchronized (frameLock) {
+            generateLevel();
+            addMoles();
+            createPlayer();
+            if (visibility != null) {
+                visibility.reset();
+                visibility.update(level, player.getX(), player.getY());
+            }
+            history.clear();
+            history.record(level, captureState());
+            scheduleTimers();
+            if (gui != null) {
+                gui.setVisibility(visibility);
+                updateDisplay();
+            }
+        }
     }
 }
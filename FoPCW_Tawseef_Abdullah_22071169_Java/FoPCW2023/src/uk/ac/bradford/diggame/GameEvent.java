@@ -0,0 +1,98 @@
+package uk.ac.bradford.diggame;
+
+/**
+ * The GameEvent class describes something that happened in the game, such as
+ * a tile being mined or a mole exploding, and is passed to GameEventListener
+ * objects by the GameEventBus.
+ *
+ * GameEvent objects are reused by the GameEventBus for every event it
+ * delivers, so a listener must copy any values it needs to keep rather than
+ * keeping a reference to the event itself.
+ */
+public class GameEvent {
+
+    /**
+     * The kinds of event that can happen in the game.
+     */
+    public enum Type {
+        /**
+         * A tile was mined until it was destroyed, by the player, a mole or an
+         * explosion. The value is the ordinal of the TileType it used to be.
+         */
+        TILE_MINED,
+        /**
+         * A mole exploded at the event position. The value is the fullness of
+         * the mole when it exploded.
+         */
+        MOLE_EXPLODED,
+        /**
+         * The player completed a level. The value is the number of the level
+         * that was completed and the position is where the player finished.
+         */
+        LEVEL_COMPLETED,
+        /**
+         * The player spent energy mining a tile. The value is the energy
+         * spent and the position is where the player is.
+         */
+        ENERGY_SPENT;
+    }
+
+    private Type type;
+    private int x;
+    private int y;
+    private int value;
+    private int turn;
+
+    /**
+     * Sets all of the values of this event, used by the GameEventBus when it
+     * reuses this object for the next event.
+     */
+    void set(Type type, int x, int y, int value, int turn) {
+        this.type = type;
+        this.x = x;
+        this.y = y;
+        this.value = value;
+        this.turn = turn;
+    }
+
+    /**
+     * @return the kind of event
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the X position in the level where the event happened
+     */
+    public int getX() {
+        return x;
+    }
+
+    /**
+     * @return the Y position in the level where the event happened
+     */
+    public int getY() {
+        return y;
+    }
+
+    /**
+     * @return a value whose meaning depends on the type of the event, see the
+     * Type enumeration
+     */
+    public int getValue() {
+        return value;
+    }
+
+    /**
+     * @return the turn number when the event happened
+     */
+    public int getTurn() {
+        return turn;
+    }
+
+    @Override
+    public String toString() {
+        return type + " at " + x + "," + y + " value " + value + " turn " + turn;
+    }
+}
@@ -0,0 +1,213 @@
+package uk.ac.bradford.diggame;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The GameEventBus class passes GameEvents from the GameEngine to any number of
+ * GameEventListeners without slowing the engine down. Events are written into
+ * a ring buffer that is allocated once, so publishing an event allocates
+ * nothing and takes a few nanoseconds. A separate delivery thread reads
+ * batches of events from the ring buffer and passes them to the listeners.
+ *
+ * Only one thread (the thread running the game) may publish events. If the
+ * listeners fall so far behind that the ring buffer is full, new events are
+ * dropped and counted rather than making the game wait.
+ */
+public class GameEventBus {
+
+    /**
+     * The number of ints used to store one event in the ring buffer: type, x,
+     * y, value and turn.
+     */
+    private static final int SLOT_SIZE = 5;
+
+    /**
+     * How long the delivery thread sleeps when there are no events.
+     */
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final GameEvent.Type[] TYPES = GameEvent.Type.values();
+
+    /**
+     * The ring buffer of events, SLOT_SIZE ints per event.
+     */
+    private final int[] ring;
+
+    /**
+     * The capacity of the ring buffer minus one, used to turn a sequence
+     * number into a slot with a bitwise AND.
+     */
+    private final int mask;
+
+    /**
+     * The sequence number of the next event to be published, only used by the
+     * publishing thread.
+     */
+    private long nextSequence;
+
+    /**
+     * The last value read from consumed by the publishing thread, so that the
+     * shared counter is only read when the ring buffer looks full.
+     */
+    private long cachedConsumed;
+
+    /**
+     * The number of events published and the number of events delivered.
+     * These counters are shared between the publishing and delivery threads.
+     */
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+
+    /**
+     * The number of events dropped because the ring buffer was full.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * The current listeners. The array is replaced rather than changed when a
+     * listener subscribes, so the delivery thread never needs a lock.
+     */
+    private volatile GameEventListener[] listeners = new GameEventListener[0];
+
+    /**
+     * The thread that delivers events, started when the first listener
+     * subscribes.
+     */
+    private Thread deliveryThread;
+
+    /**
+     * Creates an event bus with room for the given number of undelivered
+     * events.
+     *
+     * @param capacity the size of the ring buffer, rounded up to a power of 2
+     */
+    public GameEventBus(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        ring = new int[size * SLOT_SIZE];
+        mask = size - 1;
+    }
+
+    /**
+     * Adds a listener that will be passed every event published from now on.
+     *
+     * @param listener the listener to add
+     */
+    public synchronized void subscribe(GameEventListener listener) {
+        GameEventListener[] current = listeners;
+        GameEventListener[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = listener;
+        listeners = updated;
+        if (deliveryThread == null) {
+            deliveryThread = new Thread(this::deliver, "game-events");
+            deliveryThread.setDaemon(true);
+            deliveryThread.start();
+        }
+    }
+
+    /**
+     * Publishes an event. Must only be called by the thread running the game.
+     * Does nothing if there are no listeners.
+     *
+     * @param type the kind of event
+     * @param x the X position of the event
+     * @param y the Y position of the event
+     * @param value a value that depends on the type of event
+     * @param turn the turn number when the event happened
+     * @return false if the event was dropped because the ring buffer was full
+     */
+    public boolean publish(GameEvent.Type type, int x, int y, int value, int turn) {
+        if (listeners.length == 0) {
+            return true;
+        }
+        long sequence = nextSequence;
+        if (sequence - cachedConsumed > mask) {
+            cachedConsumed = consumed.get();
+            if (sequence - cachedConsumed > mask) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        }
+        int slot = (int) (sequence & mask) * SLOT_SIZE;
+        ring[slot] = type.ordinal();
+        ring[slot + 1] = x;
+        ring[slot + 2] = y;
+        ring[slot + 3] = value;
+        ring[slot + 4] = turn;
+        nextSequence = sequence + 1;
+        published.lazySet(sequence + 1);
+        return true;
+    }
+
+    /**
+     * @return the number of events dropped because the listeners fell behind
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of events that have been published but not yet
+     * delivered to every listener
+     */
+    public long getBacklog() {
+        return published.get() - consumed.get();
+    }
+
+    /**
+     * The loop run by the delivery thread. All events available when the loop
+     * wakes up are delivered as one batch before the consumed counter is
+     * updated, which frees their slots for the publisher.
+     */
+    private void deliver() {
+        GameEvent event = new GameEvent();
+        long next = 0;
+        while (true) {
+            long available = published.get();
+            if (available == next) {
+                LockSupport.parkNanos(IDLE_NANOS);
+                continue;
+            }
+            GameEventListener[] current = listeners;
+            for (long sequence = next; sequence < available; sequence++) {
+                int slot = (int) (sequence & mask) * SLOT_SIZE;
+                event.set(TYPES[ring[slot]], ring[slot + 1], ring[slot + 2],
+                        ring[slot + 3], ring[slot + 4]);
+                for (GameEventListener listener : current) {
+                    try {
+                        listener.onEvent(event, sequence == available - 1);
+                    } catch (RuntimeException e) {
+                        System.out.println("Exception in event listener: " + e.getMessage());
+                        e.printStackTrace(System.out);
+                    }
+                }
+            }
+            next = available;
+            consumed.lazySet(next);
+        }
+    }
+
+    /**
+     * Measures the time taken to publish an event while a listener is
+     * subscribed. Usage: GameEventBus [events]
+     *
+     * @param args optional number of events to publish
+     */
+    public static void main(String[] args) {
+        long events = args.length > 0 ? Long.parseLong(args[0]) : 50_000_000L;
+        GameEventBus bus = new GameEventBus(1 << 16);
+        long[] received = new long[1];
+        bus.subscribe((event, endOfBatch) -> received[0]++);
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (long i = 0; i < events; i++) {
+                bus.publish(GameEvent.Type.TILE_MINED, (int) i & 31, 3, 4, (int) i);
+            }
+            long nanos = System.nanoTime() - start;
+            System.out.printf("%.1f ns per publish, %d dropped so far%n",
+                    (double) nanos / events, bus.getDroppedCount());
+        }
+    }
+}
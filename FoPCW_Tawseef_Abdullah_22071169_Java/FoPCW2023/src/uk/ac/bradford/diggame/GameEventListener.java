@@ -0,0 +1,20 @@
+package uk.ac.bradford.diggame;
+
+/**
+ * Classes that want to be told about events in the game, for example to keep
+ * score, play sounds or record telemetry, implement this interface and
+ * subscribe to the GameEventBus of a GameEngine.
+ */
+public interface GameEventListener {
+
+    /**
+     * Called on the GameEventBus delivery thread, once for every event in the
+     * order they were published. Events are delivered in batches, and the
+     * endOfBatch flag is set for the last event currently available, which is
+     * a good time to flush any work that was collected for the batch.
+     *
+     * @param event the event, which is reused after this method returns
+     * @param endOfBatch true if this is the last event of the current batch
+     */
+    void onEvent(GameEvent event, boolean endOfBatch);
+}
@@ -1,15 +1,11 @@
 package uk.ac.bradford.diggame;
 
-import java.awt.Color;
-import java.awt.Graphics;
-import java.awt.Graphics2D;
-import java.awt.geom.Rectangle2D;
-import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.IOException;
-import javax.imageio.ImageIO;
+import java.awt.Component;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import javax.swing.JFrame;
-import javax.swing.JPanel;
 
 /**
  * The GameGUI class is responsible for rendering graphics to the screen to
@@ -31,19 +27,61 @@ public class GameGUI extends JFrame {
     public static final int BAR_HEIGHT = 3;
 
     /**
-     * The canvas is the area that graphics are drawn to. It is an internal
-     * class of the GameGUI class.
+     * The canvas is the area that graphics are drawn to. It is declared in
+     * its own source file so that other classes that draw frames can use it.
      */
     Canvas canvas;
 
+    /**
+     * Draws the canvas with active rendering, or null if the canvas is shown
+     * as a Swing component and drawn with repaint requests.
+     */
+    private ActiveRenderer activeRenderer;
+
+    /**
+     * The frame rate of active rendering.
+     */
+    static final int FRAMES_PER_SECOND = 60;
+
     /**
      * Constructor for the GameGUI class. It calls the initGUI method to
      * generate the required objects for display.
      */
     public GameGUI() {
+        this(false);
+    }
+
+    /**
+     * Constructor for the GameGUI class that can draw the game with active
+     * rendering, where a render thread draws frames at a steady rate into a
+     * BufferStrategy, instead of Swing repaint requests.
+     *
+     * @param activeRendering true to use active rendering
+     */
+    public GameGUI(boolean activeRendering) {
+        if (activeRendering) {
+            canvas = new Canvas();
+            activeRenderer = new ActiveRenderer(canvas, FRAMES_PER_SECOND);
+        }
         initGUI();
     }
 
+    /**
+     * @return the active renderer drawing the game, or null if the game is
+     * drawn by Swing
+     */
+    public ActiveRenderer getActiveRenderer() {
+        return activeRenderer;
+    }
+
+    /**
+     * @return the component the level is shown in, which receives mouse
+     * events
+     */
+    private Component view() {
+        return activeRenderer != null ? activeRenderer : canvas;
+    }
+
     /**
      * Registers an object to be passed keyboard events captured by the GUI.
      *
@@ -54,16 +92,83 @@ public class GameGUI extends JFrame {
         addKeyListener(i);
     }
 
+    /**
+     * Registers an object to be told which tile of the level is clicked with
+     * the mouse.
+     *
+     * @param i the InputHandler object whose tileClicked method is called
+     * with the position of the clicked tile
+     */
+    public void registerMouseHandler(InputHandler i) {
+        view().addMouseListener(new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                int x;
+                int y;
+                synchronized (canvas.frameLock) {   //the tile positions of the last frame drawn
+                    x = canvas.columnAt(e.getX());
+                    y = canvas.rowAt(e.getY());
+                }
+                if (x >= 0 && y >= 0) {
+                    i.tileClicked(x, y);
+                }
+            }
+        });
+    }
+
     /**
      * Method to create and initialise components for displaying elements of the
-     * game on the screen.
+     * game on the screen. The window can be resized, and the view can be zoomed
+     * with the +, - and 0 keys or the mouse wheel. F3 shows or hides the
+     * performance overlay, and M shows or hides the minimap.
      */
     private void initGUI() {
-        add(canvas = new Canvas());     //adds canvas to this frame
+        if (activeRenderer != null) {
+            add(activeRenderer);        //the render thread draws canvas into this
+        } else {
+            add(canvas = new Canvas());     //adds canvas to this frame
+        }
         setTitle("KomeDeeper");
         setSize(1136, 615);
         setLocationRelativeTo(null);        //sets position of frame on screen
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent e) {
+                synchronized (canvas.frameLock) {
+                    switch (e.getKeyCode()) {
+                        case KeyEvent.VK_EQUALS:
+                        case KeyEvent.VK_PLUS:
+                        case KeyEvent.VK_ADD:
+                            canvas.zoomIn();
+                            break;
+                        case KeyEvent.VK_MINUS:
+                        case KeyEvent.VK_SUBTRACT:
+                            canvas.zoomOut();
+                            break;
+                        case KeyEvent.VK_0:
+                            canvas.resetZoom();
+                            break;
+                        case KeyEvent.VK_F3:
+                            canvas.hud.toggle();
+                            canvas.repaint();
+                            break;
+                        case KeyEvent.VK_M:
+                            canvas.toggleMinimap();
+                            break;
+                    }
+                }
+            }
+        });
+        view().addMouseWheelListener(e -> {     //scroll up to zoom in
+            synchronized (canvas.frameLock) {
+                if (e.getWheelRotation() < 0) {
+                    canvas.zoomIn();
+                } else if (e.getWheelRotation() > 0) {
+                    canvas.zoomOut();
+                }
+            }
+        });
     }
 
     /**
@@ -85,233 +190,74 @@ public class GameGUI extends JFrame {
     public void updateDisplay(Tile[][] tiles, Player player, Mole[] moles) {
         canvas.update(tiles, player, moles);
     }
-}
-
-/**
- * Internal class used to draw elements within a JPanel. The Canvas class loads
- * images from an asset folder inside the main project folder.
- *
- * @author prtrundl
- */
-class Canvas extends JPanel {
-
-    private BufferedImage empty;
-    private BufferedImage dirt;
-    private BufferedImage hardDirt;
-    private BufferedImage rock;
-    private BufferedImage player;
-    private BufferedImage mole;
-    private BufferedImage copper;
-    private BufferedImage uranium;
-    private BufferedImage silver;
-    private BufferedImage damage1;
-    private BufferedImage damage2;
-    private BufferedImage damage3;
-    private BufferedImage damage4;
-    private BufferedImage damage5;
-    private BufferedImage base;
-
-    Tile[][] currentTiles;  //the current 2D array of tiles to display
-    Player currentPlayer;       //the current player object to be drawn
-    Mole[] currentMoles;   //the current array of moles to draw
-
-    /**
-     * Constructor that loads tile images for use in this class
-     */
-    public Canvas() {
-        loadTileImages();
-    }
 
     /**
-     * Loads tiles images from a fixed folder location within the project
-     * directory
+     * Draws any grid of tiles, such as a MappedTileGrid world, instead of a
+     * Tile[][] level. Only the tiles in view are read when drawing.
+     *
+     * @param grid the tiles to draw
+     * @param player the player to draw, or null
+     * @param moles the moles to draw, or null
      */
-    private void loadTileImages() {
-        try {
-            empty = ImageIO.read(new File("assets/empty.png"));
-            assert empty.getHeight() == GameGUI.TILE_HEIGHT
-                    && empty.getWidth() == GameGUI.TILE_WIDTH;
-            dirt = ImageIO.read(new File("assets/dirt.png"));
-            assert dirt.getHeight() == GameGUI.TILE_HEIGHT
-                    && dirt.getWidth() == GameGUI.TILE_WIDTH;
-            hardDirt = ImageIO.read(new File("assets/harddirt.png"));
-            assert hardDirt.getHeight() == GameGUI.TILE_HEIGHT
-                    && hardDirt.getWidth() == GameGUI.TILE_WIDTH;
-            rock = ImageIO.read(new File("assets/rock.png"));
-            assert rock.getHeight() == GameGUI.TILE_HEIGHT
-                    && rock.getWidth() == GameGUI.TILE_WIDTH;
-            player = ImageIO.read(new File("assets/player.png"));
-            assert player.getHeight() == GameGUI.TILE_HEIGHT
-                    && player.getWidth() == GameGUI.TILE_WIDTH;
-            copper = ImageIO.read(new File("assets/copper.png"));
-            assert copper.getHeight() == GameGUI.TILE_HEIGHT
-                    && copper.getWidth() == GameGUI.TILE_WIDTH;
-            silver = ImageIO.read(new File("assets/silver.png"));
-            assert silver.getHeight() == GameGUI.TILE_HEIGHT
-                    && silver.getWidth() == GameGUI.TILE_WIDTH;
-            uranium = ImageIO.read(new File("assets/uranium.png"));
-            assert uranium.getHeight() == GameGUI.TILE_HEIGHT
-                    && uranium.getWidth() == GameGUI.TILE_WIDTH;
-            damage1 = ImageIO.read(new File("assets/damage1.png"));
-            assert damage1.getHeight() == GameGUI.TILE_HEIGHT
-                    && damage1.getWidth() == GameGUI.TILE_WIDTH;
-            damage2 = ImageIO.read(new File("assets/damage2.png"));
-            assert damage2.getHeight() == GameGUI.TILE_HEIGHT
-                    && damage2.getWidth() == GameGUI.TILE_WIDTH;
-            damage3 = ImageIO.read(new File("assets/damage3.png"));
-            assert damage3.getHeight() == GameGUI.TILE_HEIGHT
-                    && damage3.getWidth() == GameGUI.TILE_WIDTH;
-            damage4 = ImageIO.read(new File("assets/damage4.png"));
-            assert damage4.getHeight() == GameGUI.TILE_HEIGHT
-                    && damage4.getWidth() == GameGUI.TILE_WIDTH;
-            damage5 = ImageIO.read(new File("assets/damage5.png"));
-            assert damage5.getHeight() == GameGUI.TILE_HEIGHT
-                    && damage5.getWidth() == GameGUI.TILE_WIDTH;
-            mole = ImageIO.read(new File("assets/mole.png"));
-            assert mole.getHeight() == GameGUI.TILE_HEIGHT
-                    && mole.getWidth() == GameGUI.TILE_WIDTH;
-            base = ImageIO.read(new File("assets/base.png"));
-            assert base.getHeight() == GameGUI.TILE_HEIGHT
-                    && base.getWidth() == GameGUI.TILE_WIDTH;
-
-        } catch (IOException e) {
-            System.out.println("Exception loading images: " + e.getMessage());
-            e.printStackTrace(System.out);
-        }
+    public void updateDisplay(TileGrid grid, Player player, Mole[] moles) {
+        canvas.update(grid, player, moles);
     }
 
     /**
-     * Updates the current graphics on the screen to display the tiles, player
-     * and moles
+     * Returns the lock held while a frame is drawn by the active renderer. The
+     * GameEngine holds it while it changes the state of the game, so that a
+     * frame always shows the game between turns.
      *
-     * @param t The 2D array of TileTypes representing the current level of the
-     * game
-     * @param player The current player object, used to draw the player and its
-     * energy
-     * @param moles The array of moles to display on the level with their
-     * fullness bar
+     * @return the frame lock of the canvas
      */
-    public void update(Tile[][] t, Player player, Mole[] moles) {
-        currentTiles = t;
-        currentPlayer = player;
-        currentMoles = moles;
-        repaint();
+    Object getFrameLock() {
+        return canvas.frameLock;
     }
 
     /**
-     * Override of method in super class, it draws the custom elements for this
-     * game such as the tiles, player and moles.
+     * Returns the performance overlay, so the GameEngine can record how long
+     * each turn takes while it is showing.
      *
-     * @param g Graphics drawing object
+     * @return the PerfHud drawn over the level
      */
-    @Override
-    public void paintComponent(Graphics g) {
-        super.paintComponent(g);
-        drawLevel(g);
+    public PerfHud getPerfHud() {
+        return canvas.hud;
     }
 
     /**
-     * Draws graphical elements to the screen to display the current game level
-     * tiles, the player and the moles. If the currentTiles, currentPlayer or
-     * currentMoles objects are null they will not be drawn.
+     * Tells the GUI that a tile of the current level has changed type, so the
+     * minimap only needs to redraw that tile.
      *
-     * @param g
+     * @param x the X position of the tile
+     * @param y the Y position of the tile
      */
-    private void drawLevel(Graphics g) {
-        Graphics2D g2 = (Graphics2D) g;
-        if (currentTiles != null) {
-            for (int i = 0; i < currentTiles.length; i++) {
-                for (int j = 0; j < currentTiles[i].length; j++) {
-                    switch (currentTiles[i][j].getType()) {
-                        case EMPTY:
-                            g2.drawImage(empty, i * GameGUI.TILE_WIDTH, j * GameGUI.TILE_HEIGHT, null);
-                            break;
-                        case DIRT:
-                            g2.drawImage(dirt, i * GameGUI.TILE_WIDTH, j * GameGUI.TILE_HEIGHT, null);
-                            break;
-                        case HARD_DIRT:
-                            g2.drawImage(hardDirt, i * GameGUI.TILE_WIDTH, j * GameGUI.TILE_HEIGHT, null);
-                            break;
-                        case ROCK:
-                            g2.drawImage(rock, i * GameGUI.TILE_WIDTH, j * GameGUI.TILE_HEIGHT, null);
-                            break;
-                        case COPPER:
-                            g2.drawImage(copper, i * GameGUI.TILE_WIDTH, j * GameGUI.TILE_HEIGHT, null);
-                            break;
-                        case SILVER:
-                            g2.drawImage(silver, i * GameGUI.TILE_WIDTH, j * GameGUI.TILE_HEIGHT, null);
-                            break;
-                        case URANIUM:
-                            g2.drawImage(uranium, i * GameGUI.TILE_WIDTH, j * GameGUI.TILE_HEIGHT, null);
-                            break;
-                        case BASE:
-                            g2.drawImage(base, i * GameGUI.TILE_WIDTH, j * GameGUI.TILE_HEIGHT, null);
-                            break;
-                    }
-
-                    if (currentTiles[i][j].getMaxDurability() > 0) {
-                        double ratio = (double) currentTiles[i][j].getDurability() / (double) currentTiles[i][j].getMaxDurability();
-                        if (ratio >= 1) {
-                            continue;
-                        } else if (ratio > 0.8) {
-                            g2.drawImage(damage1, i * GameGUI.TILE_WIDTH, j * GameGUI.TILE_HEIGHT, null);
-                        } else if (ratio > 0.6) {
-                            g2.drawImage(damage2, i * GameGUI.TILE_WIDTH, j * GameGUI.TILE_HEIGHT, null);
-                        } else if (ratio > 0.4) {
-                            g2.drawImage(damage3, i * GameGUI.TILE_WIDTH, j * GameGUI.TILE_HEIGHT, null);
-                        } else if (ratio > 0.2) {
-                            g2.drawImage(damage4, i * GameGUI.TILE_WIDTH, j * GameGUI.TILE_HEIGHT, null);
-                        } else {
-                            g2.drawImage(damage5, i * GameGUI.TILE_WIDTH, j * GameGUI.TILE_HEIGHT, null);
-                        }
-                    }
-                }
-            }
+    public void tileChanged(int x, int y) {
+        if (canvas.minimap != null) {
+            canvas.minimap.cellChanged(x, y);
         }
-        if (currentMoles != null) {
-            for (Mole m : currentMoles) {
-                if (m != null) {
-                    g2.drawImage(mole, m.getX() * GameGUI.TILE_WIDTH, m.getY() * GameGUI.TILE_HEIGHT, null);
-                    drawFullnessBar(g2, m);
-                }
-            }
-        }
-        if (currentPlayer != null) {
-            g2.drawImage(player, currentPlayer.getX() * GameGUI.TILE_WIDTH, currentPlayer.getY() * GameGUI.TILE_HEIGHT, null);
-            drawEnergyBar(g2, currentPlayer);
-        }
-        g2.dispose();
     }
 
     /**
-     * Draws a fullness bar for the given Mole at the bottom of the tile that
-     * the Mole is located in.
-     *
-     * @param g2 The graphics object to use for drawing
-     * @param g The mole that the patience bar will be drawn for
+     * Tells the GUI that many tiles of the current level have changed at
+     * once, for example when an earlier turn is restored, so the minimap is
+     * redrawn in full.
      */
-    private void drawFullnessBar(Graphics2D g2, Mole g) {
-        g2.setColor(Color.GREEN);
-        g2.fill(new Rectangle2D.Double(g.getX() * GameGUI.TILE_WIDTH, g.getY() * GameGUI.TILE_HEIGHT + 29, GameGUI.TILE_WIDTH, GameGUI.BAR_HEIGHT));
-        if (g.getFullness() > 0) {
-            double fullRatio = (double) g.getFullness() / (double) g.getMaxFullness();
-            g2.setColor(Color.RED);
-            g2.fill(new Rectangle2D.Double(g.getX() * GameGUI.TILE_WIDTH, g.getY() * GameGUI.TILE_HEIGHT + 29, GameGUI.TILE_WIDTH * fullRatio, GameGUI.BAR_HEIGHT));
+    public void levelChanged() {
+        if (canvas.minimap != null) {
+            canvas.minimap.invalidate();
         }
     }
 
     /**
-     * Draws an energy bar for the given Player at the bottom of the tile that
-     * the Player is located in.
+     * Sets the fog-of-war information used when drawing the level. Tiles the
+     * player has not explored are not drawn, explored tiles that are out of
+     * sight are drawn darkened, and moles are only drawn on visible tiles.
      *
-     * @param g2 The graphics object to use for drawing
-     * @param p The Player that the energy bar will be drawn for
+     * @param visibility the Visibility for the current level, or null to draw
+     * the whole level
      */
-    private void drawEnergyBar(Graphics2D g2, Player p) {
-        double remainingEnergy = (double) p.getEnergy() / (double) p.getMaxEnergy();
-        g2.setColor(Color.BLUE);
-        g2.fill(new Rectangle2D.Double(p.getX() * GameGUI.TILE_WIDTH, p.getY() * GameGUI.TILE_HEIGHT + 29, GameGUI.TILE_WIDTH, GameGUI.BAR_HEIGHT));
-        g2.setColor(Color.CYAN);
-        g2.fill(new Rectangle2D.Double(p.getX() * GameGUI.TILE_WIDTH, p.getY() * GameGUI.TILE_HEIGHT + 29, GameGUI.TILE_WIDTH * remainingEnergy, GameGUI.BAR_HEIGHT));
+    public void setVisibility(Visibility visibility) {
+        canvas.visibility = visibility;
+        canvas.repaint();
     }
 }
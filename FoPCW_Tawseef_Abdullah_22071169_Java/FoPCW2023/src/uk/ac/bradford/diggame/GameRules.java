@@ -0,0 +1,329 @@
+package uk.ac.bradford.diggame;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+import uk.ac.bradford.diggame.Tile.TileType;
+
+/**
+ * The GameRules class holds the balance numbers for the game, such as how
+ * often each type of tile is generated, tile durabilities, player energy and
+ * mining strength and how many moles there are on each level. The rules are
+ * loaded once from a properties file in the assets folder and stored in
+ * primitive arrays and fields, so looking a rule up during the game is as
+ * cheap as using a literal number.
+ *
+ * Tile spawn weights can change with the level number, and are turned into an
+ * AliasSampler for each level the first time it is needed, so choosing the
+ * type of a tile costs the same however many types of tile there are. Every
+ * rule has a default equal to the original hard-coded value, which is used if
+ * the rules file or an entry in it is missing.
+ */
+public class GameRules {
+
+    /**
+     * The file the default rules are loaded from.
+     */
+    private static final String RULES_FILE = "assets/rules.properties";
+
+    private static final TileType[] TILE_TYPES = TileType.values();
+
+    private final int[] durability = new int[TILE_TYPES.length];
+    private final double[] spawnWeight = new double[TILE_TYPES.length];
+    private final double[] spawnWeightPerLevel = new double[TILE_TYPES.length];
+
+    private final int playerEnergy;
+    private final int energyPerTurn;
+    private final int sightRadius;
+    private final int miningStrength;
+    private final int uraniumMiningStrength;
+    private final int moleCountBase;
+    private final int moleCountPerLevel;
+    private final int moleFullnessBase;
+    private final int moleFullnessPerLevel;
+    private final int moleMoveInterval;
+    private final int explosionStrength;
+    private final int collapseInterval;
+
+    /**
+     * Tile samplers for each level number, created when first needed.
+     */
+    private AliasSampler[] samplers = new AliasSampler[16];
+
+    /**
+     * Creates a set of rules from properties, using the default value for any
+     * rule that is not given.
+     *
+     * @param p the properties to read the rules from
+     */
+    public GameRules(Properties p) {
+        int[] defaultDurability = {0, 10, 20, 40, 30, 40, 60, 0};
+        int[] defaultSpawn = {15, 20, 15, 15, 15, 10, 5, 5};
+        for (TileType t : TILE_TYPES) {
+            int i = t.ordinal();
+            durability[i] = readInt(p, "durability." + t, i < defaultDurability.length ? defaultDurability[i] : 0);
+            spawnWeight[i] = readInt(p, "spawn." + t, i < defaultSpawn.length ? defaultSpawn[i] : 0);
+            spawnWeightPerLevel[i] = readInt(p, "spawn." + t + ".perLevel", 0);
+        }
+        checkSpawnWeights(defaultSpawn);
+        playerEnergy = readInt(p, "player.energy", 300);
+        energyPerTurn = readInt(p, "player.energyPerTurn", 1);
+        sightRadius = readInt(p, "player.sightRadius", 7);
+        miningStrength = readInt(p, "mining.strength", 5);
+        uraniumMiningStrength = readInt(p, "mining.strength.uranium", 25);
+        moleCountBase = readInt(p, "mole.count.base", 4);
+        moleCountPerLevel = readInt(p, "mole.count.perLevel", 1);
+        moleFullnessBase = readInt(p, "mole.fullness.base", 100);
+        moleFullnessPerLevel = readInt(p, "mole.fullness.perLevel", 100);
+        moleMoveInterval = Math.max(1, readInt(p, "mole.moveInterval", 4));
+        explosionStrength = readInt(p, "mole.explosionStrength", 100);
+        collapseInterval = readInt(p, "terrain.collapseInterval", 0);
+    }
+
+    /**
+     * Creates a copy of a set of rules with a different collapse interval.
+     */
+    private GameRules(GameRules rules, int collapseInterval) {
+        System.arraycopy(rules.durability, 0, durability, 0, durability.length);
+        System.arraycopy(rules.spawnWeight, 0, spawnWeight, 0, spawnWeight.length);
+        System.arraycopy(rules.spawnWeightPerLevel, 0, spawnWeightPerLevel, 0, spawnWeightPerLevel.length);
+        playerEnergy = rules.playerEnergy;
+        energyPerTurn = rules.energyPerTurn;
+        sightRadius = rules.sightRadius;
+        miningStrength = rules.miningStrength;
+        uraniumMiningStrength = rules.uraniumMiningStrength;
+        moleCountBase = rules.moleCountBase;
+        moleCountPerLevel = rules.moleCountPerLevel;
+        moleFullnessBase = rules.moleFullnessBase;
+        moleFullnessPerLevel = rules.moleFullnessPerLevel;
+        moleMoveInterval = rules.moleMoveInterval;
+        explosionStrength = rules.explosionStrength;
+        this.collapseInterval = collapseInterval;
+    }
+
+    /**
+     * Returns a copy of these rules with a different collapse interval, for
+     * tools that do not model collapsing terrain.
+     *
+     * @param collapseInterval the number of turns between steps of the
+     * terrain physics, or 0 to turn collapsing off
+     * @return the copied rules
+     */
+    public GameRules withCollapseInterval(int collapseInterval) {
+        return new GameRules(this, collapseInterval);
+    }
+
+    /**
+     * Returns the rules loaded from the rules file in the assets folder,
+     * loading them the first time this method is called. If the file cannot be
+     * read the default rules are used.
+     *
+     * @return the rules used by the game
+     */
+    public static GameRules getDefault() {
+        return DefaultRules.RULES;
+    }
+
+    /**
+     * Holds the rules loaded from RULES_FILE. The JVM creates them the first
+     * time getDefault() is called, without needing a lock on every call.
+     */
+    private static class DefaultRules {
+
+        static final GameRules RULES = load(new File(RULES_FILE));
+    }
+
+    /**
+     * Loads rules from a properties file.
+     *
+     * @param file the file to load
+     * @return the rules in the file, or the default rules if it could not be
+     * read
+     */
+    public static GameRules load(File file) {
+        Properties p = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            p.load(in);
+        } catch (IOException e) {
+            System.out.println("Exception loading rules, using defaults: " + e.getMessage());
+        }
+        return new GameRules(p);
+    }
+
+    /**
+     * Makes sure every level can generate a tile. If no spawn weight is above
+     * 0 the default weights are used instead, and if the weights change per
+     * level so that on some level none is above 0 the per level changes are
+     * ignored. Either problem is reported when the rules are loaded, rather
+     * than the AliasSampler failing part way through a game.
+     */
+    private void checkSpawnWeights(int[] defaultSpawn) {
+        if (!anyWeightAboveZero(1)) {
+            System.out.println("Ignoring rules spawn.TYPE: every spawn weight is 0 or less, using the defaults");
+            for (int i = 0; i < spawnWeight.length; i++) {
+                spawnWeight[i] = i < defaultSpawn.length ? defaultSpawn[i] : 0;
+            }
+        }
+        //the largest weight is a convex function of the level, so it is at or
+        //below 0 on a range of levels that starts at level 1, just after one of
+        //the weights crosses 0, or goes on for ever
+        boolean ok = anyWeightAboveZero(Integer.MAX_VALUE);
+        for (int i = 0; i < spawnWeight.length && ok; i++) {
+            if (spawnWeightPerLevel[i] != 0) {
+                double crossing = Math.ceil(1 - spawnWeight[i] / spawnWeightPerLevel[i]);
+                if (crossing > 1 && crossing < Integer.MAX_VALUE) {
+                    ok = anyWeightAboveZero((int) crossing);
+                }
+            }
+        }
+        if (!ok) {
+            System.out.println("Ignoring rules spawn.TYPE.perLevel: every spawn weight is 0 or less"
+                    + " on some levels");
+            Arrays.fill(spawnWeightPerLevel, 0);
+        }
+    }
+
+    private boolean anyWeightAboveZero(int level) {
+        for (int i = 0; i < spawnWeight.length; i++) {
+            if (spawnWeight[i] + spawnWeightPerLevel[i] * (level - 1.0) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int readInt(Properties p, String key, int defaultValue) {
+        String value = p.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring rule " + key + "=" + value + ": not a whole number");
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Chooses the type of a new tile at random using the spawn weights for a
+     * level.
+     *
+     * @param rng the random number generator to use
+     * @param level the level number the tile is for
+     * @return the type for the new tile
+     */
+    public TileType randomTileType(Random rng, int level) {
+        return TILE_TYPES[getTileSampler(level).sample(rng)];
+    }
+
+    /**
+     * Returns the sampler of tile types for a level, building it the first
+     * time. Samples are ordinals of the TileType values.
+     *
+     * @param level the level number the tiles are for
+     * @return a sampler that chooses TileType ordinals using the spawn weights
+     * for the level
+     */
+    public synchronized AliasSampler getTileSampler(int level) {
+        int index = Math.max(1, level);
+        if (index >= samplers.length) {
+            samplers = Arrays.copyOf(samplers, Math.max(index + 1, samplers.length * 2));
+        }
+        if (samplers[index] == null) {
+            double[] weights = new double[TILE_TYPES.length];
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = spawnWeight[i] + spawnWeightPerLevel[i] * (index - 1);
+            }
+            samplers[index] = new AliasSampler(weights);
+        }
+        return samplers[index];
+    }
+
+    /**
+     * @param type a type of tile
+     * @return the starting durability for tiles of that type
+     */
+    public int getDurability(TileType type) {
+        return durability[type.ordinal()];
+    }
+
+    /**
+     * @return the maximum energy of the player
+     */
+    public int getPlayerEnergy() {
+        return playerEnergy;
+    }
+
+    /**
+     * @return the energy the player gains every turn
+     */
+    public int getEnergyPerTurn() {
+        return energyPerTurn;
+    }
+
+    /**
+     * @return how many tiles away the player can see, or 0 or less if the
+     * whole level is always visible
+     */
+    public int getSightRadius() {
+        return sightRadius;
+    }
+
+    /**
+     * @return the mining strength of the player at the start of a level
+     */
+    public int getMiningStrength() {
+        return miningStrength;
+    }
+
+    /**
+     * @return the mining strength of the player after mining a URANIUM tile
+     */
+    public int getUraniumMiningStrength() {
+        return uraniumMiningStrength;
+    }
+
+    /**
+     * @param level a level number
+     * @return the number of moles on that level
+     */
+    public int getMoleCount(int level) {
+        return Math.max(0, moleCountBase + moleCountPerLevel * level);
+    }
+
+    /**
+     * @param level a level number
+     * @return the maximum fullness of moles on that level
+     */
+    public int getMoleFullness(int level) {
+        return Math.max(1, moleFullnessBase + moleFullnessPerLevel * level);
+    }
+
+    /**
+     * @return the number of turns between mole movements
+     */
+    public int getMoleMoveInterval() {
+        return moleMoveInterval;
+    }
+
+    /**
+     * @return the strength used to mine tiles around an exploding mole
+     */
+    public int getExplosionStrength() {
+        return explosionStrength;
+    }
+
+    /**
+     * @return the number of turns between steps of the terrain physics, which
+     * make unsupported DIRT and ROCK fall, or 0 or less if terrain never
+     * collapses
+     */
+    public int getCollapseInterval() {
+        return collapseInterval;
+    }
+}
@@ -0,0 +1,72 @@
+package uk.ac.bradford.diggame;
+
+import uk.ac.bradford.diggame.Tile.TileType;
+
+/**
+ * The HeapTileGrid class is a TileGrid over a Tile[][] array, the way levels
+ * are stored for play. The array it wraps can be changed, so one HeapTileGrid
+ * can follow the engine from level to level without being created again.
+ */
+public class HeapTileGrid implements TileGrid {
+
+    private Tile[][] tiles;
+
+    /**
+     * Creates a grid over an array of tiles.
+     *
+     * @param tiles the tiles, indexed [x][y], or null to set them later
+     */
+    public HeapTileGrid(Tile[][] tiles) {
+        this.tiles = tiles;
+    }
+
+    /**
+     * @param tiles the tiles this grid should read and change from now on,
+     * indexed [x][y]
+     */
+    public void setTiles(Tile[][] tiles) {
+        this.tiles = tiles;
+    }
+
+    /**
+     * @return the tiles this grid reads and changes
+     */
+    public Tile[][] getTiles() {
+        return tiles;
+    }
+
+    @Override
+    public int getWidth() {
+        return tiles.length;
+    }
+
+    @Override
+    public int getHeight() {
+        return tiles[0].length;
+    }
+
+    @Override
+    public TileType getType(int x, int y) {
+        return tiles[x][y].getType();
+    }
+
+    @Override
+    public int getDurability(int x, int y) {
+        return tiles[x][y].getDurability();
+    }
+
+    @Override
+    public int getMaxDurability(int x, int y) {
+        return tiles[x][y].getMaxDurability();
+    }
+
+    @Override
+    public TileType mine(int x, int y, int strength) {
+        return tiles[x][y].mine(strength);
+    }
+
+    @Override
+    public void set(int x, int y, TileType type, int durability) {
+        tiles[x][y].restore(type, durability);
+    }
+}
@@ -2,12 +2,15 @@ package uk.ac.bradford.diggame;
 
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
+import javax.swing.Timer;
 
 /**
  * This class handles keyboard events (key presses) captured by a GameGUI object
  * that are passed to an instance of this class. The class is responsible for
  * calling methods in the GameEngine class that will update tiles, player and
- * moles for the various keystrokes that are handled.
+ * moles for the various keystrokes that are handled. Clicking a tile plans a
+ * route to it, which is then played one turn at a time by a timer until it
+ * ends or a key is pressed.
  *
  * @author prtrundl
  */
@@ -15,6 +18,17 @@ public class InputHandler implements KeyListener {
 
     GameEngine engine;      //GameEngine that this class calls methods from
 
+    /**
+     * The time between turns while the player follows a planned route, in
+     * milliseconds.
+     */
+    private static final int ROUTE_STEP_MILLIS = 80;
+
+    /**
+     * Plays the turns of a planned route on the Swing event thread.
+     */
+    private final Timer routeTimer;
+
     /**
      * Constructor that forms a connection between a GameInputHandler object and
      * a GameEngine object. The GameEngine object registered here is the one
@@ -24,6 +38,27 @@ public class InputHandler implements KeyListener {
      */
     public InputHandler(GameEngine eng) {
         engine = eng;
+        routeTimer = new Timer(ROUTE_STEP_MILLIS, e -> {
+            engine.followRoute();
+            if (!engine.hasRoute()) {
+                ((Timer) e.getSource()).stop();
+            }
+        });
+    }
+
+    /**
+     * Method to handle a tile of the level being clicked, by planning a route for
+     * the player to that tile and starting to follow it.
+     *
+     * @param x the X position of the clicked tile
+     * @param y the Y position of the clicked tile
+     */
+    public void tileClicked(int x, int y) {
+        if (engine.planRoute(x, y)) {
+            routeTimer.restart();
+        } else {
+            routeTimer.stop();
+        }
     }
 
     /**
@@ -39,12 +74,17 @@ public class InputHandler implements KeyListener {
      * Method to handle key presses captured by the GameGUI. The method calls
      * the game engine doTurn method to process a game turn for ANY key press,
      * but if the up, down, left or right arrow keys are pressed it also calls a
-     * method in the engine to update the game by moving the player.
+     * method in the engine to update the game by moving the player. Zoom keys
+     * are ignored here as they only change the view.
      *
      * @param e A KeyEvent object generated when a keyboard key is pressed
      */
     @Override
     public void keyPressed(KeyEvent e) {
+        if (engine.hasRoute()) {
+            routeTimer.stop();
+            engine.cancelRoute();   //a key press takes back control from a planned route
+        }
         switch (e.getKeyCode()) {
             case KeyEvent.VK_LEFT:
                 engine.movePlayer('W');
@@ -58,6 +98,19 @@ public class InputHandler implements KeyListener {
             case KeyEvent.VK_DOWN:
                 engine.movePlayer('S');
                 break;  //handle down arrow
+            case KeyEvent.VK_BACK_SPACE:
+            case KeyEvent.VK_U:
+                engine.undoTurn();
+                return;     //undoing a turn does not use a turn
+            case KeyEvent.VK_EQUALS:
+            case KeyEvent.VK_PLUS:
+            case KeyEvent.VK_ADD:
+            case KeyEvent.VK_MINUS:
+            case KeyEvent.VK_SUBTRACT:
+            case KeyEvent.VK_0:
+            case KeyEvent.VK_F3:
+            case KeyEvent.VK_M:
+                return;     //zoom and overlay keys are handled by the GameGUI and do not use a turn
         }
         engine.doTurn();    //any key press will result in this method being called
     }
@@ -0,0 +1,128 @@
+package uk.ac.bradford.diggame;
+
+import java.util.Arrays;
+
+/**
+ * A binary min-heap of int values ordered by int keys. The heap stores keys
+ * and values in two parallel primitive arrays so that path searches over the
+ * level grid (where the value is usually a cell index) do not create a boxed
+ * node object for every push. Duplicate values are allowed, which means
+ * searches use "lazy deletion" and skip stale entries when they are popped.
+ */
+public class IntMinHeap {
+
+    /**
+     * The priority of each entry in the heap, kept in heap order.
+     */
+    private int[] keys;
+
+    /**
+     * The value stored alongside each key in the keys array.
+     */
+    private int[] values;
+
+    /**
+     * The number of entries currently stored in the heap.
+     */
+    private int size;
+
+    /**
+     * Creates an empty heap with space for the given number of entries. The
+     * heap grows automatically if more entries are pushed.
+     *
+     * @param capacity the initial number of entries the heap can hold
+     */
+    public IntMinHeap(int capacity) {
+        keys = new int[Math.max(capacity, 16)];
+        values = new int[keys.length];
+    }
+
+    /**
+     * Adds a value to the heap with the given priority.
+     *
+     * @param key the priority of the value, lower keys are popped first
+     * @param value the value to store
+     */
+    public void push(int key, int value) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        int i = size++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (keys[parent] <= key) {
+                break;
+            }
+            keys[i] = keys[parent];
+            values[i] = values[parent];
+            i = parent;
+        }
+        keys[i] = key;
+        values[i] = value;
+    }
+
+    /**
+     * Returns the smallest key in the heap without removing it. Must not be
+     * called on an empty heap.
+     *
+     * @return the key of the entry that the next call to pop() will return
+     */
+    public int peekKey() {
+        return keys[0];
+    }
+
+    /**
+     * Removes the entry with the smallest key and returns its value. Must not
+     * be called on an empty heap.
+     *
+     * @return the value of the entry with the smallest key
+     */
+    public int pop() {
+        int result = values[0];
+        size--;
+        if (size > 0) {
+            int key = keys[size];
+            int value = values[size];
+            int i = 0;
+            int half = size >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && keys[child + 1] < keys[child]) {
+                    child++;
+                }
+                if (key <= keys[child]) {
+                    break;
+                }
+                keys[i] = keys[child];
+                values[i] = values[child];
+                i = child;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+        return result;
+    }
+
+    /**
+     * @return true if there are no entries in the heap
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the number of entries in the heap
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all entries from the heap, keeping the allocated arrays so that
+     * the heap can be reused for the next search.
+     */
+    public void clear() {
+        size = 0;
+    }
+}
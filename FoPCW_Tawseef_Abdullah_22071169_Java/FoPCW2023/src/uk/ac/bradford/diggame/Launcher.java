@@ -1,6 +1,7 @@
 package uk.ac.bradford.diggame;
 
 import java.awt.EventQueue;
+import java.io.File;
 
 /**
  * This class is the entry point for the project, containing the main method
@@ -11,7 +12,16 @@ import java.awt.EventQueue;
  */
 public class Launcher {
 
+    /**
+     * Starts the game. Passing -active draws the game with active rendering
+     * instead of Swing repaint requests, and -telemetry records the events of
+     * the session into the telemetry folder for the TelemetryReader.
+     *
+     * @param args optional -active and -telemetry
+     */
     public static void main(String[] args) {
+        boolean activeRendering = hasArgument(args, "-active");
+        boolean recordTelemetry = hasArgument(args, "-telemetry");
         EventQueue.invokeLater(new Runnable() {
 
             /**
@@ -21,14 +31,29 @@ public class Launcher {
              */
             @Override
             public void run() {
-                GameGUI gui = new GameGUI();            //create GUI
+                GameGUI gui = new GameGUI(activeRendering); //create GUI
                 gui.setVisible(true);                 //display GUI
                 GameEngine eng = new GameEngine(gui);   //create engine
+                if (recordTelemetry) {
+                    TelemetryWriter writer = new TelemetryWriter(new File("telemetry"));
+                    eng.getEventBus().subscribe(writer);
+                    Runtime.getRuntime().addShutdownHook(new Thread(writer::close));    //write the last batch on exit
+                }
                 InputHandler i = new InputHandler(eng); //create input handler
                 gui.registerKeyHandler(i);              //registers handler with GUI
+                gui.registerMouseHandler(i);            //and for clicks on tiles
                 eng.startGame();                        //starts the game
             }
         });
     }
 
+    private static boolean hasArgument(String[] args, String name) {
+        for (String arg : args) {
+            if (arg.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
 }
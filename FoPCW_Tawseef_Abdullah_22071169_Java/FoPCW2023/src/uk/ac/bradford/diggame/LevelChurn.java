@@ -0,0 +1,90 @@
+package uk.ac.bradford.diggame;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * The LevelChurn class moves a game without a window through many levels in a
+ * row, without playing them, to measure what a level transition costs: the
+ * time taken, the memory allocated by every thread while it happens
+ * (generation runs on the pregenerator and evaluator threads as well as the
+ * engine thread) and the garbage collections over the whole run. Run it with
+ * -Xlog:gc to see each collection as well.
+ */
+public class LevelChurn {
+
+    /**
+     * Levels skipped before measuring starts, so that the JIT compiler and the
+     * storage reused between levels have warmed up.
+     */
+    private static final int WARM_UP_LEVELS = 20;
+
+    /**
+     * Measures level transitions. Usage: LevelChurn [levels] [seed]
+     * [background|foreground]
+     *
+     * @param args optional number of levels, game seed and whether levels are
+     * generated on the pregenerator thread, as in play, or on the engine
+     * thread
+     */
+    public static void main(String[] args) {
+        int levels = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        boolean inBackground = args.length < 3 || !args[2].equals("foreground");
+        GameEngine engine = new GameEngine(null, seed);
+        engine.startGame();
+        for (int i = 0; i < WARM_UP_LEVELS; i++) {
+            engine.skipLevel(inBackground);
+        }
+
+        GarbageCollectorMXBean[] collectors = ManagementFactory.getGarbageCollectorMXBeans()
+                .toArray(new GarbageCollectorMXBean[0]);
+        long[] bytes = new long[levels];
+        long[] nanos = new long[levels];
+        long gcCount = gcCount(collectors);
+        long gcMillis = gcMillis(collectors);
+        long start = System.nanoTime();
+        for (int i = 0; i < levels; i++) {
+            long allocated = PerfHud.allThreadsAllocatedBytes();
+            long before = System.nanoTime();
+            engine.skipLevel(inBackground);
+            nanos[i] = System.nanoTime() - before;
+            bytes[i] = PerfHud.allThreadsAllocatedBytes() - allocated;
+        }
+        long elapsed = System.nanoTime() - start;
+        gcCount = gcCount(collectors) - gcCount;
+        gcMillis = gcMillis(collectors) - gcMillis;
+
+        long totalBytes = 0;
+        for (long b : bytes) {
+            totalBytes += b;
+        }
+        Arrays.sort(bytes);
+        Arrays.sort(nanos);
+        System.out.printf("%d levels (to level %d) generated in the %s in %.1f s%n", levels,
+                engine.getLevelNumber(), inBackground ? "background" : "foreground", elapsed / 1e9);
+        System.out.printf("transition time: median %.1f ms, 99th percentile %.1f ms, max %.1f ms%n",
+                nanos[levels / 2] / 1e6, nanos[(levels - 1) * 99 / 100] / 1e6, nanos[levels - 1] / 1e6);
+        System.out.printf("allocated per transition, all threads: median %d bytes, mean %d bytes,"
+                + " max %d bytes%n", bytes[levels / 2], totalBytes / levels, bytes[levels - 1]);
+        System.out.printf("garbage collections: %d taking %d ms%n", gcCount, gcMillis);
+        System.exit(0);
+    }
+
+    private static long gcCount(GarbageCollectorMXBean[] collectors) {
+        long total = 0;
+        for (GarbageCollectorMXBean c : collectors) {
+            total += Math.max(0, c.getCollectionCount());
+        }
+        return total;
+    }
+
+    private static long gcMillis(GarbageCollectorMXBean[] collectors) {
+        long total = 0;
+        for (GarbageCollectorMXBean c : collectors) {
+            total += Math.max(0, c.getCollectionTime());
+        }
+        return total;
+    }
+}
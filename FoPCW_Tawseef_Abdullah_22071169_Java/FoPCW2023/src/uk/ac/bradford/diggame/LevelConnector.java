@@ -0,0 +1,235 @@
+package uk.ac.bradford.diggame;
+
+import java.util.Arrays;
+import java.util.Random;
+import uk.ac.bradford.diggame.Tile.TileType;
+
+/**
+ * The LevelConnector class makes sure that every ore tile in a level can be
+ * reached from a BASE tile within the player's energy budget. It runs a single
+ * multi-source Dijkstra search from every BASE tile, where the cost of a tile
+ * is the energy the player spends mining through it at the starting mining
+ * strength. Ore tiles whose cheapest tunnel costs more than the budget are
+ * then repaired locally, by softening the tiles along that tunnel only, rather
+ * than throwing the whole level away.
+ *
+ * The cost of a tunnel only approximates what the game enforces. Ore tiles,
+ * including the one at the end of the tunnel, cost nothing here, although
+ * GameEngine.movePlayer() charges the same energy to mine them as any other
+ * tile of the same durability; ore cannot be softened without changing what
+ * the level asks of the player. The player also gains energy every turn and
+ * refills it at a BASE, so a tunnel over the budget can still be dug over
+ * several trips, and the budget is not a limit the game itself applies. What
+ * is guaranteed is that the non-ore tiles between a BASE and each ore tile
+ * can be dug with one full bar of energy at the starting mining strength.
+ *
+ * The search is O(n log n) in the number of tiles and every tile is visited
+ * at most once by the repair pass, so connecting a level stays cheap even for
+ * very large levels.
+ */
+public class LevelConnector {
+
+    /**
+     * The most energy a tunnel from the BASE to an ore tile may cost, which
+     * is the maximum energy of the player.
+     */
+    public static final int ENERGY_BUDGET = GameRules.getDefault().getPlayerEnergy();
+
+    /**
+     * The mining strength the player starts every level with.
+     */
+    private static final int MINING_STRENGTH = GameRules.getDefault().getMiningStrength();
+
+    /**
+     * Distance, predecessor and known cost-to-BASE arrays for every tile,
+     * reused between calls and grown if a larger level is connected.
+     */
+    private int[] dist = new int[0];
+    private int[] prev = new int[0];
+    private int[] costToBase = new int[0];
+    private int[] chain = new int[0];
+    private final IntMinHeap heap = new IntMinHeap(1024);
+
+    /**
+     * Connects a level so that every ore tile can be reached from a BASE tile
+     * within ENERGY_BUDGET. If the level has no BASE tile one is placed first,
+     * at a random position or the next tile after it that is not ore, so the
+     * ore in the level is not changed. Tiles are reset in the level array.
+     *
+     * @param level the level to connect
+     * @param rng the random number generator used to place a missing BASE
+     * @return the number of tiles that were changed
+     */
+    public int connect(Tile[][] level, Random rng) {
+        int width = level.length;
+        int height = level[0].length;
+        int cells = width * height;
+        if (dist.length < cells) {
+            dist = new int[cells];
+            prev = new int[cells];
+            costToBase = new int[cells];
+            chain = new int[cells];
+        }
+        int changed = 0;
+
+        heap.clear();
+        Arrays.fill(dist, 0, cells, Integer.MAX_VALUE);
+        Arrays.fill(costToBase, 0, cells, -1);
+        for (int i = 0; i < width; i++) {
+            for (int j = 0; j < height; j++) {
+                if (level[i][j].getType() == TileType.BASE) {
+                    int cell = i * height + j;
+                    dist[cell] = 0;
+                    prev[cell] = -1;
+                    costToBase[cell] = 0;
+                    heap.push(0, cell);
+                }
+            }
+        }
+        if (heap.isEmpty()) {
+            int cell = rng.nextInt(width) * height + rng.nextInt(height);
+            for (int tries = 1; tries < cells && isOre(level[cell / height][cell % height].getType()); tries++) {
+                cell = (cell + 1) % cells;   //only a level made of nothing but ore loses an ore tile
+            }
+            level[cell / height][cell % height].reset(TileType.BASE);
+            dist[cell] = 0;
+            prev[cell] = -1;
+            costToBase[cell] = 0;
+            heap.push(0, cell);
+            changed++;
+        }
+
+        while (!heap.isEmpty()) {
+            int key = heap.peekKey();
+            int cell = heap.pop();
+            if (key > dist[cell]) {
+                continue;
+            }
+            int x = cell / height;
+            int y = cell % height;
+            if (y > 0) {
+                relax(level, cell, x, y - 1, height);
+            }
+            if (y < height - 1) {
+                relax(level, cell, x, y + 1, height);
+            }
+            if (x > 0) {
+                relax(level, cell, x - 1, y, height);
+            }
+            if (x < width - 1) {
+                relax(level, cell, x + 1, y, height);
+            }
+        }
+
+        for (int i = 0; i < width; i++) {
+            for (int j = 0; j < height; j++) {
+                if (isOre(level[i][j].getType())) {
+                    changed += repair(level, prev[i * height + j], height);
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Updates the distance of a neighbouring tile if the route through the
+     * given cell is cheaper than the best route found so far.
+     */
+    private void relax(Tile[][] level, int from, int x, int y, int height) {
+        int to = x * height + y;
+        int candidate = dist[from] + cost(level[x][y]);
+        if (candidate < dist[to]) {
+            dist[to] = candidate;
+            prev[to] = from;
+            heap.push(candidate, to);
+        }
+    }
+
+    /**
+     * Makes sure the tunnel that ends at the given cell costs no more than
+     * ENERGY_BUDGET, softening its tiles if needed. The walk towards the BASE
+     * stops at the first tile whose cost to the BASE is already known, so
+     * tunnels that share tiles are only walked once.
+     *
+     * @return the number of tiles that were changed
+     */
+    private int repair(Tile[][] level, int start, int height) {
+        int length = 0;
+        int total = 0;
+        int cell = start;
+        while (costToBase[cell] == -1) {
+            chain[length++] = cell;
+            total += cost(level[cell / height][cell % height]);
+            cell = prev[cell];
+        }
+        int known = costToBase[cell];
+        total += known;
+
+        int changed = 0;
+        //soften the most expensive tiles first: ROCK, then HARD_DIRT, then DIRT
+        TileType[] from = {TileType.ROCK, TileType.HARD_DIRT, TileType.DIRT};
+        TileType[] to = {TileType.DIRT, TileType.DIRT, TileType.EMPTY};
+        for (int pass = 0; pass < from.length && total > ENERGY_BUDGET; pass++) {
+            for (int k = 0; k < length && total > ENERGY_BUDGET; k++) {
+                int x = chain[k] / height;
+                int y = chain[k] % height;
+                if (level[x][y].getType() == from[pass]) {
+                    int before = cost(level[x][y]);
+                    level[x][y].reset(to[pass]);
+                    total -= before - cost(level[x][y]);
+                    changed++;
+                }
+            }
+        }
+
+        //record the cost to the BASE of every tile on the walked part of the chain
+        int remaining = known;
+        for (int k = length - 1; k >= 0; k--) {
+            remaining += cost(level[chain[k] / height][chain[k] % height]);
+            costToBase[chain[k]] = remaining;
+        }
+        return changed;
+    }
+
+    /**
+     * Calculates the energy needed to mine through a tile at the starting
+     * mining strength, following the rules in GameEngine.movePlayer(): each hit
+     * reduces durability by the mining strength and costs the durability that
+     * remains. EMPTY and BASE tiles cost nothing, and so does ore, as the
+     * class comment explains.
+     */
+    private static int cost(Tile tile) {
+        if (isOre(tile.getType())) {
+            return 0;
+        }
+        int energy = 0;
+        for (int d = tile.getDurability() - MINING_STRENGTH; d > 0; d -= MINING_STRENGTH) {
+            energy += d;
+        }
+        return energy;
+    }
+
+    private static boolean isOre(TileType type) {
+        return type == TileType.COPPER || type == TileType.SILVER || type == TileType.URANIUM;
+    }
+
+    /**
+     * Connects randomly generated levels of increasing size and reports the
+     * time taken per tile. Usage: LevelConnector [largest size] [seed]
+     *
+     * @param args optional largest level width/height and seed
+     */
+    public static void main(String[] args) {
+        int largest = args.length > 0 ? Integer.parseInt(args[0]) : 2048;
+        Random rng = new Random(args.length > 1 ? Long.parseLong(args[1]) : 123);
+        LevelConnector connector = new LevelConnector();
+        for (int size = 64; size <= largest; size *= 2) {
+            Tile[][] level = GameEngine.randomLevel(rng, size, size, 1);
+            long start = System.nanoTime();
+            int changed = connector.connect(level, rng);
+            long nanos = System.nanoTime() - start;
+            System.out.printf("%dx%d: %d tiles changed in %.1f ms (%.1f ns/tile)%n",
+                    size, size, changed, nanos / 1e6, (double) nanos / (size * size));
+        }
+    }
+}
@@ -0,0 +1,613 @@
+package uk.ac.bradford.diggame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import uk.ac.bradford.diggame.Tile.TileType;
+
+/**
+ * The LevelEvaluator class estimates how playable a generated level is before
+ * it is shown to the player. It runs a number of seeded, simulated
+ * playthroughs of a level in parallel on a pool of worker threads. Each
+ * playthrough is a simple bot that repeatedly digs its way to one of the
+ * nearest ore tiles and returns to the BASE when it runs low on energy, using
+ * the same mining and energy rules as the GameEngine (moles are not simulated).
+ *
+ * The results of the playthroughs are combined into an Evaluation, which gives
+ * the estimated completion probability and turn count of the level and
+ * whether the level should be accepted or regenerated.
+ */
+public class LevelEvaluator {
+
+    /**
+     * The maximum energy of the simulated player and the energy it gains each
+     * turn, taken from the GameRules.
+     */
+    private static final int MAX_ENERGY = GameRules.getDefault().getPlayerEnergy();
+    private static final int ENERGY_PER_TURN = GameRules.getDefault().getEnergyPerTurn();
+
+    /**
+     * The mining strength of the simulated player before and after mining a
+     * URANIUM tile, taken from the GameRules.
+     */
+    private static final int BASE_STRENGTH = GameRules.getDefault().getMiningStrength();
+    private static final int URANIUM_STRENGTH = GameRules.getDefault().getUraniumMiningStrength();
+
+    /**
+     * The number of turns after which a simulated playthrough gives up and
+     * counts as a failure to complete the level.
+     */
+    private static final int MAX_TURNS = 20000;
+
+    /**
+     * The fraction of playthroughs that must complete a level for it to be
+     * accepted.
+     */
+    private static final double MIN_COMPLETION_RATE = 0.5;
+
+    /**
+     * Levels that are completed in fewer turns than this on average are
+     * considered trivial and are rejected.
+     */
+    private static final int MIN_MEAN_TURNS = 40;
+
+    /**
+     * The number of simulated playthroughs run for every evaluated level.
+     */
+    private final int playthroughs;
+
+    /**
+     * The worker threads that run the playthroughs.
+     */
+    private final ExecutorService pool;
+
+    /**
+     * Counters used to report how many levels and playthroughs have been
+     * evaluated, and how much time was spent doing it.
+     */
+    private final AtomicLong levelsEvaluated = new AtomicLong();
+    private final AtomicLong playthroughsRun = new AtomicLong();
+    private final AtomicLong nanosSpent = new AtomicLong();
+
+    /**
+     * Arrays reused by every evaluation and playthrough run on a thread: the
+     * copy of the level made by evaluate() on the calling thread, and the
+     * working state of a playthrough on each worker thread. A playthrough
+     * abandoned at a deadline may still be running when the next evaluation
+     * starts, so its arrays cannot belong to the Playthrough task itself, and
+     * the copy of the level it reads from is given up by the calling thread
+     * rather than overwritten by the next evaluation.
+     */
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * Creates an evaluator that runs the given number of playthroughs per
+     * level, using one worker thread for every available processor.
+     *
+     * @param playthroughs the number of simulated playthroughs run per level
+     */
+    public LevelEvaluator(int playthroughs) {
+        this(playthroughs, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates an evaluator that runs the given number of playthroughs per
+     * level on a fixed number of worker threads. The worker threads are daemon
+     * threads so they never stop the game from exiting.
+     *
+     * @param playthroughs the number of simulated playthroughs run per level
+     * @param threads the number of worker threads to use
+     */
+    public LevelEvaluator(int playthroughs, int threads) {
+        this.playthroughs = playthroughs;
+        this.pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "level-evaluator");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Evaluates a level by running every simulated playthrough in parallel to
+     * the end, however long that takes. The result depends only on the level
+     * and the seed, never on how busy the machine is, so this is the method
+     * for games that must play out the same way every time they are run with
+     * the same seed. The level array is not modified.
+     *
+     * @param level the level to evaluate
+     * @param seed the seed used to derive the seed of every playthrough
+     * @return the Evaluation of the level
+     */
+    public Evaluation evaluate(Tile[][] level, long seed) {
+        return evaluate(level, seed, 0, false);
+    }
+
+    /**
+     * Evaluates a level by running the simulated playthroughs in parallel.
+     * Playthroughs that have not finished when the deadline passes are
+     * abandoned and are not counted, so this method always returns shortly
+     * after the deadline. The level array is not modified.
+     *
+     * @param level the level to evaluate
+     * @param seed the seed used to derive the seed of every playthrough, so
+     * that the same seed always gives the same evaluation
+     * @param deadline the value of System.nanoTime() by which the evaluation
+     * must finish
+     * @return the Evaluation of the level
+     */
+    public Evaluation evaluate(Tile[][] level, long seed, long deadline) {
+        return evaluate(level, seed, deadline, true);
+    }
+
+    private Evaluation evaluate(Tile[][] level, long seed, long deadline, boolean timed) {
+        long start = System.nanoTime();
+        int width = level.length;
+        int height = level[0].length;
+        Scratch scratch = SCRATCH.get();
+        scratch.fitLevel(width * height);
+        byte[] types = scratch.levelTypes;
+        int[] durability = scratch.levelDurability;
+        int base = -1;
+        int ore = 0;
+        for (int i = 0; i < width; i++) {
+            for (int j = 0; j < height; j++) {
+                int cell = i * height + j;
+                TileType type = level[i][j].getType();
+                types[cell] = (byte) type.ordinal();
+                durability[cell] = level[i][j].getDurability();
+                if (type == TileType.BASE && base == -1) {
+                    base = cell;
+                }
+                if (isOre(types[cell])) {
+                    ore++;
+                }
+            }
+        }
+        if (base == -1) {
+            return new Evaluation(false, ore, 0, 0, 0, "no BASE tile");
+        }
+        if (ore == 0) {
+            return new Evaluation(false, ore, 0, 0, 0, "no ore tiles");
+        }
+
+        List<Playthrough> tasks = new ArrayList<>(playthroughs);
+        for (int k = 0; k < playthroughs; k++) {
+            tasks.add(new Playthrough(types, durability, width, height, base, ore,
+                    seed * 31 + k, deadline, timed));
+        }
+        int run = 0;
+        int completed = 0;
+        long totalTurns = 0;
+        boolean abandoned = false;
+        try {
+            List<Future<Integer>> results = timed ? pool.invokeAll(tasks,
+                    Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS) : pool.invokeAll(tasks);
+            for (Future<Integer> f : results) {
+                try {
+                    int turns = f.get();
+                    if (turns == Playthrough.ABANDONED) {
+                        continue;
+                    }
+                    run++;
+                    if (turns >= 0) {
+                        completed++;
+                        totalTurns += turns;
+                    }
+                } catch (CancellationException e) {
+                    //playthrough did not finish in time, so it is not counted
+                    abandoned = true;
+                } catch (ExecutionException e) {
+                    //playthrough failed, so it is not counted
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abandoned = true;
+        }
+        if (abandoned) {
+            scratch.releaseLevel();     //cancelled playthroughs may still be copying it
+        }
+        levelsEvaluated.incrementAndGet();
+        playthroughsRun.addAndGet(run);
+        nanosSpent.addAndGet(System.nanoTime() - start);
+
+        if (run == 0) {
+            return new Evaluation(false, ore, 0, 0, 0, "out of time");
+        }
+        double rate = (double) completed / run;
+        double meanTurns = completed == 0 ? 0 : (double) totalTurns / completed;
+        if (rate < MIN_COMPLETION_RATE) {
+            return new Evaluation(false, ore, run, rate, meanTurns, "rarely completed");
+        }
+        if (meanTurns < MIN_MEAN_TURNS) {
+            return new Evaluation(false, ore, run, rate, meanTurns, "trivial");
+        }
+        return new Evaluation(true, ore, run, rate, meanTurns, "ok");
+    }
+
+    /**
+     * @return the number of levels evaluated per second of evaluation time
+     */
+    public double getEvaluationsPerSecond() {
+        long nanos = nanosSpent.get();
+        return nanos == 0 ? 0 : levelsEvaluated.get() * 1e9 / nanos;
+    }
+
+    /**
+     * @return the number of simulated playthroughs run per second of
+     * evaluation time
+     */
+    public double getPlaythroughsPerSecond() {
+        long nanos = nanosSpent.get();
+        return nanos == 0 ? 0 : playthroughsRun.get() * 1e9 / nanos;
+    }
+
+    /**
+     * Stops the worker threads of this evaluator.
+     */
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Checks whether a tile type ordinal is one of the ore types.
+     *
+     * @param type the ordinal of a TileType
+     * @return true for COPPER, SILVER and URANIUM
+     */
+    private static boolean isOre(byte type) {
+        return type == TileType.COPPER.ordinal() || type == TileType.SILVER.ordinal()
+                || type == TileType.URANIUM.ordinal();
+    }
+
+    /**
+     * Checks whether the player can walk onto a tile type without mining it.
+     *
+     * @param type the ordinal of a TileType
+     * @return true for EMPTY and BASE
+     */
+    private static boolean isPassable(byte type) {
+        return type == TileType.EMPTY.ordinal() || type == TileType.BASE.ordinal();
+    }
+
+    /**
+     * Arrays kept by one thread between evaluations, reallocated only when the
+     * size of the level changes.
+     */
+    private static class Scratch {
+
+        byte[] levelTypes = new byte[0];
+        int[] levelDurability = new int[0];
+
+        byte[] types = new byte[0];
+        int[] durability = new int[0];
+        int[] dist = new int[0];
+        int[] prev = new int[0];
+        int[] path = new int[0];
+        final IntMinHeap heap = new IntMinHeap(1024);
+        final int[] nearest = new int[3];
+        final Random rng = new Random();
+
+        void fitLevel(int cells) {
+            if (levelTypes.length != cells) {
+                levelTypes = new byte[cells];
+                levelDurability = new int[cells];
+            }
+        }
+
+        /**
+         * Gives up the copy of the level, so the next evaluation on this
+         * thread copies its level into new arrays.
+         */
+        void releaseLevel() {
+            levelTypes = new byte[0];
+            levelDurability = new int[0];
+        }
+
+        void fitPlaythrough(int cells) {
+            if (types.length != cells) {
+                types = new byte[cells];
+                durability = new int[cells];
+                dist = new int[cells];
+                prev = new int[cells];
+                path = new int[cells];
+            }
+        }
+    }
+
+    /**
+     * The result of evaluating a level.
+     */
+    public static class Evaluation {
+
+        private final boolean acceptable;
+        private final int oreTiles;
+        private final int playthroughs;
+        private final double completionRate;
+        private final double meanTurns;
+        private final String reason;
+
+        Evaluation(boolean acceptable, int oreTiles, int playthroughs,
+                double completionRate, double meanTurns, String reason) {
+            this.acceptable = acceptable;
+            this.oreTiles = oreTiles;
+            this.playthroughs = playthroughs;
+            this.completionRate = completionRate;
+            this.meanTurns = meanTurns;
+            this.reason = reason;
+        }
+
+        /**
+         * @return true if the level should be shown to the player
+         */
+        public boolean isAcceptable() {
+            return acceptable;
+        }
+
+        /**
+         * @return the number of ore tiles in the level
+         */
+        public int getOreTiles() {
+            return oreTiles;
+        }
+
+        /**
+         * @return the number of playthroughs that finished before the deadline
+         */
+        public int getPlaythroughs() {
+            return playthroughs;
+        }
+
+        /**
+         * @return the fraction of finished playthroughs that completed the
+         * level, between 0 and 1
+         */
+        public double getCompletionRate() {
+            return completionRate;
+        }
+
+        /**
+         * @return the mean number of turns taken by playthroughs that
+         * completed the level, or 0 if none did
+         */
+        public double getMeanTurns() {
+            return meanTurns;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (%s): %d ore, %d playthroughs, %.0f%% completed, %.0f turns",
+                    acceptable ? "accepted" : "rejected", reason, oreTiles,
+                    playthroughs, completionRate * 100, meanTurns);
+        }
+    }
+
+    /**
+     * One simulated playthrough of a level. The call() method returns the
+     * number of turns taken to complete the level, -1 if the level was not
+     * completed within MAX_TURNS, or ABANDONED if it is timed and the deadline
+     * passed first.
+     */
+    private static class Playthrough implements Callable<Integer> {
+
+        static final int ABANDONED = -2;
+
+        private final byte[] types;
+        private final int[] durability;
+        private final int width;
+        private final int height;
+        private final int base;
+        private final int oreTiles;
+        private final long seed;
+        private final long deadline;
+        private final boolean timed;
+
+        Playthrough(byte[] types, int[] durability, int width, int height,
+                int base, int oreTiles, long seed, long deadline, boolean timed) {
+            this.types = types;
+            this.durability = durability;
+            this.width = width;
+            this.height = height;
+            this.base = base;
+            this.oreTiles = oreTiles;
+            this.seed = seed;
+            this.deadline = deadline;
+            this.timed = timed;
+        }
+
+        @Override
+        public Integer call() {
+            int cells = width * height;
+            Scratch scratch = SCRATCH.get();
+            scratch.fitPlaythrough(cells);
+            byte[] t = scratch.types;
+            int[] d = scratch.durability;
+            System.arraycopy(types, 0, t, 0, cells);
+            System.arraycopy(durability, 0, d, 0, cells);
+            Random rng = scratch.rng;
+            rng.setSeed(seed);
+            int[] dist = scratch.dist;
+            int[] prev = scratch.prev;
+            int[] path = scratch.path;
+            IntMinHeap heap = scratch.heap;
+            int[] nearest = scratch.nearest;
+            int pathLength = 0;
+            int pathIndex = 0;
+
+            int pos = base;
+            int energy = MAX_ENERGY;
+            int strength = BASE_STRENGTH;
+            int ore = oreTiles;
+
+            for (int turn = 0; turn < MAX_TURNS; turn++) {
+                if (ore == 0 && t[pos] == TileType.BASE.ordinal()) {
+                    return turn;
+                }
+                if ((turn & 63) == 0 && (timed && System.nanoTime() > deadline
+                        || Thread.currentThread().isInterrupted())) {
+                    return ABANDONED;
+                }
+                if (pathIndex >= pathLength) {
+                    //plan a route to one of the nearest ore tiles, or home
+                    int target;
+                    if (ore == 0) {
+                        search(t, d, strength, pos, base, dist, prev, heap, nearest);
+                        target = base;
+                    } else {
+                        int found = search(t, d, strength, pos, -1, dist, prev, heap, nearest);
+                        target = found == 0 ? -1 : nearest[rng.nextInt(found)];
+                    }
+                    if (target == -1 || dist[target] == Integer.MAX_VALUE) {
+                        return -1;
+                    }
+                    pathLength = tracePath(prev, pos, target, path);
+                    pathIndex = 0;
+                }
+
+                int next = path[pathIndex];
+                boolean onBase = t[pos] == TileType.BASE.ordinal();
+                if (isPassable(t[next])) {
+                    pos = next;
+                    pathIndex++;
+                } else if (energy >= d[next]) {
+                    d[next] -= strength;
+                    if (d[next] <= 0) {
+                        d[next] = 0;
+                        if (t[next] == TileType.URANIUM.ordinal()) {
+                            strength = URANIUM_STRENGTH;
+                        }
+                        if (isOre(t[next])) {
+                            ore--;
+                        }
+                        t[next] = (byte) TileType.EMPTY.ordinal();
+                    }
+                    energy = Math.max(0, energy - d[next]);
+                } else if (!onBase) {
+                    //too tired to dig, so head back to the BASE to refill
+                    search(t, d, strength, pos, base, dist, prev, heap, nearest);
+                    pathLength = tracePath(prev, pos, base, path);
+                    pathIndex = 0;
+                }
+                if (onBase) {
+                    energy = MAX_ENERGY;
+                }
+                energy = Math.min(MAX_ENERGY, energy + ENERGY_PER_TURN);
+            }
+            return -1;
+        }
+
+        /**
+         * Runs Dijkstra's algorithm from the given cell, where the cost of a
+         * cell is the number of turns needed to dig through and step into it.
+         * The search stops once the target cell is settled or, if the target
+         * is -1, once the nearest ore tiles have been written into the nearest
+         * array, and returns the number of ore tiles found.
+         */
+        private int search(byte[] t, int[] d, int strength, int from, int target,
+                int[] dist, int[] prev, IntMinHeap heap, int[] nearest) {
+            Arrays.fill(dist, Integer.MAX_VALUE);
+            heap.clear();
+            dist[from] = 0;
+            prev[from] = -1;
+            heap.push(0, from);
+            int found = 0;
+            while (!heap.isEmpty()) {
+                int key = heap.peekKey();
+                int cell = heap.pop();
+                if (key > dist[cell]) {
+                    continue;
+                }
+                if (cell == target) {
+                    break;
+                }
+                if (target == -1 && isOre(t[cell])) {
+                    nearest[found++] = cell;
+                    if (found == nearest.length) {
+                        break;
+                    }
+                    continue;   //ore is a destination, not a route to pass through
+                }
+                int x = cell / height;
+                int y = cell % height;
+                if (y > 0) {
+                    relax(t, d, strength, cell, cell - 1, dist, prev, heap);
+                }
+                if (y < height - 1) {
+                    relax(t, d, strength, cell, cell + 1, dist, prev, heap);
+                }
+                if (x > 0) {
+                    relax(t, d, strength, cell, cell - height, dist, prev, heap);
+                }
+                if (x < width - 1) {
+                    relax(t, d, strength, cell, cell + height, dist, prev, heap);
+                }
+            }
+            return found;
+        }
+
+        private void relax(byte[] t, int[] d, int strength, int from, int to,
+                int[] dist, int[] prev, IntMinHeap heap) {
+            int cost = isPassable(t[to]) ? 1 : (d[to] + strength - 1) / strength + 1;
+            int candidate = dist[from] + cost;
+            if (candidate < dist[to]) {
+                dist[to] = candidate;
+                prev[to] = from;
+                heap.push(candidate, to);
+            }
+        }
+
+        /**
+         * Writes the cells on the route from one cell to another into the
+         * path array (excluding the starting cell) and returns its length.
+         */
+        private int tracePath(int[] prev, int from, int to, int[] path) {
+            int length = 0;
+            for (int cell = to; cell != from; cell = prev[cell]) {
+                length++;
+            }
+            int i = length;
+            for (int cell = to; cell != from; cell = prev[cell]) {
+                path[--i] = cell;
+            }
+            return length;
+        }
+    }
+
+    /**
+     * Evaluates a number of randomly generated levels and reports the
+     * evaluation rate. Usage: LevelEvaluator [levels] [playthroughs] [seed]
+     *
+     * @param args optional number of levels, playthroughs per level and seed
+     */
+    public static void main(String[] args) {
+        int levels = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int playthroughs = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 123;
+        LevelEvaluator evaluator = new LevelEvaluator(playthroughs);
+        Random rng = new Random(seed);
+        int accepted = 0;
+        for (int i = 0; i < levels; i++) {
+            Tile[][] level = GameEngine.randomLevel(rng,
+                    GameEngine.LEVEL_WIDTH, GameEngine.LEVEL_HEIGHT, 1);
+            Evaluation e = evaluator.evaluate(level, rng.nextLong(),
+                    System.nanoTime() + TimeUnit.SECONDS.toNanos(5));
+            if (e.isAcceptable()) {
+                accepted++;
+            }
+            System.out.println("level " + i + ": " + e);
+        }
+        System.out.printf("%d/%d accepted, %.1f levels/s, %.0f playthroughs/s on %d threads%n",
+                accepted, levels, evaluator.getEvaluationsPerSecond(),
+                evaluator.getPlaythroughsPerSecond(), Runtime.getRuntime().availableProcessors());
+        evaluator.shutdown();
+    }
+}
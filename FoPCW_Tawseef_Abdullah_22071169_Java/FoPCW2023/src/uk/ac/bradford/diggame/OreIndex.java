@@ -0,0 +1,395 @@
+package uk.ac.bradford.diggame;
+
+import java.util.Random;
+import uk.ac.bradford.diggame.Tile.TileType;
+
+/**
+ * The OreIndex class keeps track of where the ore tiles (COPPER, SILVER and
+ * URANIUM) of a grid are, so that the nearest ore to a point, whether a
+ * rectangle has any ore and how much ore is left can be found without looking
+ * at every tile.
+ *
+ * The index is a pyramid of ore counts. Level 0 has one entry per tile, 1 for
+ * ore and 0 for anything else. Each entry of level k counts the ore in a block
+ * of 2^k by 2^k tiles, the four blocks of level k - 1 it is made of, up to a
+ * single top block covering the whole grid. Removing an ore tile subtracts one
+ * from the block holding it on each level, so it takes time in proportion to
+ * the logarithm of the grid size. Queries start from the top block and only
+ * look inside blocks that hold ore and overlap what they are looking for, so
+ * large areas with no ore are skipped in one step.
+ *
+ * Distances are Manhattan distances, the number of moves between two tiles
+ * when nothing is in the way, which is how the player and moles move.
+ * Positions follow the usual co-ordinate system: 0,0 is the top left tile.
+ */
+public class OreIndex {
+
+    /**
+     * Nodes of the pyramid are packed into an int for the search heap, with
+     * the level in the low LEVEL_BITS bits and the index of the block on that
+     * level above them, which limits grids to 2^26 tiles.
+     */
+    private static final int LEVEL_BITS = 5;
+    private static final int LEVEL_MASK = (1 << LEVEL_BITS) - 1;
+    private static final long MAX_TILES = 1L << (Integer.SIZE - 1 - LEVEL_BITS);
+
+    private final int width;
+    private final int height;
+
+    /**
+     * The number of levels of blocks above the tiles. The block on the top
+     * level covers the whole grid.
+     */
+    private final int levels;
+
+    /**
+     * 1 for each ore tile and 0 for any other tile, at x * height + y.
+     */
+    private final byte[] ore;
+
+    /**
+     * The ore count of each block on levels 1 and up, at bx * levelHeight[k]
+     * + by for the block in column bx and row by of level k. counts[0] is not
+     * used.
+     */
+    private final int[][] counts;
+    private final int[] levelWidth;
+    private final int[] levelHeight;
+
+    /**
+     * The nodes still to be looked at by nearest(), closest first.
+     */
+    private final IntMinHeap heap = new IntMinHeap(64);
+
+    /**
+     * Creates an index for a grid with no ore.
+     *
+     * @param width the width of the grid in tiles
+     * @param height the height of the grid in tiles
+     */
+    public OreIndex(int width, int height) {
+        if ((long) width * height > MAX_TILES) {
+            throw new IllegalArgumentException("An OreIndex can hold at most " + MAX_TILES + " tiles");
+        }
+        this.width = width;
+        this.height = height;
+        int top = 0;
+        while ((1 << top) < Math.max(width, height)) {
+            top++;
+        }
+        levels = top;
+        ore = new byte[width * height];
+        counts = new int[levels + 1][];
+        levelWidth = new int[levels + 1];
+        levelHeight = new int[levels + 1];
+        for (int k = 0; k <= levels; k++) {
+            levelWidth[k] = ((width - 1) >> k) + 1;
+            levelHeight[k] = ((height - 1) >> k) + 1;
+            if (k > 0) {
+                counts[k] = new int[levelWidth[k] * levelHeight[k]];
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the index from the tile types of a grid, in time in proportion
+     * to the number of tiles.
+     *
+     * @param types the tile types, the same size as this index
+     */
+    public void build(PackedGrid types) {
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                int type = types.getType(x, y).ordinal();
+                ore[x * height + y] = (byte) (type >= PackedGrid.ORE_FIRST && type <= PackedGrid.ORE_LAST ? 1 : 0);
+            }
+        }
+        for (int k = 1; k <= levels; k++) {
+            int[] level = counts[k];
+            for (int bx = 0; bx < levelWidth[k]; bx++) {
+                for (int by = 0; by < levelHeight[k]; by++) {
+                    int sum = 0;
+                    for (int cx = 2 * bx; cx <= 2 * bx + 1 && cx < levelWidth[k - 1]; cx++) {
+                        for (int cy = 2 * by; cy <= 2 * by + 1 && cy < levelHeight[k - 1]; cy++) {
+                            sum += count(k - 1, cx, cy);
+                        }
+                    }
+                    level[bx * levelHeight[k] + by] = sum;
+                }
+            }
+        }
+    }
+
+    /**
+     * Records that an ore tile has been destroyed.
+     *
+     * @param x the X position of the tile
+     * @param y the Y position of the tile
+     * @return true if the tile was ore, false if the index already had no ore
+     * there
+     */
+    public boolean remove(int x, int y) {
+        return change(x, y, 0);
+    }
+
+    /**
+     * Records that a tile has become ore.
+     *
+     * @param x the X position of the tile
+     * @param y the Y position of the tile
+     * @return true if the tile was not ore before
+     */
+    public boolean add(int x, int y) {
+        return change(x, y, 1);
+    }
+
+    private boolean change(int x, int y, int value) {
+        int cell = x * height + y;
+        int delta = value - ore[cell];
+        if (delta == 0) {
+            return false;
+        }
+        ore[cell] = (byte) value;
+        for (int k = 1; k <= levels; k++) {
+            counts[k][(x >> k) * levelHeight[k] + (y >> k)] += delta;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of ore tiles left in the grid
+     */
+    public int getRemaining() {
+        return levels == 0 ? ore[0] : counts[levels][0];
+    }
+
+    /**
+     * @param x the X position of a tile
+     * @param y the Y position of a tile
+     * @return true if the tile is ore
+     */
+    public boolean isOre(int x, int y) {
+        return ore[x * height + y] != 0;
+    }
+
+    private int count(int k, int bx, int by) {
+        return k == 0 ? ore[bx * height + by] : counts[k][bx * levelHeight[k] + by];
+    }
+
+    /**
+     * @param x the X position of the left column of the rectangle
+     * @param y the Y position of the top row of the rectangle
+     * @param w the width of the rectangle in tiles
+     * @param h the height of the rectangle in tiles
+     * @return the number of ore tiles in the rectangle
+     */
+    public int countInRect(int x, int y, int w, int h) {
+        return countIn(levels, 0, 0, Math.max(0, x), Math.max(0, y), Math.min(width, x + w),
+                Math.min(height, y + h), false);
+    }
+
+    /**
+     * @param x the X position of the left column of the rectangle
+     * @param y the Y position of the top row of the rectangle
+     * @param w the width of the rectangle in tiles
+     * @param h the height of the rectangle in tiles
+     * @return true if there is at least one ore tile in the rectangle
+     */
+    public boolean anyOreInRect(int x, int y, int w, int h) {
+        return countIn(levels, 0, 0, Math.max(0, x), Math.max(0, y), Math.min(width, x + w),
+                Math.min(height, y + h), true) > 0;
+    }
+
+    /**
+     * Counts the ore of a block that is inside the rectangle from x0,y0 up to
+     * but not including x1,y1, looking inside the block only if it has ore
+     * and is partly inside the rectangle.
+     *
+     * @param any true to stop as soon as any ore is found
+     */
+    private int countIn(int k, int bx, int by, int x0, int y0, int x1, int y1, boolean any) {
+        int n = count(k, bx, by);
+        if (n == 0) {
+            return 0;
+        }
+        int left = bx << k;
+        int top = by << k;
+        int right = Math.min(width, left + (1 << k));
+        int bottom = Math.min(height, top + (1 << k));
+        if (right <= x0 || left >= x1 || bottom <= y0 || top >= y1) {
+            return 0;
+        }
+        if (left >= x0 && right <= x1 && top >= y0 && bottom <= y1) {
+            return n;
+        }
+        int total = 0;
+        for (int cx = 2 * bx; cx <= 2 * bx + 1 && cx < levelWidth[k - 1]; cx++) {
+            for (int cy = 2 * by; cy <= 2 * by + 1 && cy < levelHeight[k - 1]; cy++) {
+                total += countIn(k - 1, cx, cy, x0, y0, x1, y1, any);
+                if (any && total > 0) {
+                    return total;
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Finds the ore tiles nearest to a position, closest first. Blocks are
+     * looked at in order of their distance from the position, so the search
+     * stops as soon as enough ore tiles have been found and never looks inside
+     * a block that is further away than the last of them.
+     *
+     * @param x the X position to search from
+     * @param y the Y position to search from
+     * @param found an array that is filled with the indexes, x * height + y,
+     * of up to found.length nearest ore tiles
+     * @return the number of ore tiles found, less than found.length only if
+     * there is not that much ore left
+     */
+    public int nearest(int x, int y, int[] found) {
+        heap.clear();
+        int count = 0;
+        if (found.length == 0 || getRemaining() == 0) {
+            return 0;
+        }
+        heap.push(0, levels);   //the top block, index 0
+        while (!heap.isEmpty() && count < found.length) {
+            int node = heap.pop();
+            int k = node & LEVEL_MASK;
+            int index = node >>> LEVEL_BITS;
+            if (k == 0) {
+                found[count++] = index;
+                continue;
+            }
+            int bx = index / levelHeight[k];
+            int by = index % levelHeight[k];
+            for (int cx = 2 * bx; cx <= 2 * bx + 1 && cx < levelWidth[k - 1]; cx++) {
+                for (int cy = 2 * by; cy <= 2 * by + 1 && cy < levelHeight[k - 1]; cy++) {
+                    if (count(k - 1, cx, cy) > 0) {
+                        int child = k == 1 ? cx * height + cy : cx * levelHeight[k - 1] + cy;
+                        heap.push(distance(k - 1, cx, cy, x, y), child << LEVEL_BITS | (k - 1));
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the Manhattan distance from a position to the nearest tile of a
+     * block
+     */
+    private int distance(int k, int bx, int by, int x, int y) {
+        int left = bx << k;
+        int top = by << k;
+        int right = Math.min(width, left + (1 << k)) - 1;
+        int bottom = Math.min(height, top + (1 << k)) - 1;
+        int dx = x < left ? left - x : x > right ? x - right : 0;
+        int dy = y < top ? top - y : y > bottom ? y - bottom : 0;
+        return dx + dy;
+    }
+
+    /**
+     * Times the queries of the index against a scan over every tile on large
+     * grids as their ore is mined away, checking that both give the same
+     * answers. Usage: OreIndex [size...]
+     *
+     * @param args optional widths of the square grids to time
+     */
+    public static void main(String[] args) {
+        int[] sizes = {1024, 4096};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        AliasSampler sampler = GameRules.getDefault().getTileSampler(1);
+        TileType[] types = TileType.values();
+        for (int size : sizes) {
+            PackedGrid grid = new PackedGrid(size, size);
+            Random rng = new Random(1);
+            for (int x = 0; x < size; x++) {
+                for (int y = 0; y < size; y++) {
+                    grid.setType(x, y, types[sampler.sample(rng)]);
+                }
+            }
+            long start = System.nanoTime();
+            OreIndex index = new OreIndex(size, size);
+            index.build(grid);
+            System.out.printf("%dx%d grid: index built in %.1f ms, %d ore tiles%n", size, size,
+                    (System.nanoTime() - start) / 1e6, index.getRemaining());
+            int[] nearest = new int[8];
+            int total = index.getRemaining();
+            for (double keep : new double[]{1, 0.01, 0.0001}) {
+                //choose ore to mine at random until only the given fraction is left
+                int target = (int) (total * keep);
+                int[] mined = new int[index.getRemaining() - target];
+                int removed = 0;
+                while (removed < mined.length) {
+                    int x = rng.nextInt(size);
+                    int y = rng.nextInt(size);
+                    int t = grid.getType(x, y).ordinal();
+                    if (t >= PackedGrid.ORE_FIRST && t <= PackedGrid.ORE_LAST) {
+                        grid.setType(x, y, TileType.EMPTY);
+                        mined[removed++] = x * size + y;
+                    }
+                }
+                start = System.nanoTime();
+                for (int cell : mined) {
+                    index.remove(cell / size, cell % size);
+                }
+                long removeNanos = System.nanoTime() - start;
+                for (int q = 0; q < 2000; q++) {     //warm up the JIT compiler
+                    index.nearest(rng.nextInt(size), rng.nextInt(size), nearest);
+                    index.anyOreInRect(rng.nextInt(size), rng.nextInt(size), size / 8, size / 8);
+                }
+                int queries = 50;
+                long indexNanos = 0;
+                long scanNanos = 0;
+                long rectNanos = 0;
+                long rectScanNanos = 0;
+                for (int q = 0; q < queries; q++) {
+                    int x = rng.nextInt(size);
+                    int y = rng.nextInt(size);
+                    start = System.nanoTime();
+                    int found = index.nearest(x, y, nearest);
+                    indexNanos += System.nanoTime() - start;
+                    start = System.nanoTime();
+                    int best = Integer.MAX_VALUE;
+                    for (int i = 0; i < size; i++) {
+                        for (int j = 0; j < size; j++) {
+                            int t = grid.getType(i, j).ordinal();
+                            if (t >= PackedGrid.ORE_FIRST && t <= PackedGrid.ORE_LAST) {
+                                best = Math.min(best, Math.abs(i - x) + Math.abs(j - y));
+                            }
+                        }
+                    }
+                    scanNanos += System.nanoTime() - start;
+                    int first = found == 0 ? Integer.MAX_VALUE
+                            : Math.abs(nearest[0] / size - x) + Math.abs(nearest[0] % size - y);
+                    if (first != best) {
+                        throw new IllegalStateException("nearest ore at distance " + first + ", scan found " + best);
+                    }
+                    int w = 1 + rng.nextInt(size / 4);
+                    int h = 1 + rng.nextInt(size / 4);
+                    start = System.nanoTime();
+                    boolean any = index.anyOreInRect(x, y, w, h);
+                    rectNanos += System.nanoTime() - start;
+                    start = System.nanoTime();
+                    boolean scanAny = grid.anyOreInRect(x, y, Math.min(w, size - x), Math.min(h, size - y));
+                    rectScanNanos += System.nanoTime() - start;
+                    if (any != scanAny) {
+                        throw new IllegalStateException("any ore in rectangle gave different answers");
+                    }
+                }
+                System.out.printf("  %d ore left (%.1f ns per ore removed): nearest 8 in %.1f us vs %.1f ms for a"
+                        + " scan, any ore in rectangle %.1f us vs %.1f us for a packed scan%n",
+                        index.getRemaining(), removed == 0 ? 0.0 : (double) removeNanos / removed,
+                        indexNanos / 1e3 / queries, scanNanos / 1e6 / queries, rectNanos / 1e3 / queries,
+                        rectScanNanos / 1e3 / queries);
+            }
+        }
+    }
+}
@@ -0,0 +1,462 @@
+package uk.ac.bradford.diggame;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+import uk.ac.bradford.diggame.Tile.TileType;
+
+/**
+ * The PackedGrid class holds the type of every tile of a grid as one byte,
+ * its TileType ordinal, and answers questions about many tiles at once:
+ * how many tiles there are of each type, how many of a type are in a
+ * rectangle, where the first tile of a type is and whether a rectangle has
+ * any ore left. Tiles are stored column by column, at x * height + y, so each
+ * column of a rectangle is one run of bytes.
+ *
+ * Runs of bytes are scanned eight tiles at a time. Eight bytes are read from
+ * the array as one long, and the bytes that match are found for all eight at
+ * once with a few additions and masks (SIMD within a register), then counted
+ * with Long.bitCount(). Every type ordinal is below 128, which keeps each
+ * byte's arithmetic from carrying into the next. The same queries can also be
+ * answered a tile at a time, which the main() benchmark compares against, and
+ * which the whole game uses if the diggame.scalarGrid system property is set
+ * to true.
+ */
+public class PackedGrid {
+
+    private static final TileType[] TYPES = TileType.values();
+
+    /**
+     * The ore types, COPPER, SILVER and URANIUM, have consecutive ordinals,
+     * so ore is any tile whose type is between ORE_FIRST and ORE_LAST.
+     */
+    static final int ORE_FIRST = TileType.COPPER.ordinal();
+    static final int ORE_LAST = TileType.URANIUM.ordinal();
+
+    /**
+     * True to answer queries a tile at a time instead of eight at a time.
+     */
+    private static final boolean SCALAR = Boolean.getBoolean("diggame.scalarGrid");
+
+    /**
+     * Reads eight bytes of a byte array as one long, with the byte at the
+     * lowest index in the lowest bits.
+     */
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class,
+            ByteOrder.LITTLE_ENDIAN);
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    private final int width;
+    private final int height;
+    private final byte[] cells;
+
+    /**
+     * Creates a grid with every tile EMPTY.
+     *
+     * @param width the width of the grid in tiles
+     * @param height the height of the grid in tiles
+     */
+    public PackedGrid(int width, int height) {
+        this.width = width;
+        this.height = height;
+        cells = new byte[width * height];
+    }
+
+    /**
+     * Sets the type of every tile from a level.
+     *
+     * @param level the level to copy, the same size as this grid and indexed
+     * [x][y]
+     */
+    public void copyFrom(Tile[][] level) {
+        for (int i = 0; i < width; i++) {
+            int column = i * height;
+            for (int j = 0; j < height; j++) {
+                cells[column + j] = (byte) level[i][j].getType().ordinal();
+            }
+        }
+    }
+
+    /**
+     * @return the width of the grid in tiles
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the height of the grid in tiles
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @param x the X position of a tile
+     * @param y the Y position of a tile
+     * @return the type of the tile
+     */
+    public TileType getType(int x, int y) {
+        return TYPES[cells[x * height + y]];
+    }
+
+    /**
+     * @param x the X position of a tile
+     * @param y the Y position of a tile
+     * @param type the new type of the tile
+     */
+    public void setType(int x, int y, TileType type) {
+        cells[x * height + y] = (byte) type.ordinal();
+    }
+
+    /**
+     * Counts the tiles of every type.
+     *
+     * @param counts an array with an element for every TileType, which is
+     * filled with the number of tiles of each type, indexed by ordinal
+     * @return the counts array
+     */
+    public int[] histogram(int[] counts) {
+        if (SCALAR) {
+            scalarHistogram(cells, 0, cells.length, counts);
+        } else {
+            histogram(cells, 0, cells.length, counts);
+        }
+        return counts;
+    }
+
+    /**
+     * @param type a type of tile
+     * @return the number of tiles of that type in the grid
+     */
+    public int count(TileType type) {
+        return countBetween(type.ordinal(), type.ordinal(), 0, 0, width, height);
+    }
+
+    /**
+     * @param type a type of tile
+     * @param x the X position of the left column of the rectangle
+     * @param y the Y position of the top row of the rectangle
+     * @param w the width of the rectangle in tiles
+     * @param h the height of the rectangle in tiles
+     * @return the number of tiles of that type in the rectangle
+     */
+    public int countInRect(TileType type, int x, int y, int w, int h) {
+        return countBetween(type.ordinal(), type.ordinal(), x, y, w, h);
+    }
+
+    /**
+     * @return the number of ore tiles in the grid
+     */
+    public int countOre() {
+        return countBetween(ORE_FIRST, ORE_LAST, 0, 0, width, height);
+    }
+
+    /**
+     * @param x the X position of the left column of the rectangle
+     * @param y the Y position of the top row of the rectangle
+     * @param w the width of the rectangle in tiles
+     * @param h the height of the rectangle in tiles
+     * @return true if there is at least one ore tile in the rectangle
+     */
+    public boolean anyOreInRect(int x, int y, int w, int h) {
+        for (int i = x; i < x + w; i++) {
+            int from = i * height + y;
+            boolean found = SCALAR ? scalarIndexBetween(cells, from, from + h, ORE_FIRST, ORE_LAST) >= 0
+                    : indexBetween(cells, from, from + h, ORE_FIRST, ORE_LAST) >= 0;
+            if (found) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the first tile of a type, going down each column in turn from the
+     * left, which is the order nested loops over a Tile[x][y] level visit
+     * tiles in.
+     *
+     * @param type a type of tile
+     * @return the index of the first tile of that type, x * height + y, or -1
+     * if there is none
+     */
+    public int firstIndexOf(TileType type) {
+        int value = type.ordinal();
+        return SCALAR ? scalarIndexBetween(cells, 0, cells.length, value, value)
+                : indexBetween(cells, 0, cells.length, value, value);
+    }
+
+    private int countBetween(int lo, int hi, int x, int y, int w, int h) {
+        if (y == 0 && h == height) {
+            int from = x * height;  //whole columns are one run
+            int to = (x + w) * height;
+            return SCALAR ? scalarCountBetween(cells, from, to, lo, hi) : countBetween(cells, from, to, lo, hi);
+        }
+        int count = 0;
+        for (int i = x; i < x + w; i++) {
+            int from = i * height + y;
+            count += SCALAR ? scalarCountBetween(cells, from, from + h, lo, hi)
+                    : countBetween(cells, from, from + h, lo, hi);
+        }
+        return count;
+    }
+
+    /**
+     * Marks the bytes of a word that are between lo and hi, inclusive, by
+     * setting their top bit. Every byte of the word must be below 128.
+     * Adding 128 - lo to a byte sets its top bit if it is at least lo, and
+     * subtracting it from 128 + hi leaves the top bit set if it is at most hi;
+     * neither carries into the next byte.
+     */
+    private static long between(long word, long loAdd, long hiBase) {
+        return (word + loAdd) & (hiBase - word) & HIGH_BITS;
+    }
+
+    /**
+     * Counts the bytes of a run that are between lo and hi, inclusive, eight
+     * bytes at a time.
+     *
+     * @param a the bytes, each below 128
+     * @param from the index of the first byte of the run
+     * @param to the index after the last byte of the run
+     * @param lo the smallest value to count
+     * @param hi the largest value to count
+     * @return the number of bytes counted
+     */
+    static int countBetween(byte[] a, int from, int to, int lo, int hi) {
+        long loAdd = (0x80 - lo) * ONES;
+        long hiBase = (0x80 + hi) * ONES;
+        int count = 0;
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            count += Long.bitCount(between((long) LONGS.get(a, i), loAdd, hiBase));
+        }
+        return count + scalarCountBetween(a, i, to, lo, hi);
+    }
+
+    /**
+     * Finds the first byte of a run that is between lo and hi, inclusive,
+     * eight bytes at a time.
+     *
+     * @return the index of the byte, or -1 if there is none
+     */
+    static int indexBetween(byte[] a, int from, int to, int lo, int hi) {
+        long loAdd = (0x80 - lo) * ONES;
+        long hiBase = (0x80 + hi) * ONES;
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            long found = between((long) LONGS.get(a, i), loAdd, hiBase);
+            if (found != 0) {
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+        }
+        return scalarIndexBetween(a, i, to, lo, hi);
+    }
+
+    /**
+     * Counts every value in a run of bytes in one pass, eight bytes at a time.
+     * Values below 8 are found from the three low bits of each byte, taken as
+     * three masks with one bit per byte: a byte holds 5, for example, where
+     * bits 0 and 2 are set and bit 1 is not. The matches for each value are
+     * added up in a long that holds eight byte-sized counters, which are
+     * added together every 255 words, before any of them can overflow. Larger
+     * values are counted a byte at a time.
+     */
+    static void histogram(byte[] a, int from, int to, int[] counts) {
+        if (counts.length > 8) {
+            scalarHistogram(a, from, to, counts);
+            return;
+        }
+        Arrays.fill(counts, 0);
+        int i = from;
+        while (i + 8 <= to) {
+            long l0 = 0, l1 = 0, l2 = 0, l3 = 0, l4 = 0, l5 = 0, l6 = 0, l7 = 0;
+            int end = Math.min(to - 7, i + 255 * 8);
+            for (; i < end; i += 8) {
+                long word = (long) LONGS.get(a, i);
+                long b0 = word & ONES;
+                long b1 = (word >>> 1) & ONES;
+                long b2 = (word >>> 2) & ONES;
+                long n0 = b0 ^ ONES;
+                long n2 = b2 ^ ONES;
+                long low0 = (b1 ^ ONES) & n0;
+                long low1 = (b1 ^ ONES) & b0;
+                long low2 = b1 & n0;
+                long low3 = b1 & b0;
+                l0 += n2 & low0;
+                l1 += n2 & low1;
+                l2 += n2 & low2;
+                l3 += n2 & low3;
+                l4 += b2 & low0;
+                l5 += b2 & low1;
+                l6 += b2 & low2;
+                l7 += b2 & low3;
+            }
+            addLanes(counts, 0, l0);
+            addLanes(counts, 1, l1);
+            addLanes(counts, 2, l2);
+            addLanes(counts, 3, l3);
+            addLanes(counts, 4, l4);
+            addLanes(counts, 5, l5);
+            addLanes(counts, 6, l6);
+            addLanes(counts, 7, l7);
+        }
+        for (; i < to; i++) {
+            counts[a[i]]++;
+        }
+    }
+
+    /**
+     * Adds the eight byte-sized counters in a long to the count of a value,
+     * if counts has an element for it.
+     */
+    private static void addLanes(int[] counts, int value, long lanes) {
+        if (value < counts.length) {
+            long pairs = (lanes & 0x00FF00FF00FF00FFL) + ((lanes >>> 8) & 0x00FF00FF00FF00FFL);
+            counts[value] += (int) ((pairs * 0x0001000100010001L) >>> 48);
+        }
+    }
+
+    static int scalarCountBetween(byte[] a, int from, int to, int lo, int hi) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (a[i] >= lo && a[i] <= hi) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    static int scalarIndexBetween(byte[] a, int from, int to, int lo, int hi) {
+        for (int i = from; i < to; i++) {
+            if (a[i] >= lo && a[i] <= hi) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static void scalarHistogram(byte[] a, int from, int to, int[] counts) {
+        Arrays.fill(counts, 0);
+        for (int i = from; i < to; i++) {
+            counts[a[i]]++;
+        }
+    }
+
+    /**
+     * Times each query a tile at a time and eight tiles at a time on random
+     * grids from the size of a level up, checking that both give the same
+     * answers. Usage: PackedGrid [size...]
+     *
+     * @param args optional widths of the square grids to time
+     */
+    public static void main(String[] args) {
+        int[] sizes = {35, 1024, 8192};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        AliasSampler sampler = GameRules.getDefault().getTileSampler(1);
+        for (int size : sizes) {
+            int height = size == 35 ? 18 : size;
+            PackedGrid grid = new PackedGrid(size, height);
+            Random rng = new Random(1);
+            byte[] a = grid.cells;
+            for (int i = 0; i < a.length; i++) {
+                int type = sampler.sample(rng);
+                a[i] = (byte) (type == TileType.BASE.ordinal() ? TileType.DIRT.ordinal() : type);
+            }
+            a[a.length - 3] = (byte) TileType.BASE.ordinal();   //one BASE, near the end
+            int repeats = Math.max(3, 200_000_000 / a.length);
+            int[] counts = new int[TYPES.length];
+            int[] scalarCounts = new int[TYPES.length];
+            System.out.printf("%dx%d grid, %d repeats:%n", size, height, repeats);
+            for (int round = 0; round < 2; round++) {   //the first round warms up the JIT compiler
+                boolean report = round > 0;
+                long start = System.nanoTime();
+                for (int r = 0; r < repeats; r++) {
+                    scalarHistogram(a, 0, a.length, scalarCounts);
+                }
+                long scalar = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int r = 0; r < repeats; r++) {
+                    histogram(a, 0, a.length, counts);
+                }
+                check(Arrays.equals(counts, scalarCounts), "histogram");
+                report(report, "histogram", scalar, System.nanoTime() - start, repeats, a.length);
+
+                long sum = 0;
+                long scalarSum = 0;
+                start = System.nanoTime();
+                for (int r = 0; r < repeats; r++) {
+                    scalarSum += scalarCountBetween(a, 0, a.length, ORE_FIRST, ORE_LAST);
+                }
+                scalar = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int r = 0; r < repeats; r++) {
+                    sum += countBetween(a, 0, a.length, ORE_FIRST, ORE_LAST);
+                }
+                check(sum == scalarSum, "count ore");
+                report(report, "count ore", scalar, System.nanoTime() - start, repeats, a.length);
+
+                int index = 0;
+                int scalarIndex = 0;
+                start = System.nanoTime();
+                for (int r = 0; r < repeats; r++) {
+                    scalarIndex = scalarIndexBetween(a, 0, a.length, TileType.BASE.ordinal(), TileType.BASE.ordinal());
+                }
+                scalar = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int r = 0; r < repeats; r++) {
+                    index = indexBetween(a, 0, a.length, TileType.BASE.ordinal(), TileType.BASE.ordinal());
+                }
+                check(index == scalarIndex && index == a.length - 3, "find BASE");
+                report(report, "find BASE", scalar, System.nanoTime() - start, repeats, a.length);
+
+                int x = size / 4;
+                int w = size / 2;
+                int y = height / 4;
+                int h = height / 2;
+                sum = 0;
+                scalarSum = 0;
+                start = System.nanoTime();
+                for (int r = 0; r < repeats; r++) {
+                    for (int i = x; i < x + w; i++) {
+                        scalarSum += scalarCountBetween(a, i * height + y, i * height + y + h, 1, 1);
+                    }
+                }
+                scalar = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int r = 0; r < repeats; r++) {
+                    for (int i = x; i < x + w; i++) {
+                        sum += countBetween(a, i * height + y, i * height + y + h, 1, 1);
+                    }
+                }
+                check(sum == scalarSum && sum / repeats == grid.countInRect(TileType.DIRT, x, y, w, h),
+                        "count DIRT in rectangle");
+                report(report, "count DIRT in rectangle", scalar, System.nanoTime() - start, repeats, w * h);
+            }
+        }
+    }
+
+    private static void check(boolean same, String query) {
+        if (!same) {
+            throw new IllegalStateException(query + " gave different answers a tile at a time");
+        }
+    }
+
+    private static void report(boolean report, String query, long scalarNanos, long packedNanos, int repeats,
+            int tiles) {
+        if (report) {
+            System.out.printf("  %-24s %8.2f ns/tile scalar, %8.2f ns/tile eight at a time (%.1fx)%n", query,
+                    (double) scalarNanos / repeats / tiles, (double) packedNanos / repeats / tiles,
+                    (double) scalarNanos / packedNanos);
+        }
+    }
+}
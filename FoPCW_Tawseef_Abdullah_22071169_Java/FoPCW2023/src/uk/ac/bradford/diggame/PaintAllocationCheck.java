@@ -0,0 +1,118 @@
+package uk.ac.bradford.diggame;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * The PaintAllocationCheck class checks that drawing a frame does not create
+ * garbage. It draws a large level crowded with moles into an offscreen image
+ * with the same code the Canvas uses to paint the window, measures the bytes
+ * the drawing thread allocates per frame with the ThreadMXBean, and fails if
+ * that is over a threshold. Moles are drawn both from the arrays of their
+ * EntityStore and one Mole object at a time, then with fog-of-war and the
+ * minimap, so every path through the drawing code is covered. It runs with
+ * java.awt.headless=true, so it can be part of an automated build.
+ */
+public class PaintAllocationCheck {
+
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final int LEVEL_WIDTH = 120;
+    private static final int LEVEL_HEIGHT = 70;
+
+    /**
+     * Draws frames and reports the bytes allocated per frame. Usage:
+     * PaintAllocationCheck [moles] [frames] [maxBytesPerFrame]. Exits with
+     * status 1 if any kind of frame allocates more than the limit.
+     *
+     * @param args optional number of moles, number of measured frames and the
+     * most bytes a frame may allocate
+     */
+    public static void main(String[] args) {
+        int moleCount = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int frames = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        long maxBytesPerFrame = args.length > 2 ? Long.parseLong(args[2]) : 64;
+        if (PerfHud.allocatedBytes() == 0) {
+            System.out.println("This JVM cannot measure allocation per thread");
+            System.exit(1);
+        }
+
+        Random rng = new Random(1);
+        Tile[][] level = GameEngine.randomLevel(rng, LEVEL_WIDTH, LEVEL_HEIGHT, 1);
+        Player player = new Player(GameRules.getDefault().getPlayerEnergy(), LEVEL_WIDTH / 2, LEVEL_HEIGHT / 2);
+        player.changeEnergy(-100);
+        EntityStore store = new EntityStore(moleCount);
+        Mole[] inStore = new Mole[moleCount];
+        for (int i = 0; i < moleCount; i++) {
+            inStore[i] = new Mole(store, 100 + i, rng.nextInt(LEVEL_WIDTH), rng.nextInt(LEVEL_HEIGHT));
+            inStore[i].changeFullness(rng.nextInt(100));
+        }
+        Mole[] reversed = new Mole[moleCount];     //not in ID order, so drawn one object at a time
+        for (int i = 0; i < moleCount; i++) {
+            reversed[i] = inStore[moleCount - 1 - i];
+        }
+        Visibility fog = new Visibility(LEVEL_WIDTH, LEVEL_HEIGHT, GameRules.getDefault().getSightRadius());
+        fog.update(level, player.getX(), player.getY());
+
+        Canvas canvas = new Canvas();
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        boolean failed = false;
+        failed |= check(canvas, g, level, player, inStore, null, frames, maxBytesPerFrame, "moles from the store");
+        failed |= check(canvas, g, level, player, reversed, null, frames, maxBytesPerFrame, "moles one at a time");
+        failed |= check(canvas, g, level, player, inStore, fog, frames, maxBytesPerFrame, "with fog-of-war");
+        canvas.toggleMinimap();
+        failed |= check(canvas, g, level, player, inStore, fog, frames, maxBytesPerFrame, "with the minimap");
+        g.dispose();
+        if (failed) {
+            System.exit(1);
+        }
+        System.out.println("No frame allocated more than " + maxBytesPerFrame + " bytes");
+    }
+
+    /**
+     * The number of frames drawn before measuring, the number of frames in a
+     * measured round, and the most rounds measured. Until the JIT compiler has
+     * finished compiling the drawing code, and sometimes for a while after,
+     * Java2D makes a few small objects per frame that compiled code does not.
+     * Garbage made by the drawing code itself shows up in every round, so the
+     * check stops at the first round within the limit and only fails if none
+     * is.
+     */
+    private static final int WARM_UP_FRAMES = 200;
+    private static final int MAX_ROUNDS = 20;
+
+    /**
+     * Draws warm-up frames so the JIT compiler and Java2D have set
+     * themselves up, then measures rounds of frames until one allocates no
+     * more than the limit.
+     *
+     * @return true if every round allocated more than the limit
+     */
+    private static boolean check(Canvas canvas, Graphics2D g, Tile[][] level, Player player, Mole[] moles,
+            Visibility fog, int frames, long maxBytesPerFrame, String name) {
+        canvas.visibility = fog;
+        canvas.update(level, player, moles);
+        for (int i = 0; i < WARM_UP_FRAMES; i++) {
+            canvas.renderFrame(g, WIDTH, HEIGHT);
+        }
+        double perFrame = Double.MAX_VALUE;
+        int rounds = 0;
+        long start = System.nanoTime();
+        while (perFrame > maxBytesPerFrame && rounds < MAX_ROUNDS) {
+            long before = PerfHud.allocatedBytes();
+            for (int i = 0; i < frames; i++) {
+                canvas.renderFrame(g, WIDTH, HEIGHT);
+            }
+            perFrame = Math.min(perFrame, (double) (PerfHud.allocatedBytes() - before) / frames);
+            rounds++;
+        }
+        long nanos = System.nanoTime() - start;
+        boolean failed = perFrame > maxBytesPerFrame;
+        System.out.printf("%-22s %d moles: %.1f bytes and %.2f ms per frame after %d round%s%s%n", name,
+                moles.length, perFrame, nanos / 1e6 / ((long) frames * rounds), rounds, rounds == 1 ? "" : "s",
+                failed ? " FAILED, limit is " + maxBytesPerFrame : "");
+        return failed;
+    }
+}
@@ -0,0 +1,380 @@
+package uk.ac.bradford.diggame;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+/**
+ * The PerfHud class collects performance numbers while the game is running and
+ * draws them over the level: a rolling graph of frame and turn times, the time
+ * and memory used by the last turn, the allocation rate of the thread that
+ * draws the game, garbage collection pauses, the number of live moles and
+ * changed tiles, and the turns and memory held by the undo history.
+ *
+ * Everything the overlay needs is allocated when it is created. Text is
+ * written into a char array and drawn with drawChars, and graphs are drawn with
+ * drawPolyline from int arrays, so drawing the overlay does not itself cause
+ * the allocation it is measuring. All methods must be called on the same
+ * thread, which for the game is the Swing event thread, or while holding the
+ * frame lock of the Canvas, which is how the render thread of an
+ * ActiveRenderer and the GameEngine share it.
+ */
+public class PerfHud {
+
+    /**
+     * The number of frames and turns shown in the graphs.
+     */
+    private static final int SAMPLES = 120;
+
+    /**
+     * The time shown at the top of the graphs, in nanoseconds.
+     */
+    private static final long GRAPH_MAX_NANOS = 33_000_000L;
+
+    private static final int GRAPH_HEIGHT = 40;
+    private static final int LINE_HEIGHT = 14;
+    private static final int PADDING = 6;
+    private static final int WIDTH = SAMPLES * 2 + 2 * PADDING;
+    private static final int HEIGHT = 6 * LINE_HEIGHT + GRAPH_HEIGHT + 3 * PADDING;
+
+    /**
+     * The background is opaque because filling with a translucent colour
+     * allocates a buffer on every call in the software pipeline.
+     */
+    private static final Color BACKGROUND = new Color(20, 20, 20);
+    private static final Color FRAME_COLOUR = Color.GREEN;
+    private static final Color TURN_COLOUR = Color.ORANGE;
+    private static final Font FONT = new Font(Font.MONOSPACED, Font.PLAIN, 12);
+
+    /**
+     * Used to read the memory allocated by the current thread, or null if the
+     * JVM cannot measure it.
+     */
+    private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+
+    /**
+     * Rolling times of recent frames and turns, in nanoseconds, and the index
+     * the next sample of each is written to.
+     */
+    private final long[] frameNanos = new long[SAMPLES];
+    private final long[] turnNanos = new long[SAMPLES];
+    private int nextFrame;
+    private int nextTurn;
+
+    /**
+     * The last turn and frame measured.
+     */
+    private long lastTurnNanos;
+    private long lastTurnBytes;
+    private long lastFrameBytes;
+    private int liveEntities;
+    private int tileChanges;
+    private int undoableTurns;
+    private long historyBytesPerTurn;
+
+    /**
+     * The allocation rate of the drawing thread, measured over about a second.
+     */
+    private long rateStartNanos;
+    private long rateStartBytes;
+    private long bytesPerSecond;
+
+    /**
+     * Garbage collection pauses in the last measured second.
+     */
+    private final GarbageCollectorMXBean[] collectors;
+    private long gcStartCount;
+    private long gcStartMillis;
+    private long gcPauses;
+    private long gcMillis;
+
+    private boolean enabled;
+
+    /**
+     * Buffers used to draw the overlay, allocated once.
+     */
+    private final char[] text = new char[64];
+    private final int[] xs = new int[SAMPLES];
+    private final int[] ys = new int[SAMPLES];
+
+    /**
+     * Creates a performance overlay, which starts hidden.
+     */
+    public PerfHud() {
+        List<GarbageCollectorMXBean> beans = ManagementFactory.getGarbageCollectorMXBeans();
+        collectors = beans.toArray(new GarbageCollectorMXBean[0]);
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+            if (threads.isThreadAllocatedMemorySupported()) {
+                threads.setThreadAllocatedMemoryEnabled(true);
+                return threads;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of bytes the current thread has allocated since it
+     * started, or 0 if the JVM cannot measure it
+     */
+    public static long allocatedBytes() {
+        return THREADS != null ? THREADS.getCurrentThreadAllocatedBytes() : 0;
+    }
+
+    /**
+     * @return the number of bytes every live thread has allocated since it
+     * started, or 0 if the JVM cannot measure it
+     */
+    public static long allThreadsAllocatedBytes() {
+        if (THREADS == null) {
+            return 0;
+        }
+        long total = 0;
+        for (long bytes : THREADS.getThreadAllocatedBytes(THREADS.getAllThreadIds())) {
+            total += Math.max(0, bytes);
+        }
+        return total;
+    }
+
+    /**
+     * Shows the overlay if it is hidden, or hides it if it is showing.
+     */
+    public void toggle() {
+        enabled = !enabled;
+        rateStartNanos = 0;
+    }
+
+    /**
+     * @return true if the overlay is showing, so measurements should be made
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Records the cost of one turn of the game.
+     *
+     * @param nanos the time taken by the turn
+     * @param bytes the memory allocated by the turn
+     * @param entities the number of live moles after the turn
+     * @param changedTiles the number of tiles destroyed during the turn
+     */
+    public void recordTurn(long nanos, long bytes, int entities, int changedTiles) {
+        turnNanos[nextTurn] = nanos;
+        nextTurn = (nextTurn + 1) % SAMPLES;
+        lastTurnNanos = nanos;
+        lastTurnBytes = bytes;
+        liveEntities = entities;
+        tileChanges = changedTiles;
+    }
+
+    /**
+     * Records the size of the undo history after a turn is played or undone.
+     *
+     * @param turns the number of turns that can be undone
+     * @param bytesPerTurn the approximate memory used per turn of history
+     */
+    public void recordHistory(int turns, long bytesPerTurn) {
+        undoableTurns = turns;
+        historyBytesPerTurn = bytesPerTurn;
+    }
+
+    /**
+     * Records the cost of drawing one frame, and updates the allocation rate
+     * and garbage collection numbers about once a second.
+     *
+     * @param nanos the time taken to draw the frame
+     * @param bytes the memory allocated while drawing the frame
+     */
+    public void recordFrame(long nanos, long bytes) {
+        frameNanos[nextFrame] = nanos;
+        nextFrame = (nextFrame + 1) % SAMPLES;
+        lastFrameBytes = bytes;
+
+        long now = System.nanoTime();
+        if (rateStartNanos == 0) {
+            rateStartNanos = now;
+            rateStartBytes = allocatedBytes();
+            gcStartCount = gcCount();
+            gcStartMillis = gcTime();
+        } else if (now - rateStartNanos >= 1_000_000_000L) {
+            long allocated = allocatedBytes();
+            bytesPerSecond = (allocated - rateStartBytes) * 1_000_000_000L / (now - rateStartNanos);
+            long count = gcCount();
+            long millis = gcTime();
+            gcPauses = count - gcStartCount;
+            gcMillis = millis - gcStartMillis;
+            rateStartNanos = now;
+            rateStartBytes = allocated;
+            gcStartCount = count;
+            gcStartMillis = millis;
+        }
+    }
+
+    private long gcCount() {
+        long total = 0;
+        for (int i = 0; i < collectors.length; i++) {
+            total += Math.max(0, collectors[i].getCollectionCount());
+        }
+        return total;
+    }
+
+    private long gcTime() {
+        long total = 0;
+        for (int i = 0; i < collectors.length; i++) {
+            total += Math.max(0, collectors[i].getCollectionTime());
+        }
+        return total;
+    }
+
+    /**
+     * Draws the overlay in the top left corner, if it is showing.
+     *
+     * @param g2 the graphics object to draw with
+     */
+    public void draw(Graphics2D g2) {
+        if (!enabled) {
+            return;
+        }
+        g2.setColor(BACKGROUND);
+        g2.fillRect(0, 0, WIDTH, HEIGHT);
+        g2.setFont(FONT);
+        int y = PADDING + LINE_HEIGHT - 3;
+
+        g2.setColor(FRAME_COLOUR);
+        int n = put(0, "frame ");
+        n = putMillis(n, frameNanos[(nextFrame + SAMPLES - 1) % SAMPLES]);
+        n = put(n, " ms max ");
+        n = putMillis(n, max(frameNanos));
+        n = put(n, " ms");
+        g2.drawChars(text, 0, n, PADDING, y);
+        y += LINE_HEIGHT;
+
+        g2.setColor(TURN_COLOUR);
+        n = put(0, "turn  ");
+        n = putMillis(n, lastTurnNanos);
+        n = put(n, " ms alloc ");
+        n = putLong(n, lastTurnBytes);
+        n = put(n, " B");
+        g2.drawChars(text, 0, n, PADDING, y);
+        y += LINE_HEIGHT;
+
+        g2.setColor(Color.WHITE);
+        n = put(0, "alloc ");
+        n = putLong(n, bytesPerSecond / 1024);
+        n = put(n, " KB/s paint ");
+        n = putLong(n, lastFrameBytes);
+        n = put(n, " B");
+        g2.drawChars(text, 0, n, PADDING, y);
+        y += LINE_HEIGHT;
+
+        n = put(0, "gc    ");
+        n = putLong(n, gcPauses);
+        n = put(n, " pauses ");
+        n = putLong(n, gcMillis);
+        n = put(n, " ms /s");
+        g2.drawChars(text, 0, n, PADDING, y);
+        y += LINE_HEIGHT;
+
+        n = put(0, "moles ");
+        n = putLong(n, liveEntities);
+        n = put(n, " tiles changed ");
+        n = putLong(n, tileChanges);
+        g2.drawChars(text, 0, n, PADDING, y);
+        y += LINE_HEIGHT;
+
+        n = put(0, "undo  ");
+        n = putLong(n, undoableTurns);
+        n = put(n, " turns ");
+        n = putLong(n, historyBytesPerTurn);
+        n = put(n, " B/turn");
+        g2.drawChars(text, 0, n, PADDING, y);
+
+        int bottom = HEIGHT - PADDING;
+        g2.setColor(Color.DARK_GRAY);
+        g2.drawLine(PADDING, bottom - GRAPH_HEIGHT, PADDING + 2 * SAMPLES, bottom - GRAPH_HEIGHT);
+        drawGraph(g2, frameNanos, nextFrame, bottom, FRAME_COLOUR);
+        drawGraph(g2, turnNanos, nextTurn, bottom, TURN_COLOUR);
+    }
+
+    /**
+     * Draws a rolling graph of times, oldest on the left.
+     */
+    private void drawGraph(Graphics2D g2, long[] samples, int next, int bottom, Color colour) {
+        for (int i = 0; i < SAMPLES; i++) {
+            long nanos = Math.min(GRAPH_MAX_NANOS, samples[(next + i) % SAMPLES]);
+            xs[i] = PADDING + 2 * i;
+            ys[i] = bottom - (int) (nanos * GRAPH_HEIGHT / GRAPH_MAX_NANOS);
+        }
+        g2.setColor(colour);
+        g2.drawPolyline(xs, ys, SAMPLES);
+    }
+
+    private static long max(long[] samples) {
+        long max = 0;
+        for (int i = 0; i < samples.length; i++) {
+            max = Math.max(max, samples[i]);
+        }
+        return max;
+    }
+
+    /**
+     * Copies a string into the text buffer at a position.
+     *
+     * @return the position after the string
+     */
+    private int put(int at, String s) {
+        int length = Math.min(s.length(), text.length - at);
+        s.getChars(0, length, text, at);
+        return at + length;
+    }
+
+    /**
+     * Writes a whole number into the text buffer at a position.
+     *
+     * @return the position after the number
+     */
+    private int putLong(int at, long value) {
+        if (value < 0) {
+            at = put(at, "-");
+            value = -value;
+        }
+        int start = at;
+        do {
+            if (at == text.length) {
+                return at;
+            }
+            text[at++] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        for (int i = start, j = at - 1; i < j; i++, j--) {
+            char c = text[i];
+            text[i] = text[j];
+            text[j] = c;
+        }
+        return at;
+    }
+
+    /**
+     * Writes a time in nanoseconds into the text buffer as milliseconds with
+     * two decimal places.
+     *
+     * @return the position after the time
+     */
+    private int putMillis(int at, long nanos) {
+        long hundredths = nanos / 10_000;
+        at = putLong(at, hundredths / 100);
+        at = put(at, ".");
+        if (hundredths % 100 < 10) {
+            at = put(at, "0");
+        }
+        return putLong(at, hundredths % 100);
+    }
+}
@@ -10,19 +10,9 @@ package uk.ac.bradford.diggame;
 public class Player extends Entity {
 
     /**
-     * maxStamina stores the maximum possible energy for this player
-     */
-    private final int maxEnergy;
-
-    /**
-     * stamina stores the current energy for this player
-     */
-    private int energy;
-
-    
-
-    /**
-     * This constructor is used to create a Player object to use in the game
+     * This constructor is used to create a Player object to use in the game.
+     * The energy and maximum energy of the player are kept in the energy and
+     * maxEnergy arrays of a store of its own.
      *
      * @param maxEnergy the maximum energy of this Player, also used to set
      * its starting energy value
@@ -30,9 +20,9 @@ public class Player extends Entity {
      * @param y the starting Y position of this Player in the game
      */
     public Player(int maxEnergy, int x, int y) {
-        this.maxEnergy = maxEnergy;
-        this.energy = maxEnergy;
-        setPosition(x, y);
+        super(new EntityStore(1), EntityStore.PLAYER, x, y);
+        store.maxEnergy[id] = maxEnergy;
+        store.setEnergy(id, maxEnergy);
     }
 
     /**
@@ -40,7 +30,7 @@ public class Player extends Entity {
      * value of maxEnergy.
      */
     public void refillEnergy() {
-        energy = maxEnergy;
+        store.setEnergy(id, store.maxEnergy[id]);
     }
     
     /**
@@ -51,13 +41,14 @@ public class Player extends Entity {
      * @param amount the change in energy required
      */
     public void changeEnergy(int amount) {
-        energy += amount;
-        if (energy > maxEnergy) {
-            energy = maxEnergy;
+        int energy = store.energy[id] + amount;
+        if (energy > store.maxEnergy[id]) {
+            energy = store.maxEnergy[id];
         }
         if (energy < 0) {
             energy = 0;
         }
+        store.setEnergy(id, energy);
     }
 
     /**
@@ -66,7 +57,7 @@ public class Player extends Entity {
      * @return the value of the energy attribute for the player
      */
     public int getEnergy() {
-        return energy;
+        return store.energy[id];
     }
 
     /**
@@ -75,6 +66,6 @@ public class Player extends Entity {
      * @return the value of the maxEnergy attribute for this Player
      */
     public int getMaxEnergy() {
-        return maxEnergy;
+        return store.maxEnergy[id];
     }
 }
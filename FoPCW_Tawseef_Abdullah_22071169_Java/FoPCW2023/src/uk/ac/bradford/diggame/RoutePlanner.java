@@ -0,0 +1,428 @@
+package uk.ac.bradford.diggame;
+
+import java.util.Arrays;
+import java.util.Random;
+import uk.ac.bradford.diggame.Tile.TileType;
+
+/**
+ * The RoutePlanner class plans the moves that take the player to a chosen tile
+ * in the fewest turns, digging through any tiles in the way. It follows the
+ * same rules as GameEngine.movePlayer() and doTurn(): mining a tile needs at
+ * least as much energy as its remaining durability, each hit takes the mining
+ * strength off the durability and the remaining durability off the energy,
+ * every turn gives back energy, a turn that starts on a BASE refills it, and
+ * mining URANIUM raises the mining strength. When the player cannot afford the
+ * next hit the plan waits (by repeating the move) until it can. Collapsing
+ * terrain is not modelled, so a tile can fall into a route while it is
+ * followed. The player is then left off course, and GameEngine.followRoute()
+ * plans the route again from where the player is.
+ *
+ * The search is A* over tiles with the number of turns as the cost and the
+ * Manhattan distance to the target as the heuristic. Each tile keeps one
+ * label: the fewest turns it has been reached in, with the most energy left
+ * as the tie-breaker, so the search is fast but can miss a slower route
+ * that arrives with much more energy. Digging makes most tiles cost several
+ * turns, so the Manhattan distance is a weak estimate and a far target in a
+ * large world can mean searching most of it. Plans are made on the Swing
+ * event thread, so a search gives up once it has expanded the node budget of
+ * tiles, and the route is searched for again with the heuristic weighted more
+ * and more heavily towards the target. A weighted search finds a route a
+ * little longer than the best in far fewer tiles. A level of the normal size
+ * is searched in full well within the first budget. All state is held in int
+ * arrays that are reused between plans, and the open list is an IntMinHeap,
+ * so planning does not create an object per tile.
+ */
+public class RoutePlanner {
+
+    private static final byte EMPTY = (byte) TileType.EMPTY.ordinal();
+    private static final byte BASE = (byte) TileType.BASE.ordinal();
+    private static final byte URANIUM = (byte) TileType.URANIUM.ordinal();
+
+    /**
+     * Moves in the order N, S, E, W, matching the characters passed to
+     * GameEngine.movePlayer().
+     */
+    private static final int[] DX = {0, 0, 1, -1};
+    private static final int[] DY = {-1, 1, 0, 0};
+    private static final char[] MOVES = {'N', 'S', 'E', 'W'};
+
+    private final int width;
+    private final int height;
+    private final int energyPerTurn;
+    private final int uraniumStrength;
+
+    /**
+     * The type ordinal and durability of every tile, copied from a level by
+     * plan(Tile[][], ...), indexed by x * height + y.
+     */
+    private final byte[] type;
+    private final int[] durability;
+
+    /**
+     * The label of each tile: turns taken to reach it, energy and mining
+     * strength on arrival, the tile it was reached from and the search it was
+     * set by. Labels from earlier searches are ignored, so the arrays do not
+     * need clearing between plans.
+     */
+    private final int[] turns;
+    private final int[] energy;
+    private final int[] strength;
+    private final int[] from;
+    private final int[] stamp;
+    private int search;
+
+    private final IntMinHeap open;
+
+    /**
+     * The most tiles a search may expand before it gives up, so that a plan
+     * made on the Swing event thread always finishes in a few milliseconds
+     * however large the level is.
+     */
+    private int nodeBudget = DEFAULT_NODE_BUDGET;
+
+    /**
+     * The node budget of a new planner. A level of the normal size never
+     * comes close to it.
+     */
+    public static final int DEFAULT_NODE_BUDGET = 1 << 13;
+
+    /**
+     * Returned by plan() when there is no route to the target.
+     */
+    public static final int UNREACHABLE = -1;
+
+    /**
+     * Returned by plan() when every search ran out of node budget before it
+     * found a route or showed there is none.
+     */
+    public static final int OUT_OF_BUDGET = -2;
+
+    /**
+     * The weights the heuristic is multiplied by in turn, each search with
+     * its own node budget. The first search finds the route with the fewest
+     * turns; the others lean towards the target and find a route up to that
+     * many times longer, expanding far fewer tiles.
+     */
+    private static final int[] WEIGHTS = {1, 2, 4, 8};
+
+    /**
+     * Whether the last route planned has the fewest turns, or was found by a
+     * weighted search after the first ran out of budget.
+     */
+    private boolean fewestTurns;
+
+    /**
+     * The planned route: the move to make on each turn, and the tile the
+     * player should be on before making it.
+     */
+    private char[] moves = new char[64];
+    private int[] cells = new int[64];
+    private int length;
+
+    /**
+     * Creates a planner for levels of the given size.
+     *
+     * @param width the width of the levels in tiles
+     * @param height the height of the levels in tiles
+     * @param rules the rules for energy and mining strength
+     */
+    public RoutePlanner(int width, int height, GameRules rules) {
+        this.width = width;
+        this.height = height;
+        this.energyPerTurn = rules.getEnergyPerTurn();
+        this.uraniumStrength = rules.getUraniumMiningStrength();
+        int cellCount = width * height;
+        type = new byte[cellCount];
+        durability = new int[cellCount];
+        turns = new int[cellCount];
+        energy = new int[cellCount];
+        strength = new int[cellCount];
+        from = new int[cellCount];
+        stamp = new int[cellCount];
+        open = new IntMinHeap(1024);
+    }
+
+    /**
+     * Plans a route across a level.
+     *
+     * @param level the level, which must be the size given to the constructor
+     * @param fromX the X position of the player
+     * @param fromY the Y position of the player
+     * @param toX the X position of the target tile
+     * @param toY the Y position of the target tile
+     * @param startEnergy the player's energy
+     * @param maxEnergy the player's maximum energy
+     * @param startStrength the player's mining strength
+     * @return the number of turns in the route, 0 if the player is already on
+     * the target, UNREACHABLE if the target cannot be reached, or
+     * OUT_OF_BUDGET if no route was found within the node budget
+     */
+    public int plan(Tile[][] level, int fromX, int fromY, int toX, int toY,
+            int startEnergy, int maxEnergy, int startStrength) {
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                type[x * height + y] = (byte) level[x][y].getType().ordinal();
+                durability[x * height + y] = level[x][y].getDurability();
+            }
+        }
+        return plan(fromX * height + fromY, toX * height + toY, startEnergy, maxEnergy, startStrength);
+    }
+
+    /**
+     * Plans a route across the tiles currently held in the type and
+     * durability arrays.
+     */
+    private int plan(int start, int target, int startEnergy, int maxEnergy, int startStrength) {
+        for (int weight : WEIGHTS) {
+            int result = search(start, target, startEnergy, maxEnergy, startStrength, weight);
+            if (result != OUT_OF_BUDGET) {
+                fewestTurns = weight == 1;
+                return result;
+            }
+        }
+        return OUT_OF_BUDGET;
+    }
+
+    /**
+     * Runs one A* search with the heuristic multiplied by the given weight,
+     * giving up once it has expanded the node budget of tiles.
+     */
+    private int search(int start, int target, int startEnergy, int maxEnergy, int startStrength,
+            int weight) {
+        length = 0;
+        search++;
+        open.clear();
+        turns[start] = 0;
+        energy[start] = startEnergy;
+        strength[start] = startStrength;
+        from[start] = -1;
+        stamp[start] = search;
+        open.push(weight * distance(start, target), start);
+        int targetX = target / height;
+        int targetY = target % height;
+        int expanded = 0;
+        while (!open.isEmpty()) {
+            int estimate = open.peekKey();
+            int cell = open.pop();
+            int t = turns[cell];
+            if (estimate > t + weight * (Math.abs(cell / height - targetX) + Math.abs(cell % height - targetY))) {
+                continue;   //a stale entry for a tile that has since been reached sooner
+            }
+            if (cell == target) {
+                return buildRoute(start, target);
+            }
+            if (++expanded > nodeBudget) {
+                return OUT_OF_BUDGET;
+            }
+            boolean onBase = type[cell] == BASE;
+            int cx = cell / height;
+            int cy = cell % height;
+            for (int d = 0; d < 4; d++) {
+                int nx = cx + DX[d];
+                int ny = cy + DY[d];
+                if (nx < 0 || ny < 0 || nx >= width || ny >= height) {
+                    continue;
+                }
+                int next = nx * height + ny;
+                int nt = t;
+                int ne = energy[cell];
+                int ns = strength[cell];
+                if (type[next] != EMPTY && type[next] != BASE) {
+                    int remaining = durability[next];
+                    if (remaining > maxEnergy) {
+                        continue;   //can never afford this tile
+                    }
+                    while (remaining > 0) {
+                        if (ne < remaining) {
+                            if (onBase) {
+                                ne = maxEnergy;
+                                nt++;
+                            } else if (energyPerTurn > 0) {
+                                int wait = (remaining - ne + energyPerTurn - 1) / energyPerTurn;
+                                ne = Math.min(maxEnergy, ne + wait * energyPerTurn);
+                                nt += wait;
+                            } else {
+                                nt = -1;    //can never afford this tile
+                                break;
+                            }
+                            continue;
+                        }
+                        remaining -= ns;
+                        ne -= Math.max(0, remaining);
+                        if (remaining <= 0 && type[next] == URANIUM) {
+                            ns = uraniumStrength;
+                        }
+                        ne = Math.min(maxEnergy, (onBase ? maxEnergy : ne) + energyPerTurn);
+                        nt++;
+                    }
+                    if (nt < 0) {
+                        continue;
+                    }
+                }
+                nt++;   //the move onto the tile
+                ne = Math.min(maxEnergy, (onBase ? maxEnergy : ne) + energyPerTurn);
+                if (stamp[next] != search || nt < turns[next] || nt == turns[next] && ne > energy[next]) {
+                    stamp[next] = search;
+                    turns[next] = nt;
+                    energy[next] = ne;
+                    strength[next] = ns;
+                    from[next] = cell;
+                    open.push(nt + weight * (Math.abs(nx - targetX) + Math.abs(ny - targetY)), next);
+                }
+            }
+        }
+        return UNREACHABLE;
+    }
+
+    private int distance(int a, int b) {
+        return Math.abs(a / height - b / height) + Math.abs(a % height - b % height);
+    }
+
+    /**
+     * Turns the labels along the path back from the target into moves. Mining
+     * a tile takes one turn per hit, plus turns spent waiting for energy, and
+     * every one of those turns is the same move as the step onto the tile.
+     */
+    private int buildRoute(int start, int target) {
+        int total = turns[target];
+        if (moves.length < total) {
+            moves = new char[Math.max(total, moves.length * 2)];
+            cells = new int[moves.length];
+        }
+        length = total;
+        int at = total;
+        for (int cell = target; cell != start; cell = from[cell]) {
+            int previous = from[cell];
+            int direction = directionBetween(previous, cell);
+            for (int i = turns[cell] - turns[previous]; i > 0; i--) {
+                at--;
+                moves[at] = MOVES[direction];
+                cells[at] = previous;
+            }
+        }
+        return total;
+    }
+
+    private int directionBetween(int a, int b) {
+        int dx = b / height - a / height;
+        int dy = b % height - a % height;
+        for (int d = 0; d < 4; d++) {
+            if (DX[d] == dx && DY[d] == dy) {
+                return d;
+            }
+        }
+        throw new IllegalArgumentException("tiles are not next to each other");
+    }
+
+    /**
+     * Sets the most tiles a search may expand before it gives up and reports
+     * the target as unreachable.
+     *
+     * @param nodeBudget the node budget, at least 1
+     */
+    public void setNodeBudget(int nodeBudget) {
+        this.nodeBudget = Math.max(1, nodeBudget);
+    }
+
+    /**
+     * @return true if the last route planned has the fewest turns, or false
+     * if a far target was reached by a weighted search that can find a longer
+     * route
+     */
+    public boolean hasFewestTurns() {
+        return fewestTurns;
+    }
+
+    /**
+     * @return the number of turns in the last route planned
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @param i a turn of the last route planned, from 0
+     * @return the move to make on that turn, N, S, E or W
+     */
+    public char getMove(int i) {
+        return moves[i];
+    }
+
+    /**
+     * @param i a turn of the last route planned, from 0
+     * @return the tile the player should be on before that turn, as x * height
+     * + y, so a route that has gone off course can be planned again
+     */
+    public int getCell(int i) {
+        return cells[i];
+    }
+
+    /**
+     * Measures planning across a large random world. Usage: RoutePlanner
+     * [size] [routes]
+     *
+     * @param args optional width and height of the world and number of routes
+     * to plan
+     */
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        int routes = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        GameRules rules = GameRules.getDefault();
+        Random rng = new Random(1);
+        RoutePlanner planner = new RoutePlanner(size, size, rules);
+        for (int cell = 0; cell < size * size; cell++) {
+            TileType t = rules.randomTileType(rng, 1);
+            planner.type[cell] = (byte) t.ordinal();
+            planner.durability[cell] = rules.getDurability(t);
+        }
+        int maxEnergy = rules.getPlayerEnergy();
+        for (int r = 0; r < routes; r++) {     //warm up the JIT compiler first
+            planner.plan(rng.nextInt(size * size), rng.nextInt(size * size), maxEnergy, maxEnergy,
+                    rules.getMiningStrength());
+        }
+        for (int radius : new int[]{16, 64, 256, size}) {
+            long[] nanos = new long[routes];
+            int found = 0;
+            int fewest = 0;
+            int outOfBudget = 0;
+            long weightedTurns = 0;
+            long fewestPossible = 0;
+            for (int r = 0; r < routes; r++) {
+                int sx = rng.nextInt(size);
+                int sy = rng.nextInt(size);
+                int tx = Math.floorMod(sx + rng.nextInt(2 * radius + 1) - radius, size);
+                int ty = Math.floorMod(sy + rng.nextInt(2 * radius + 1) - radius, size);
+                int start = sx * size + sy;
+                int target = tx * size + ty;
+                long before = System.nanoTime();
+                int length = planner.plan(start, target, maxEnergy, maxEnergy, rules.getMiningStrength());
+                nanos[r] = System.nanoTime() - before;
+                if (length == OUT_OF_BUDGET) {
+                    outOfBudget++;
+                } else if (length >= 0) {
+                    found++;
+                    if (planner.hasFewestTurns()) {
+                        fewest++;
+                    } else {
+                        //plan again without a budget to see how much longer the route is
+                        planner.setNodeBudget(Integer.MAX_VALUE);
+                        weightedTurns += length;
+                        fewestPossible += planner.plan(start, target, maxEnergy, maxEnergy,
+                                rules.getMiningStrength());
+                        planner.setNodeBudget(DEFAULT_NODE_BUDGET);
+                    }
+                }
+            }
+            Arrays.sort(nanos);
+            System.out.printf("%dx%d world, targets within %d tiles: median %.2f ms, 95th percentile %.2f ms,"
+                    + " %d/%d routes found (%d with the fewest turns), %d out of budget", size, size, radius,
+                    nanos[routes / 2] / 1e6, nanos[routes * 95 / 100] / 1e6, found, routes, fewest,
+                    outOfBudget);
+            if (found > fewest) {
+                System.out.printf(", weighted routes %.0f%% longer than the fewest turns",
+                        100.0 * (weightedTurns - fewestPossible) / fewestPossible);
+            }
+            System.out.println();
+        }
+    }
+}
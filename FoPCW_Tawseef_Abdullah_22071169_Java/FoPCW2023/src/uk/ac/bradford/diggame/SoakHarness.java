@@ -0,0 +1,310 @@
+package uk.ac.bradford.diggame;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import uk.ac.bradford.diggame.Tile.TileType;
+
+/**
+ * The SoakHarness class plays the game without a window for a long time on
+ * every processor, to find bugs that only show up after many turns or levels.
+ * Each worker thread plays one game after another, each with its own seed, and
+ * after every turn checks that the state of the game still makes sense:
+ * entities are inside the level, tile durabilities are between 0 and their
+ * maximum, the player's energy is in range, the level has a BASE, a new level
+ * starts with the player on a BASE tile, the engine's count of remaining ore
+ * matches the level and the incrementally updated state hash matches a hash
+ * calculated from scratch.
+ *
+ * Inputs are chosen by a simple bot that heads for the nearest ore, goes back
+ * to the BASE when its energy is low, makes random moves some of the time and
+ * sometimes undoes a few turns, so games progress through many levels. Every
+ * game with the same seed plays out the same way, including the levels it
+ * generates, so the seed printed for a failing game can be used to reproduce
+ * it. The harness reports the sustained turns per second, heap
+ * growth and thread count every reporting interval.
+ */
+public class SoakHarness {
+
+    /**
+     * How often progress is reported, in milliseconds.
+     */
+    private static final long REPORT_MILLIS = 10_000;
+
+    /**
+     * Energy below which the bot heads back to the BASE.
+     */
+    private static final int LOW_ENERGY = 80;
+
+    private final int turnsPerGame;
+    private final long endNanos;
+    private final AtomicLong nextSeed;
+    private final AtomicLong turns = new AtomicLong();
+    private final AtomicLong games = new AtomicLong();
+    private final AtomicLong levels = new AtomicLong();
+
+    /**
+     * Descriptions of failed games, including their seeds.
+     */
+    private final ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Creates a harness.
+     *
+     * @param turnsPerGame the number of turns to play in each game
+     * @param endNanos the value of System.nanoTime() at which to stop
+     * @param firstSeed the seed of the first game; later games use the
+     * following seeds
+     */
+    public SoakHarness(int turnsPerGame, long endNanos, long firstSeed) {
+        this.turnsPerGame = turnsPerGame;
+        this.endNanos = endNanos;
+        this.nextSeed = new AtomicLong(firstSeed);
+    }
+
+    /**
+     * The loop run by each worker thread.
+     */
+    private void work() {
+        while (System.nanoTime() < endNanos) {
+            long seed = nextSeed.getAndIncrement();
+            String failure = play(seed);
+            games.incrementAndGet();
+            if (failure != null) {
+                failures.add(failure);
+                System.out.println("FAILED " + failure);
+            }
+        }
+    }
+
+    /**
+     * Plays one game.
+     *
+     * @param seed the seed of the game
+     * @return a description of the first invariant that failed, or null if the
+     * game played through without problems
+     */
+    String play(long seed) {
+        GameEngine engine = new GameEngine(null, seed);
+        Random input = new Random(seed);
+        int turn = 0;
+        try {
+            engine.startGame();
+            Tile[][] currentLevel = engine.getLevel();
+            String problem = check(engine, true);
+            for (turn = 1; problem == null && turn <= turnsPerGame; turn++) {
+                if (System.nanoTime() >= endNanos) {
+                    break;
+                }
+                if (input.nextInt(100) == 0) {
+                    engine.rewind(1 + input.nextInt(5));
+                } else {
+                    engine.movePlayer(chooseMove(engine, input));
+                    engine.doTurn();
+                }
+                turns.incrementAndGet();
+                boolean newLevel = engine.getLevel() != currentLevel;
+                if (newLevel) {
+                    currentLevel = engine.getLevel();
+                    levels.incrementAndGet();
+                }
+                problem = check(engine, newLevel);
+            }
+            return problem == null ? null : describe(seed, turn, engine, problem);
+        } catch (RuntimeException | Error e) {
+            return describe(seed, turn, engine, e.toString());
+        }
+    }
+
+    private static String describe(long seed, int turn, GameEngine engine, String problem) {
+        return "seed " + seed + " turn " + turn + " level " + engine.getLevelNumber() + ": " + problem;
+    }
+
+    /**
+     * Checks the invariants of the game.
+     *
+     * @param engine the engine to check
+     * @param newLevel true if a level has just started
+     * @return a description of the first invariant that does not hold, or
+     * null if they all hold
+     */
+    static String check(GameEngine engine, boolean newLevel) {
+        Tile[][] level = engine.getLevel();
+        if (level == null || level.length != GameEngine.LEVEL_WIDTH
+                || level[0].length != GameEngine.LEVEL_HEIGHT) {
+            return "level missing or the wrong size";
+        }
+        int ore = 0;
+        boolean baseFound = false;
+        for (int x = 0; x < level.length; x++) {
+            for (int y = 0; y < level[x].length; y++) {
+                Tile t = level[x][y];
+                if (t == null) {
+                    return "null tile at " + x + "," + y;
+                }
+                if (t.getDurability() < 0 || t.getDurability() > t.getMaxDurability()) {
+                    return "durability " + t.getDurability() + "/" + t.getMaxDurability()
+                            + " at " + x + "," + y;
+                }
+                TileType type = t.getType();
+                boolean isOre = type == TileType.COPPER || type == TileType.SILVER || type == TileType.URANIUM;
+                if (isOre) {
+                    ore++;
+                } else if (type == TileType.BASE) {
+                    baseFound = true;
+                }
+                if (isOre != engine.getOreIndex().isOre(x, y)) {
+                    return "ore index out of date at " + x + "," + y;
+                }
+            }
+        }
+        if (!baseFound) {
+            return "no BASE tile";
+        }
+        if (ore != engine.getOreRemaining()) {
+            return "engine counts " + engine.getOreRemaining() + " ore but the level has " + ore;
+        }
+        if (ore != engine.getOreIndex().getRemaining()) {
+            return "ore index counts " + engine.getOreIndex().getRemaining() + " ore but the level has " + ore;
+        }
+        if (engine.stateHash() != engine.recomputeStateHash()) {
+            return "state hash out of date";
+        }
+        Player p = engine.getPlayer();
+        if (!inside(p.getX(), p.getY())) {
+            return "player outside the level at " + p.getX() + "," + p.getY();
+        }
+        if (p.getEnergy() < 0 || p.getEnergy() > p.getMaxEnergy()) {
+            return "player energy " + p.getEnergy() + "/" + p.getMaxEnergy();
+        }
+        if (newLevel && level[p.getX()][p.getY()].getType() != TileType.BASE) {
+            return "new level did not start on a BASE tile";
+        }
+        Mole[] moles = engine.getMoles();
+        for (int i = 0; i < moles.length; i++) {
+            Mole m = moles[i];
+            if (m != null) {
+                if (!inside(m.getX(), m.getY())) {
+                    return "mole " + i + " outside the level at " + m.getX() + "," + m.getY();
+                }
+                if (m.getFullness() < 0 || m.getFullness() >= m.getMaxFullness()) {
+                    return "mole " + i + " fullness " + m.getFullness() + "/" + m.getMaxFullness();
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean inside(int x, int y) {
+        return x >= 0 && y >= 0 && x < GameEngine.LEVEL_WIDTH && y < GameEngine.LEVEL_HEIGHT;
+    }
+
+    /**
+     * Chooses the bot's next move: towards the nearest ore, or towards the
+     * nearest BASE if energy is low or there is no ore left, with a random
+     * move a quarter of the time. The nearest ore is found with the engine's
+     * OreIndex.
+     */
+    private static char chooseMove(GameEngine engine, Random input) {
+        final String directions = "NSEW";
+        if (input.nextInt(4) == 0) {
+            return directions.charAt(input.nextInt(4));
+        }
+        Player p = engine.getPlayer();
+        int bestX = p.getX();
+        int bestY = p.getY();
+        int[] nearest = new int[1];
+        if (p.getEnergy() >= LOW_ENERGY && engine.getOreIndex().nearest(p.getX(), p.getY(), nearest) > 0) {
+            bestX = nearest[0] / GameEngine.LEVEL_HEIGHT;
+            bestY = nearest[0] % GameEngine.LEVEL_HEIGHT;
+        } else {
+            Tile[][] level = engine.getLevel();
+            int bestDistance = Integer.MAX_VALUE;
+            for (int x = 0; x < level.length; x++) {
+                for (int y = 0; y < level[x].length; y++) {
+                    int distance = Math.abs(x - p.getX()) + Math.abs(y - p.getY());
+                    if (level[x][y].getType() == TileType.BASE && distance < bestDistance) {
+                        bestDistance = distance;
+                        bestX = x;
+                        bestY = y;
+                    }
+                }
+            }
+        }
+        int dx = bestX - p.getX();
+        int dy = bestY - p.getY();
+        if (dx != 0 && (dy == 0 || input.nextBoolean())) {
+            return dx > 0 ? 'E' : 'W';
+        }
+        if (dy != 0) {
+            return dy > 0 ? 'S' : 'N';
+        }
+        return directions.charAt(input.nextInt(4));
+    }
+
+    /**
+     * Runs the soak test. Usage: SoakHarness [minutes] [threads] [turnsPerGame]
+     * [firstSeed]. Exits with status 1 if any game failed.
+     *
+     * @param args optional run time in minutes, number of threads, turns per
+     * game and the seed of the first game
+     * @throws InterruptedException if interrupted while waiting for workers
+     */
+    public static void main(String[] args) throws InterruptedException {
+        double minutes = args.length > 0 ? Double.parseDouble(args[0]) : 60;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int turnsPerGame = args.length > 2 ? Integer.parseInt(args[2]) : 20_000;
+        long firstSeed = args.length > 3 ? Long.parseLong(args[3]) : 1;
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        long startHeap = memory.getHeapMemoryUsage().getUsed();
+        long start = System.nanoTime();
+        SoakHarness harness = new SoakHarness(turnsPerGame,
+                start + (long) (minutes * 60e9), firstSeed);
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(harness::work, "soak-" + i);
+            workers[i].start();
+        }
+
+        long lastTurns = 0;
+        long lastNanos = start;
+        while (true) {
+            boolean running = false;
+            for (Thread worker : workers) {
+                worker.join(REPORT_MILLIS / threads);
+                running |= worker.isAlive();
+            }
+            long now = System.nanoTime();
+            long total = harness.turns.get();
+            System.out.printf("%.0fs: %d turns (%.0f/s now, %.0f/s overall), %d games, %d levels,"
+                    + " heap %d MB (+%d MB), %d threads, %d failures%n",
+                    (now - start) / 1e9, total, (total - lastTurns) * 1e9 / (now - lastNanos),
+                    total * 1e9 / (now - start), harness.games.get(), harness.levels.get(),
+                    memory.getHeapMemoryUsage().getUsed() >> 20,
+                    (memory.getHeapMemoryUsage().getUsed() - startHeap) >> 20,
+                    Thread.activeCount(), harness.failures.size());
+            lastTurns = total;
+            lastNanos = now;
+            if (!running) {
+                break;
+            }
+        }
+
+        System.gc();
+        System.out.printf("Heap growth after GC: %d KB%n",
+                (memory.getHeapMemoryUsage().getUsed() - startHeap) >> 10);
+        if (harness.failures.isEmpty()) {
+            System.out.println("No failures");
+        } else {
+            System.out.println(harness.failures.size() + " failed games:");
+            for (String failure : harness.failures) {
+                System.out.println("  " + failure);
+            }
+            System.exit(1);
+        }
+    }
+}
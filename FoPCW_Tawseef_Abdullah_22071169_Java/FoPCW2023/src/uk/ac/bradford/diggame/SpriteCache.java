@@ -0,0 +1,143 @@
+package uk.ac.bradford.diggame;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The SpriteCache class holds copies of the game sprites scaled to different
+ * tile sizes. Each sprite set is scaled once, the first time a tile size is
+ * needed, so that drawing at any zoom level or window size is a 1:1 copy of a
+ * pre-scaled image rather than a scaled drawImage call for every tile. The
+ * least recently used sprite sets are evicted once the cache is full.
+ *
+ * Sprite sets can also be prepared in advance on a background thread, which
+ * the Canvas uses for the zoom levels either side of the current one so that
+ * zooming in or out does not pay the scaling cost during a frame.
+ */
+public class SpriteCache {
+
+    /**
+     * The maximum number of scaled sprite sets kept in the cache.
+     */
+    private static final int CAPACITY = 6;
+
+    /**
+     * The sprites at their original size, in the order used by the Canvas.
+     */
+    private final BufferedImage[] originals;
+
+    /**
+     * The tile size in pixels of the original sprites.
+     */
+    private final int originalSize;
+
+    /**
+     * Scaled sprite sets keyed by tile size, kept in access order so that the
+     * eldest entry is the least recently used one.
+     */
+    private final Map<Integer, BufferedImage[]> scaled
+            = new LinkedHashMap<Integer, BufferedImage[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, BufferedImage[]> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+
+    /**
+     * The background thread used to prepare sprite sets before they are used.
+     */
+    private final ExecutorService prefetcher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "sprite-prefetch");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Creates a cache for a set of square sprites that all have the same size.
+     *
+     * @param originals the sprites at their original size
+     * @param originalSize the width and height of the original sprites
+     */
+    public SpriteCache(BufferedImage[] originals, int originalSize) {
+        this.originals = originals;
+        this.originalSize = originalSize;
+    }
+
+    /**
+     * Returns the sprite set for a tile size, scaling and caching it if it is
+     * not already in the cache.
+     *
+     * @param size the width and height in pixels that the sprites are drawn at
+     * @return the sprites scaled to the given size, in the same order as the
+     * original sprites
+     */
+    public BufferedImage[] get(int size) {
+        if (size == originalSize) {
+            return originals;
+        }
+        synchronized (scaled) {
+            BufferedImage[] set = scaled.get(size);
+            if (set != null) {
+                return set;
+            }
+        }
+        BufferedImage[] set = scale(size);
+        synchronized (scaled) {
+            scaled.put(size, set);
+        }
+        return set;
+    }
+
+    /**
+     * Prepares the sprite set for a tile size on a background thread, if it is
+     * not already in the cache.
+     *
+     * @param size the width and height in pixels of the sprite set to prepare
+     */
+    public void prefetch(int size) {
+        if (size == originalSize || size <= 0) {
+            return;
+        }
+        synchronized (scaled) {
+            if (scaled.containsKey(size)) {
+                return;
+            }
+        }
+        prefetcher.execute(() -> {
+            synchronized (scaled) {
+                if (scaled.containsKey(size)) {
+                    return;
+                }
+            }
+            BufferedImage[] set = scale(size);
+            synchronized (scaled) {
+                scaled.putIfAbsent(size, set);
+            }
+        });
+    }
+
+    /**
+     * Creates a new set of sprites scaled to the given size.
+     */
+    private BufferedImage[] scale(int size) {
+        BufferedImage[] set = new BufferedImage[originals.length];
+        for (int i = 0; i < originals.length; i++) {
+            if (originals[i] == null) {
+                continue;
+            }
+            set[i] = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = set[i].createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    size < originalSize ? RenderingHints.VALUE_INTERPOLATION_BILINEAR
+                            : RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+            g.drawImage(originals[i], 0, 0, size, size, null);
+            g.dispose();
+        }
+        return set;
+    }
+}
@@ -0,0 +1,219 @@
+package uk.ac.bradford.diggame;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import uk.ac.bradford.diggame.Tile.TileType;
+
+/**
+ * The TelemetryReader class turns the log files written by a TelemetryWriter
+ * into CSV, either one row per event or one row per level with the tiles
+ * mined of each type, the energy spent, the moles that exploded and how long
+ * the level took in turns and seconds. Files are read in name order, which for
+ * the files of one folder is the order they were written in.
+ */
+public class TelemetryReader {
+
+    private static final GameEvent.Type[] EVENT_TYPES = GameEvent.Type.values();
+    private static final TileType[] TILE_TYPES = TileType.values();
+
+    private final PrintWriter out;
+    private final boolean perLevel;
+
+    /**
+     * The session whose files are being read, and its totals for the level
+     * being played, used when writing one row per level.
+     */
+    private long session = -1;
+    private int level;
+    private int levelStartTurn;
+    private long levelStartNanos;
+    private int lastTurn;
+    private long lastNanos;
+    private final int[] tilesMined = new int[TILE_TYPES.length];
+    private long energySpent;
+    private int molesExploded;
+    private int events;
+
+    private TelemetryReader(PrintWriter out, boolean perLevel) {
+        this.out = out;
+        this.perLevel = perLevel;
+        if (perLevel) {
+            out.print("session,level,completed,turns,seconds");
+            for (TileType t : TILE_TYPES) {
+                if (t != TileType.EMPTY && t != TileType.BASE) {
+                    out.print("," + t.name().toLowerCase() + "_mined");
+                }
+            }
+            out.println(",energy_spent,moles_exploded");
+        } else {
+            out.println("session,file,time_ms,turn,event,x,y,value,tile");
+        }
+    }
+
+    /**
+     * Reads one log file, writing its rows.
+     */
+    private void read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            while (buffer.position() < TelemetryWriter.HEADER_SIZE) {
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+            if (buffer.remaining() < TelemetryWriter.HEADER_SIZE || buffer.getInt() != TelemetryWriter.MAGIC) {
+                throw new IOException(file + " is not a telemetry log");
+            }
+            short version = buffer.getShort();
+            int recordSize = buffer.getShort();
+            if (version != TelemetryWriter.VERSION || recordSize < TelemetryWriter.RECORD_SIZE) {
+                throw new IOException(file + " has version " + version + " and records of " + recordSize + " bytes");
+            }
+            long start = buffer.getLong();
+            buffer.getInt();    //file number
+            buffer.getInt();
+            if (start != session) {
+                finishSession();
+                session = start;
+            }
+            while (true) {
+                while (buffer.remaining() >= recordSize) {
+                    int at = buffer.position();
+                    long nanos = buffer.getLong();
+                    int turn = buffer.getInt();
+                    int type = buffer.getShort();
+                    int x = buffer.getShort();
+                    int y = buffer.getShort();
+                    buffer.getShort();
+                    record(file.getName(), nanos, turn, type, x, y, buffer.getInt());
+                    buffer.position(at + recordSize);   //skip any fields added by later versions
+                }
+                buffer.compact();
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+                buffer.flip();
+            }
+        }
+    }
+
+    private void record(String file, long nanos, int turn, int type, int x, int y, int value) {
+        GameEvent.Type eventType = type < EVENT_TYPES.length ? EVENT_TYPES[type] : null;
+        if (!perLevel) {
+            String tile = eventType == GameEvent.Type.TILE_MINED && value >= 0 && value < TILE_TYPES.length
+                    ? TILE_TYPES[value].name() : "";
+            out.printf(Locale.ROOT, "%d,%s,%.3f,%d,%s,%d,%d,%d,%s%n", session, file, nanos / 1e6, turn,
+                    eventType == null ? Integer.toString(type) : eventType.name(), x, y, value, tile);
+            return;
+        }
+        events++;
+        lastTurn = turn;
+        lastNanos = nanos;
+        if (eventType == null) {
+            return;
+        }
+        switch (eventType) {
+            case TILE_MINED:
+                if (value >= 0 && value < tilesMined.length) {
+                    tilesMined[value]++;
+                }
+                break;
+            case ENERGY_SPENT:
+                energySpent += value;
+                break;
+            case MOLE_EXPLODED:
+                molesExploded++;
+                break;
+            case LEVEL_COMPLETED:
+                level = value;
+                writeLevel(true);
+                level = value + 1;
+                levelStartTurn = turn;
+                levelStartNanos = nanos;
+                break;
+        }
+    }
+
+    private void writeLevel(boolean completed) {
+        out.printf(Locale.ROOT, "%d,%d,%b,%d,%.3f", session, level, completed, lastTurn - levelStartTurn,
+                (lastNanos - levelStartNanos) / 1e9);
+        for (TileType t : TILE_TYPES) {
+            if (t != TileType.EMPTY && t != TileType.BASE) {
+                out.print("," + tilesMined[t.ordinal()]);
+            }
+        }
+        out.println("," + energySpent + "," + molesExploded);
+        Arrays.fill(tilesMined, 0);
+        energySpent = 0;
+        molesExploded = 0;
+        events = 0;
+    }
+
+    /**
+     * Writes the level that was being played when a session ended, and starts
+     * counting from the first level again.
+     */
+    private void finishSession() {
+        if (perLevel && events > 0) {
+            writeLevel(false);
+        }
+        level = 1;
+        levelStartTurn = 0;
+        levelStartNanos = 0;
+        events = 0;
+    }
+
+    /**
+     * Converts telemetry logs to CSV on standard output. Usage: TelemetryReader
+     * [-levels] [file or folder...]
+     *
+     * @param args -levels for one row per level instead of one row per event,
+     * and the log files, or folders of log files, to read (by default the
+     * telemetry folder)
+     * @throws IOException if a file cannot be read or is not a telemetry log
+     */
+    public static void main(String[] args) throws IOException {
+        boolean perLevel = false;
+        List<File> files = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("-levels")) {
+                perLevel = true;
+            } else {
+                addFiles(new File(arg), files);
+            }
+        }
+        if (files.isEmpty()) {
+            addFiles(new File("telemetry"), files);
+        }
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+        TelemetryReader reader = new TelemetryReader(out, perLevel);
+        for (File file : files) {
+            reader.read(file);
+        }
+        reader.finishSession();
+        out.flush();
+    }
+
+    private static void addFiles(File path, List<File> files) {
+        if (path.isDirectory()) {
+            File[] logs = path.listFiles((folder, name) -> name.endsWith(".bin"));
+            if (logs != null) {
+                Arrays.sort(logs);
+                files.addAll(Arrays.asList(logs));
+            }
+        } else {
+            files.add(path);
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package uk.ac.bradford.diggame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The TelemetryWriter class records every game event of a session to disk as
+ * fixed-size binary records, for analysis after the game with the
+ * TelemetryReader. It subscribes to the GameEventBus, so the engine never
+ * waits for it: publishing an event only writes into the bus's ring buffer.
+ *
+ * On the event delivery thread each event is encoded into a batch buffer. The
+ * buffers are allocated once, when the writer is created. A full batch, or a
+ * batch that has been filling for more than a second when a burst of events
+ * ends, is passed to a writer thread of its own. That thread writes it to the
+ * current file with one FileChannel write and then hands the buffer back. Only
+ * a fixed number of batches can be waiting to be written. If the disk falls so far behind that
+ * no empty buffer is left, events are dropped and counted rather than holding
+ * up event delivery.
+ *
+ * Logs are written into a folder as session-START-NNN.bin, where START is the
+ * time the session began in milliseconds since 1970. A new file is started
+ * whenever the current one would grow past a size limit. Every file begins
+ * with a HEADER_SIZE byte header, followed by RECORD_SIZE byte records, all
+ * big-endian:
+ *
+ * <pre>
+ * header: int MAGIC, short VERSION, short RECORD_SIZE, long session start
+ *         (ms since 1970), int file number, int reserved
+ * record: long nanoseconds since the session start, int turn, short event
+ *         type ordinal, short x, short y, short reserved, int value
+ * </pre>
+ */
+public class TelemetryWriter implements GameEventListener, AutoCloseable {
+
+    /**
+     * The first four bytes of every log file, "DGT1".
+     */
+    static final int MAGIC = 0x44475431;
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 24;
+    static final int RECORD_SIZE = 24;
+
+    /**
+     * The longest a partly filled batch waits before it is written, in
+     * nanoseconds, so a quiet game still reaches the disk.
+     */
+    private static final long FLUSH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final int DEFAULT_BATCH_RECORDS = 4096;
+    private static final int DEFAULT_BATCHES = 8;
+    private static final long DEFAULT_MAX_FILE_BYTES = 16L * 1024 * 1024;
+
+    private final File folder;
+    private final long maxFileBytes;
+    private final long startNanos = System.nanoTime();
+    private final long startMillis = System.currentTimeMillis();
+
+    /**
+     * Empty batch buffers, and full ones waiting for the writer thread. The
+     * same buffers go round between the two queues.
+     */
+    private final BlockingQueue<ByteBuffer> empty;
+    private final BlockingQueue<ByteBuffer> full;
+
+    /**
+     * Put into the full queue by close() to stop the writer thread.
+     */
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    /**
+     * The batch being filled on the delivery thread, or null if every buffer
+     * was waiting to be written when the last one was handed over, and the
+     * time it started filling.
+     */
+    private ByteBuffer batch;
+    private long batchStartNanos;
+    private boolean closed;
+
+    /**
+     * The file being written, used only by the writer thread.
+     */
+    private FileChannel channel;
+    private long fileBytes;
+    private int fileNumber;
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+    private final AtomicLong recordsWritten = new AtomicLong();
+    private final AtomicLong recordsDropped = new AtomicLong();
+    private final AtomicLong filesWritten = new AtomicLong();
+
+    private final Thread writerThread;
+
+    /**
+     * Creates a writer with 8 batches of 4096 records and files of up to 16
+     * MB.
+     *
+     * @param folder the folder to write the log files into, created if needed
+     */
+    public TelemetryWriter(File folder) {
+        this(folder, DEFAULT_BATCH_RECORDS, DEFAULT_BATCHES, DEFAULT_MAX_FILE_BYTES);
+    }
+
+    /**
+     * Creates a writer and starts its writer thread.
+     *
+     * @param folder the folder to write the log files into, created if needed
+     * @param batchRecords the number of records in each batch
+     * @param batches the number of batch buffers, which limits how many
+     * batches can wait to be written
+     * @param maxFileBytes the size after which a new file is started
+     */
+    public TelemetryWriter(File folder, int batchRecords, int batches, long maxFileBytes) {
+        this.folder = folder;
+        this.maxFileBytes = Math.max(maxFileBytes, HEADER_SIZE + (long) batchRecords * RECORD_SIZE);
+        empty = new ArrayBlockingQueue<>(batches);
+        full = new ArrayBlockingQueue<>(batches + 1);
+        for (int i = 0; i < batches; i++) {
+            empty.add(ByteBuffer.allocateDirect(batchRecords * RECORD_SIZE));
+        }
+        folder.mkdirs();
+        writerThread = new Thread(this::writeLoop, "telemetry-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Encodes an event into the current batch, and hands the batch to the
+     * writer thread if it is full or old enough. Called on the event delivery
+     * thread.
+     *
+     * @param event the event to record
+     * @param endOfBatch true if no more events are waiting to be delivered
+     */
+    @Override
+    public synchronized void onEvent(GameEvent event, boolean endOfBatch) {
+        if (closed) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (batch == null) {
+            batch = empty.poll();
+            if (batch == null) {
+                recordsDropped.incrementAndGet();   //the disk is behind, every buffer is waiting
+                return;
+            }
+            batchStartNanos = now;
+        }
+        batch.putLong(now - startNanos);
+        batch.putInt(event.getTurn());
+        batch.putShort((short) event.getType().ordinal());
+        batch.putShort((short) event.getX());
+        batch.putShort((short) event.getY());
+        batch.putShort((short) 0);
+        batch.putInt(event.getValue());
+        if (!batch.hasRemaining() || endOfBatch && now - batchStartNanos >= FLUSH_NANOS) {
+            full.add(batch);    //never full, it has room for every buffer
+            batch = null;
+        }
+    }
+
+    /**
+     * Writes batches until close() is called.
+     */
+    private void writeLoop() {
+        try {
+            while (true) {
+                ByteBuffer next = full.take();
+                if (next == END) {
+                    break;
+                }
+                next.flip();
+                write(next);
+                next.clear();
+                empty.add(next);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeFile();
+        }
+    }
+
+    /**
+     * Writes one batch to the current file, starting a new file first if the
+     * batch would take the current one past the size limit. If the batch
+     * cannot be written its records are counted as dropped.
+     */
+    private void write(ByteBuffer next) {
+        int records = next.remaining() / RECORD_SIZE;
+        try {
+            if (channel == null || fileBytes + next.remaining() > maxFileBytes) {
+                startFile();
+            }
+            while (next.hasRemaining()) {
+                fileBytes += channel.write(next);
+            }
+            recordsWritten.addAndGet(records);
+        } catch (IOException e) {
+            System.out.println("Could not write telemetry: " + e.getMessage());
+            e.printStackTrace(System.out);
+            recordsDropped.addAndGet(records);
+            closeFile();
+        }
+    }
+
+    private void startFile() throws IOException {
+        closeFile();
+        File file = new File(folder, String.format("session-%d-%03d.bin", startMillis, fileNumber));
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        header.clear();
+        header.putInt(MAGIC).putShort(VERSION).putShort((short) RECORD_SIZE)
+                .putLong(startMillis).putInt(fileNumber).putInt(0);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        fileBytes = HEADER_SIZE;
+        fileNumber++;
+        filesWritten.incrementAndGet();
+    }
+
+    private void closeFile() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("Could not close telemetry file: " + e.getMessage());
+                e.printStackTrace(System.out);
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Writes any events still in the current batch, waits for the writer
+     * thread to finish and closes the file. Events delivered after this are
+     * ignored.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (batch != null && batch.position() > 0) {
+                full.add(batch);
+            }
+            batch = null;
+            full.add(END);
+        }
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the number of records written to disk so far
+     */
+    public long getRecordsWritten() {
+        return recordsWritten.get();
+    }
+
+    /**
+     * @return the number of events that were not recorded because the disk
+     * was behind or could not be written to
+     */
+    public long getRecordsDropped() {
+        return recordsDropped.get();
+    }
+
+    /**
+     * @return the number of log files started
+     */
+    public long getFilesWritten() {
+        return filesWritten.get();
+    }
+
+    /**
+     * Records a burst of events through a GameEventBus and reports the cost of
+     * publishing them, how many reached the disk and how many were dropped.
+     * Usage: TelemetryWriter [folder] [events]
+     *
+     * @param args optional folder to write into and number of events
+     */
+    public static void main(String[] args) {
+        File folder = new File(args.length > 0 ? args[0] : "telemetry-test");
+        int events = args.length > 1 ? Integer.parseInt(args[1]) : 5_000_000;
+        GameEventBus bus = new GameEventBus(1 << 16);
+        TelemetryWriter writer = new TelemetryWriter(folder, DEFAULT_BATCH_RECORDS, DEFAULT_BATCHES, 8L * 1024 * 1024);
+        bus.subscribe(writer);
+        GameEvent.Type[] types = GameEvent.Type.values();
+        long start = System.nanoTime();
+        for (int i = 0; i < events; i++) {
+            bus.publish(types[i % types.length], i % GameEngine.LEVEL_WIDTH, i % GameEngine.LEVEL_HEIGHT, i & 7, i);
+        }
+        long publishNanos = System.nanoTime() - start;
+        while (bus.getBacklog() > 0) {
+            Thread.onSpinWait();
+        }
+        writer.close();
+        long totalNanos = System.nanoTime() - start;
+        System.out.printf("%d events: %.1f ns per publish, %.0f ms until written, %d written,"
+                + " %d dropped by the writer, %d dropped by the bus, %d files in %s%n",
+                events, (double) publishNanos / events, totalNanos / 1e6, writer.getRecordsWritten(),
+                writer.getRecordsDropped(), bus.getDroppedCount(), writer.getFilesWritten(), folder);
+    }
+}
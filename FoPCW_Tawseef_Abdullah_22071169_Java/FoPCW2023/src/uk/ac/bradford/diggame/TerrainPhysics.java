@@ -0,0 +1,315 @@
+package uk.ac.bradford.diggame;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import uk.ac.bradford.diggame.Tile.TileType;
+
+/**
+ * The TerrainPhysics class makes unsupported terrain collapse into the tunnels
+ * dug through it. It is a cellular automaton with two rules, applied once per
+ * step: a DIRT or ROCK tile with an EMPTY tile below it falls one tile down,
+ * and a DIRT tile that cannot fall slides one tile diagonally down into an
+ * EMPTY tile if the tile beside it is EMPTY too, so loose dirt settles into
+ * slopes. Tiles keep their current durability as they fall, and never fall
+ * into a tile that the listener says is occupied by the player or a mole.
+ *
+ * Only active tiles are looked at. A tile becomes active when wake() is
+ * called for a tile next to it, which the engine does whenever it destroys a
+ * tile, and a tile that moves wakes the tiles around the place it left. A tile
+ * that is looked at and cannot move goes back to sleep until it is woken
+ * again, so a step costs time in proportion to the tiles that are settling,
+ * however large the grid is, and nothing is stepped at all once the terrain
+ * is still. Tiles that are blocked by an entity stay awake and are tried
+ * again every step.
+ *
+ * The active tiles are kept in a growable array of keys. Each step sorts the
+ * keys, which puts the lowest row first and removes duplicates, so a tile
+ * woken several times is stepped once, and a falling tile is never stepped
+ * again after moving into a row that has already been done. Nothing in a
+ * step uses a random number generator, so seeded games stay repeatable.
+ */
+public class TerrainPhysics {
+
+    /**
+     * Is told about the entities that block falling tiles and about every
+     * tile that moves.
+     */
+    public interface Listener {
+
+        /**
+         * @param x the X position of a tile
+         * @param y the Y position of a tile
+         * @return true if an entity is standing on that tile, so nothing can
+         * fall into it
+         */
+        boolean isOccupied(int x, int y);
+
+        /**
+         * Called after a tile has moved. The tile it left is now EMPTY.
+         *
+         * @param fromX the X position the tile fell from
+         * @param fromY the Y position the tile fell from
+         * @param toX the X position the tile fell to
+         * @param toY the Y position the tile fell to
+         * @param type the type of the tile that fell
+         * @param durability the current durability of the tile that fell
+         */
+        void tileMoved(int fromX, int fromY, int toX, int toY, TileType type, int durability);
+    }
+
+    private final Listener listener;
+    private TileGrid grid;
+    private int width;
+    private int height;
+
+    /**
+     * The keys of the tiles to look at in the next step, and the array the
+     * last step worked through, reused for the step after. A key is the row
+     * counted up from the bottom of the grid times the width, plus X, so
+     * sorting the keys sorts the tiles from the bottom row up.
+     */
+    private long[] active = new long[64];
+    private int activeCount;
+    private long[] stepping = new long[64];
+
+    private int steps;
+    private long tilesStepped;
+    private long tilesMoved;
+
+    /**
+     * Creates the physics for a grid. reset() must be called with the grid
+     * before anything is woken.
+     *
+     * @param listener told about occupied tiles and about tiles that move
+     */
+    public TerrainPhysics(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts using a grid, putting every tile to sleep. Called when a new
+     * level is started or an earlier turn is restored, so tiles that were
+     * falling stay where they are until something next to them is mined.
+     *
+     * @param grid the tiles to apply the physics to
+     */
+    public void reset(TileGrid grid) {
+        this.grid = grid;
+        width = grid.getWidth();
+        height = grid.getHeight();
+        activeCount = 0;
+    }
+
+    /**
+     * Wakes the tile at a position and the eight tiles around it, because the
+     * tile there has changed and they may no longer be supported.
+     *
+     * @param x the X position of the tile that changed
+     * @param y the Y position of the tile that changed
+     */
+    public void wake(int x, int y) {
+        for (int ny = Math.max(0, y - 1); ny <= Math.min(height - 1, y + 1); ny++) {
+            for (int nx = Math.max(0, x - 1); nx <= Math.min(width - 1, x + 1); nx++) {
+                keepAwake(nx, ny);
+            }
+        }
+    }
+
+    private void keepAwake(int x, int y) {
+        if (activeCount == active.length) {
+            active = Arrays.copyOf(active, activeCount * 2);
+        }
+        active[activeCount++] = (long) (height - 1 - y) * width + x;
+    }
+
+    /**
+     * Looks at every active tile once, from the bottom row up, moving the
+     * tiles that are unsupported. Tiles that move wake the tiles around them
+     * for the next step.
+     *
+     * @return the number of tiles that moved
+     */
+    public int step() {
+        long[] work = active;
+        int count = activeCount;
+        active = stepping;
+        activeCount = 0;
+        stepping = work;
+        steps++;
+        Arrays.sort(work, 0, count);
+        int moved = 0;
+        long previous = -1;
+        for (int i = 0; i < count; i++) {
+            long key = work[i];
+            if (key == previous) {
+                continue;
+            }
+            previous = key;
+            long row = key / width;
+            int x = (int) (key - row * width);
+            int y = height - 1 - (int) row;
+            tilesStepped++;
+            if (settle(x, y)) {
+                moved++;
+            }
+        }
+        tilesMoved += moved;
+        return moved;
+    }
+
+    /**
+     * Applies the rules to one tile.
+     *
+     * @return true if the tile moved
+     */
+    private boolean settle(int x, int y) {
+        TileType type = grid.getType(x, y);
+        if (type != TileType.DIRT && type != TileType.ROCK || y + 1 >= height) {
+            return false;
+        }
+        if (grid.getType(x, y + 1) == TileType.EMPTY) {
+            return moveOrWait(x, y, x, y + 1, type);
+        }
+        if (type == TileType.DIRT) {
+            int side = ((steps + x) & 1) == 0 ? -1 : 1;    //alternate which way dirt slides first
+            for (int tries = 0; tries < 2; tries++, side = -side) {
+                int nx = x + side;
+                if (nx >= 0 && nx < width && grid.getType(nx, y) == TileType.EMPTY
+                        && grid.getType(nx, y + 1) == TileType.EMPTY) {
+                    if (listener.isOccupied(nx, y)) {
+                        keepAwake(x, y);
+                        return false;
+                    }
+                    return moveOrWait(x, y, nx, y + 1, type);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves a tile into an EMPTY tile, or keeps it awake to try again next
+     * step if an entity is standing there.
+     */
+    private boolean moveOrWait(int x, int y, int toX, int toY, TileType type) {
+        if (listener.isOccupied(toX, toY)) {
+            keepAwake(x, y);
+            return false;
+        }
+        int durability = grid.getDurability(x, y);
+        grid.set(toX, toY, type, durability);
+        grid.set(x, y, TileType.EMPTY, 0);
+        wake(x, y);
+        keepAwake(toX, toY);
+        listener.tileMoved(x, y, toX, toY, type, durability);
+        return true;
+    }
+
+    /**
+     * @return the number of tiles that will be looked at in the next step,
+     * counting a tile woken more than once each time
+     */
+    public int getActiveCount() {
+        return activeCount;
+    }
+
+    /**
+     * @return true if no tile is awake, so the terrain is still
+     */
+    public boolean isAsleep() {
+        return activeCount == 0;
+    }
+
+    /**
+     * @return the number of steps taken
+     */
+    public int getSteps() {
+        return steps;
+    }
+
+    /**
+     * @return the number of tiles looked at over all steps
+     */
+    public long getTilesStepped() {
+        return tilesStepped;
+    }
+
+    /**
+     * @return the number of tiles that have moved over all steps
+     */
+    public long getTilesMoved() {
+        return tilesMoved;
+    }
+
+    /**
+     * Digs the same tunnels into random worlds of different sizes and lets
+     * them collapse, reporting the time per step, which should stay about the
+     * same as the world grows, next to the time of one pass over every tile,
+     * which is what stepping the whole grid would cost. The worlds are kept
+     * in temporary memory-mapped files. Usage: TerrainPhysics [tunnels]
+     *
+     * @param args optional number of tunnels to dig in each world
+     * @throws IOException if a temporary world file cannot be created
+     */
+    public static void main(String[] args) throws IOException {
+        int tunnels = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int[] sizes = {512, 2048, 8192};
+        for (int round = 0; round < 2; round++) {   //the first round warms up the JIT compiler
+            for (int size : sizes) {
+                File file = File.createTempFile("terrain", ".bin");
+                file.deleteOnExit();
+                try (MappedTileGrid grid = MappedTileGrid.create(file, size, size)) {
+                    grid.fillRandom(new Random(1), 1);
+                    TerrainPhysics physics = new TerrainPhysics(new Listener() {
+                        @Override
+                        public boolean isOccupied(int x, int y) {
+                            return false;
+                        }
+
+                        @Override
+                        public void tileMoved(int fromX, int fromY, int toX, int toY, TileType type, int durability) {
+                        }
+                    });
+                    physics.reset(grid);
+                    Random rng = new Random(2);
+                    for (int t = 0; t < tunnels; t++) {
+                        int x = 1 + rng.nextInt(size - 40);
+                        int y = 1 + rng.nextInt(size - 2);
+                        for (int dx = 0; dx < 32; dx++) {
+                            grid.set(x + dx, y, TileType.EMPTY, 0);
+                            physics.wake(x + dx, y);
+                        }
+                    }
+                    long start = System.nanoTime();
+                    while (!physics.isAsleep()) {
+                        physics.step();
+                    }
+                    long stepNanos = System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    long unsupported = 0;
+                    for (int x = 0; x < size; x++) {
+                        for (int y = 0; y + 1 < size; y++) {
+                            if (grid.getType(x, y) != TileType.EMPTY && grid.getType(x, y + 1) == TileType.EMPTY) {
+                                unsupported++;
+                            }
+                        }
+                    }
+                    long sweepNanos = System.nanoTime() - start;
+                    if (round > 0) {
+                        System.out.printf("%dx%d: %d steps until still, %.1f us per step, %.1f tiles looked at"
+                                + " and %.1f moved per step; one pass over every tile takes %.1f ms"
+                                + " (%d tiles over a gap)%n", size, size, physics.getSteps(),
+                                stepNanos / 1e3 / physics.getSteps(),
+                                (double) physics.getTilesStepped() / physics.getSteps(),
+                                (double) physics.getTilesMoved() / physics.getSteps(), sweepNanos / 1e6,
+                                unsupported);
+                    }
+                }
+                file.delete();
+            }
+        }
+    }
+}
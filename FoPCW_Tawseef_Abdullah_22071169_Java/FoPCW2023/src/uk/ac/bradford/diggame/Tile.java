@@ -42,22 +42,14 @@ public class Tile {
     
     /**
      * A constructor to create Tile objects. Sets the type for this Tile object
-     * which dictates the durability for this Tile object. Note that EMPTY 
-     * and BASE type Tile objects have 0 durability as they cannot be mined.
+     * which dictates the durability for this Tile object. Durabilities for
+     * each type are set in the GameRules. Note that EMPTY and BASE type Tile
+     * objects have 0 durability as they cannot be mined.
      * @param t 
      */
     public Tile(TileType t) {
         this.type = t;
-        switch (t) {
-            case EMPTY: this.maxDurability = 0; break;
-            case DIRT: this.maxDurability = 10; break;
-            case HARD_DIRT: this.maxDurability = 20; break;
-            case ROCK: this.maxDurability = 40; break;
-            case COPPER: this.maxDurability = 30; break;
-            case SILVER: this.maxDurability = 40; break;
-            case URANIUM: this.maxDurability = 60; break;
-            case BASE: this.maxDurability = 0; break;
-        }
+        this.maxDurability = GameRules.getDefault().getDurability(t);
         this.durability = this.maxDurability;    //always set durability to max
     }
     
@@ -113,4 +105,29 @@ public class Tile {
         return null;
     }
     
+    /**
+     * Sets the type and current durability of this Tile object directly, for
+     * example when an earlier turn is restored. The maximum durability is set
+     * from the GameRules for the type, as it is when a Tile is created.
+     *
+     * @param t the new type for this Tile
+     * @param durability the new current durability for this Tile
+     */
+    void restore(TileType t, int durability) {
+        this.type = t;
+        this.maxDurability = GameRules.getDefault().getDurability(t);
+        this.durability = durability;
+    }
+
+    /**
+     * Turns this Tile object into a new Tile of the given type with full
+     * durability, as if it had just been created by the constructor, so a
+     * level can be generated again without creating new Tile objects.
+     *
+     * @param t the new type for this Tile
+     */
+    void reset(TileType t) {
+        restore(t, GameRules.getDefault().getDurability(t));
+    }
+
 }
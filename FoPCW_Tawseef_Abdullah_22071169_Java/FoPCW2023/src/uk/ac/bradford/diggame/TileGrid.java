@@ -0,0 +1,71 @@
+package uk.ac.bradford.diggame;
+
+import uk.ac.bradford.diggame.Tile.TileType;
+
+/**
+ * The TileGrid interface is a grid of tiles addressed by X and Y position,
+ * whatever the tiles are stored in. HeapTileGrid keeps them as Tile objects
+ * in a Tile[][] array on the Java heap, as levels always have been, and
+ * MappedTileGrid keeps them in a memory-mapped file, so a world can be far
+ * larger than the heap. Code that moves and mines through a grid, and the
+ * Canvas when it draws one, works the same with either.
+ *
+ * Positions follow the usual co-ordinate system: 0,0 is the top left tile and
+ * X increases to the right. The maximum durability of a tile always comes
+ * from the GameRules for its type, except that a destroyed tile has none.
+ */
+public interface TileGrid {
+
+    /**
+     * @return the width of the grid in tiles
+     */
+    int getWidth();
+
+    /**
+     * @return the height of the grid in tiles
+     */
+    int getHeight();
+
+    /**
+     * @param x the X position of a tile
+     * @param y the Y position of a tile
+     * @return the type of the tile
+     */
+    TileType getType(int x, int y);
+
+    /**
+     * @param x the X position of a tile
+     * @param y the Y position of a tile
+     * @return the current durability of the tile
+     */
+    int getDurability(int x, int y);
+
+    /**
+     * @param x the X position of a tile
+     * @param y the Y position of a tile
+     * @return the maximum durability of the tile
+     */
+    int getMaxDurability(int x, int y);
+
+    /**
+     * Mines a tile in the same way as Tile.mine(): the durability is reduced
+     * by the strength, and if it reaches 0 or less the tile becomes EMPTY.
+     *
+     * @param x the X position of the tile
+     * @param y the Y position of the tile
+     * @param strength the amount of durability to reduce
+     * @return null if the tile was not destroyed, or the type of the tile
+     * before it was destroyed
+     */
+    TileType mine(int x, int y, int strength);
+
+    /**
+     * Sets the type and current durability of a tile directly.
+     *
+     * @param x the X position of the tile
+     * @param y the Y position of the tile
+     * @param type the new type of the tile
+     * @param durability the new current durability of the tile
+     */
+    void set(int x, int y, TileType type, int durability);
+}
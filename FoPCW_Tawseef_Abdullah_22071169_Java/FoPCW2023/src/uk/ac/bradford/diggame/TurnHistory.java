@@ -0,0 +1,292 @@
+package uk.ac.bradford.diggame;
+
+import java.util.Arrays;
+import uk.ac.bradford.diggame.Tile.TileType;
+
+/**
+ * The TurnHistory class remembers the state of the game at the end of each of
+ * the last few turns so that turns can be undone. The level is split into
+ * square chunks of tiles, and each snapshot is an array of references to
+ * chunks. Snapshots share every chunk that did not change during the turn, so
+ * recording a turn only copies the chunks containing tiles that were mined
+ * that turn, rather than the whole level.
+ *
+ * Snapshots are kept in a ring, and the oldest are dropped once either the
+ * maximum number of turns or the memory limit is reached. Finding the snapshot
+ * for any retained turn takes constant time, and rewinding only rewrites the
+ * chunks that differ between that snapshot and the current one.
+ */
+public class TurnHistory {
+
+    /**
+     * Chunks are CHUNK_SIZE by CHUNK_SIZE tiles.
+     */
+    private static final int CHUNK_SIZE = 8;
+
+    /**
+     * The approximate memory used by one chunk: an int per tile plus the
+     * array header.
+     */
+    private static final long CHUNK_BYTES = 16 + 4L * CHUNK_SIZE * CHUNK_SIZE;
+
+    private static final TileType[] TILE_TYPES = TileType.values();
+
+    private final int width;
+    private final int height;
+    private final int chunkColumns;
+    private final int chunkRows;
+
+    /**
+     * The most turns and bytes that may be retained.
+     */
+    private final int maxTurns;
+    private final long maxBytes;
+
+    /**
+     * Flags and a list of the chunks that have changed since the last
+     * snapshot was recorded.
+     */
+    private final boolean[] dirty;
+    private final int[] dirtyList;
+    private int dirtyCount;
+
+    /**
+     * The ring of snapshots, oldest first starting at index first.
+     */
+    private final Snapshot[] ring;
+    private int first;
+    private int count;
+
+    /**
+     * The approximate memory used by all retained snapshots.
+     */
+    private long retainedBytes;
+
+    /**
+     * The state of the game at the end of one turn.
+     */
+    private static class Snapshot {
+
+        /**
+         * References to the chunks of the level, shared with neighbouring
+         * snapshots where they did not change. Each tile is stored as
+         * (type ordinal << 16) | durability.
+         */
+        final int[][] chunks;
+
+        /**
+         * The state of the engine and entities, packed by the GameEngine.
+         */
+        final int[] state;
+
+        /**
+         * The memory this snapshot added to the history.
+         */
+        long bytes;
+
+        Snapshot(int[][] chunks, int[] state) {
+            this.chunks = chunks;
+            this.state = state;
+        }
+    }
+
+    /**
+     * Creates an empty history for levels of the given size.
+     *
+     * @param width the width of the level in tiles
+     * @param height the height of the level in tiles
+     * @param maxTurns the maximum number of turns to retain
+     * @param maxBytes the approximate maximum memory to use
+     */
+    public TurnHistory(int width, int height, int maxTurns, long maxBytes) {
+        this.width = width;
+        this.height = height;
+        this.chunkColumns = (width + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        this.chunkRows = (height + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        this.maxTurns = maxTurns;
+        this.maxBytes = maxBytes;
+        this.dirty = new boolean[chunkColumns * chunkRows];
+        this.dirtyList = new int[dirty.length];
+        this.ring = new Snapshot[maxTurns];
+    }
+
+    /**
+     * Forgets all snapshots, for example when a new level starts. The next
+     * call to record() copies the whole level.
+     */
+    public void clear() {
+        for (int i = 0; i < count; i++) {
+            ring[(first + i) % maxTurns] = null;
+        }
+        first = 0;
+        count = 0;
+        retainedBytes = 0;
+        Arrays.fill(dirty, false);
+        dirtyCount = 0;
+    }
+
+    /**
+     * Marks the tile at a position as changed, so that its chunk is copied by
+     * the next call to record().
+     *
+     * @param x the X position of the tile
+     * @param y the Y position of the tile
+     */
+    public void markDirty(int x, int y) {
+        int chunk = (x / CHUNK_SIZE) * chunkRows + y / CHUNK_SIZE;
+        if (!dirty[chunk]) {
+            dirty[chunk] = true;
+            dirtyList[dirtyCount++] = chunk;
+        }
+    }
+
+    /**
+     * Records a snapshot of the level and engine state at the end of a turn.
+     *
+     * @param level the current level
+     * @param state the packed state of the engine and entities, which must not
+     * be changed afterwards
+     */
+    public void record(Tile[][] level, int[] state) {
+        Snapshot latest = latest();
+        int[][] chunks;
+        long bytes = 16 + 4L * dirty.length + 16 + 4L * state.length;
+        if (latest == null) {
+            chunks = new int[dirty.length][];
+            for (int chunk = 0; chunk < chunks.length; chunk++) {
+                chunks[chunk] = encode(level, chunk);
+                bytes += CHUNK_BYTES;
+            }
+        } else {
+            chunks = latest.chunks.clone();
+            for (int i = 0; i < dirtyCount; i++) {
+                chunks[dirtyList[i]] = encode(level, dirtyList[i]);
+                bytes += CHUNK_BYTES;
+            }
+        }
+        for (int i = 0; i < dirtyCount; i++) {
+            dirty[dirtyList[i]] = false;
+        }
+        dirtyCount = 0;
+
+        if (count == maxTurns) {
+            dropOldest();
+        }
+        Snapshot snapshot = new Snapshot(chunks, state);
+        snapshot.bytes = bytes;
+        ring[(first + count) % maxTurns] = snapshot;
+        count++;
+        retainedBytes += bytes;
+        while (retainedBytes > maxBytes && count > 1) {
+            dropOldest();
+        }
+    }
+
+    /**
+     * Rewinds the level to the end of an earlier turn. The snapshots of the
+     * turns after that one are discarded.
+     *
+     * @param turns how many turns to go back
+     * @param level the current level, whose tiles are changed back
+     * @return the packed engine state of the earlier turn, or null if that
+     * turn is no longer retained
+     */
+    public int[] rewind(int turns, Tile[][] level) {
+        if (turns <= 0 || turns >= count) {
+            return null;
+        }
+        Snapshot latest = latest();
+        int targetIndex = count - 1 - turns;
+        Snapshot target = ring[(first + targetIndex) % maxTurns];
+        for (int chunk = 0; chunk < target.chunks.length; chunk++) {
+            if (target.chunks[chunk] != latest.chunks[chunk]) {
+                decode(level, chunk, target.chunks[chunk]);
+            }
+        }
+        for (int i = count - 1; i > targetIndex; i--) {
+            int slot = (first + i) % maxTurns;
+            retainedBytes -= ring[slot].bytes;
+            ring[slot] = null;
+        }
+        count = targetIndex + 1;
+        return target.state;
+    }
+
+    /**
+     * @return the number of turns that can currently be undone
+     */
+    public int getRetainedTurns() {
+        return Math.max(0, count - 1);
+    }
+
+    /**
+     * @return the approximate memory used by all retained snapshots
+     */
+    public long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    /**
+     * @return the approximate memory used per retained turn
+     */
+    public long getBytesPerTurn() {
+        return count == 0 ? 0 : retainedBytes / count;
+    }
+
+    private Snapshot latest() {
+        return count == 0 ? null : ring[(first + count - 1) % maxTurns];
+    }
+
+    /**
+     * Drops the oldest snapshot. Chunks it shares with the next snapshot stay
+     * in memory, so only the chunks it does not share are subtracted from the
+     * retained memory. This is what makes the next snapshot the new base.
+     */
+    private void dropOldest() {
+        Snapshot oldest = ring[first];
+        Snapshot next = count > 1 ? ring[(first + 1) % maxTurns] : null;
+        long freed = 16 + 4L * oldest.chunks.length + 16 + 4L * oldest.state.length;
+        for (int chunk = 0; chunk < oldest.chunks.length; chunk++) {
+            if (next == null || next.chunks[chunk] != oldest.chunks[chunk]) {
+                freed += CHUNK_BYTES;
+            }
+        }
+        if (next != null) {
+            next.bytes += oldest.bytes - freed;
+        }
+        retainedBytes -= freed;
+        ring[first] = null;
+        first = (first + 1) % maxTurns;
+        count--;
+    }
+
+    /**
+     * Copies the tiles of one chunk of the level into a new array.
+     */
+    private int[] encode(Tile[][] level, int chunk) {
+        int[] data = new int[CHUNK_SIZE * CHUNK_SIZE];
+        int x0 = (chunk / chunkRows) * CHUNK_SIZE;
+        int y0 = (chunk % chunkRows) * CHUNK_SIZE;
+        for (int x = x0; x < Math.min(x0 + CHUNK_SIZE, width); x++) {
+            for (int y = y0; y < Math.min(y0 + CHUNK_SIZE, height); y++) {
+                Tile t = level[x][y];
+                data[(x - x0) * CHUNK_SIZE + (y - y0)] = t.getType().ordinal() << 16 | t.getDurability();
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Writes the tiles stored in a chunk back into the level.
+     */
+    private void decode(Tile[][] level, int chunk, int[] data) {
+        int x0 = (chunk / chunkRows) * CHUNK_SIZE;
+        int y0 = (chunk % chunkRows) * CHUNK_SIZE;
+        for (int x = x0; x < Math.min(x0 + CHUNK_SIZE, width); x++) {
+            for (int y = y0; y < Math.min(y0 + CHUNK_SIZE, height); y++) {
+                int packed = data[(x - x0) * CHUNK_SIZE + (y - y0)];
+                level[x][y].restore(TILE_TYPES[packed >>> 16], packed & 0xFFFF);
+            }
+        }
+    }
+}
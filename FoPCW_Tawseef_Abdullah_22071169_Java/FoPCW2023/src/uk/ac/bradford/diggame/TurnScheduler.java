@@ -0,0 +1,335 @@
+package uk.ac.bradford.diggame;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The TurnScheduler class runs timed effects on the turns they are due, such as
+ * moles moving every few turns or the player regaining energy every turn. Each
+ * timer has a kind and a payload (for example the index of a mole), and can
+ * fire once or repeat with a fixed period.
+ *
+ * Timers are kept in a hierarchical timing wheel: four wheels of 64 slots,
+ * where a slot in the first wheel holds the timers due on one turn, a slot in
+ * the second wheel holds timers due in a block of 64 turns, and so on. Adding
+ * and cancelling a timer take constant time, and each turn only the timers
+ * that are due are looked at, plus an occasional move of a block of timers
+ * down to a lower wheel, so thousands of entities can each have their own
+ * timers without scanning all of them every turn.
+ *
+ * Timers are stored in parallel int arrays linked into lists, so scheduling
+ * does not create objects. Timers due on the same turn fire in the order they
+ * were scheduled.
+ */
+public class TurnScheduler {
+
+    /**
+     * Receives timers as they fire.
+     */
+    public interface Handler {
+
+        /**
+         * Called when a timer is due.
+         *
+         * @param handle the handle of the timer, which can be cancelled here
+         * @param kind the kind of the timer
+         * @param payload the payload of the timer
+         */
+        void onTimer(int handle, int kind, int payload);
+    }
+
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int WHEELS = 4;
+
+    /**
+     * The longest delay that fits in the wheels. Longer delays are capped.
+     */
+    public static final int MAX_DELAY = (1 << (WHEEL_BITS * WHEELS)) - 1;
+
+    /**
+     * Timer handles hold the index of the timer in the low INDEX_BITS bits and
+     * a generation count above them, so a handle for a timer that has already
+     * finished cannot cancel a later timer that reuses its slot.
+     */
+    private static final int INDEX_BITS = 20;
+    private static final int INDEX_MASK = (1 << INDEX_BITS) - 1;
+
+    private static final int NONE = -1;
+
+    /**
+     * The first and last timer in each slot of each wheel.
+     */
+    private final int[] head = new int[WHEELS * WHEEL_SIZE];
+    private final int[] tail = new int[WHEELS * WHEEL_SIZE];
+
+    /**
+     * Parallel arrays describing each timer.
+     */
+    private int[] due;
+    private int[] period;
+    private int[] kind;
+    private int[] payload;
+    private int[] generation;
+    private int[] next;
+    private int[] previous;
+    private int[] slot;
+
+    private int freeList = NONE;
+    private int used;
+    private int active;
+
+    /**
+     * The last turn that has been processed.
+     */
+    private int now;
+
+    /**
+     * Creates an empty scheduler.
+     *
+     * @param capacity the number of timers to make room for at first
+     */
+    public TurnScheduler(int capacity) {
+        capacity = Math.max(16, capacity);
+        due = new int[capacity];
+        period = new int[capacity];
+        kind = new int[capacity];
+        payload = new int[capacity];
+        generation = new int[capacity];
+        next = new int[capacity];
+        previous = new int[capacity];
+        slot = new int[capacity];
+        Arrays.fill(head, NONE);
+        Arrays.fill(tail, NONE);
+    }
+
+    /**
+     * Cancels every timer and sets the current turn.
+     *
+     * @param turn the turn that has just been processed
+     */
+    public void reset(int turn) {
+        Arrays.fill(head, NONE);
+        Arrays.fill(tail, NONE);
+        for (int i = 0; i < used; i++) {
+            generation[i]++;
+        }
+        freeList = NONE;
+        used = 0;
+        active = 0;
+        now = turn;
+    }
+
+    /**
+     * Adds a timer.
+     *
+     * @param delay the number of turns from now until the timer first fires,
+     * at least 1
+     * @param repeat the number of turns between firings, or 0 to fire once
+     * @param timerKind the kind passed to the Handler
+     * @param timerPayload the payload passed to the Handler
+     * @return a handle that can be used to cancel the timer
+     */
+    public int schedule(int delay, int repeat, int timerKind, int timerPayload) {
+        int index;
+        if (freeList != NONE) {
+            index = freeList;
+            freeList = next[index];
+        } else {
+            if (used == due.length) {
+                grow();
+            }
+            if (used > INDEX_MASK) {
+                throw new IllegalStateException("too many timers");
+            }
+            index = used++;
+        }
+        period[index] = Math.max(0, repeat);
+        kind[index] = timerKind;
+        payload[index] = timerPayload;
+        due[index] = now + Math.max(1, Math.min(delay, MAX_DELAY));
+        insert(index);
+        active++;
+        return generation[index] << INDEX_BITS | index;
+    }
+
+    /**
+     * Cancels a timer. Cancelling a timer that has already fired for the last
+     * time or been cancelled does nothing.
+     *
+     * @param handle the handle returned by schedule()
+     * @return true if the timer was cancelled
+     */
+    public boolean cancel(int handle) {
+        int index = handle & INDEX_MASK;
+        if (index >= used || generation[index] != handle >>> INDEX_BITS || slot[index] == NONE) {
+            return false;
+        }
+        unlink(index);
+        release(index);
+        return true;
+    }
+
+    /**
+     * Fires every timer due up to and including a turn, in turn order.
+     * Repeating timers are scheduled again after they fire, unless the
+     * handler cancels them. The handler may schedule and cancel timers but
+     * must not call reset().
+     *
+     * @param turn the turn to advance to
+     * @param handler the handler to pass the timers to
+     */
+    public void advance(int turn, Handler handler) {
+        while (now - turn < 0) {
+            now++;
+            cascade();
+            int s = now & WHEEL_MASK;
+            while (head[s] != NONE) {
+                int index = head[s];
+                unlink(index);
+                int handle = generation[index] << INDEX_BITS | index;
+                if (period[index] > 0) {
+                    due[index] = now + period[index];
+                    insert(index);
+                } else {
+                    slot[index] = NONE;
+                }
+                handler.onTimer(handle, kind[index], payload[index]);
+                if (period[index] == 0) {
+                    release(index);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of timers waiting to fire
+     */
+    public int size() {
+        return active;
+    }
+
+    /**
+     * When the first wheel wraps around, moves the block of timers that is
+     * now within 64 turns down from the next wheel, and so on up the wheels.
+     */
+    private void cascade() {
+        for (int wheel = 1; wheel < WHEELS; wheel++) {
+            if (((now >>> (WHEEL_BITS * (wheel - 1))) & WHEEL_MASK) != 0) {
+                return;
+            }
+            int s = wheel * WHEEL_SIZE + ((now >>> (WHEEL_BITS * wheel)) & WHEEL_MASK);
+            int index = head[s];
+            head[s] = NONE;
+            tail[s] = NONE;
+            while (index != NONE) {
+                int following = next[index];
+                insert(index);
+                index = following;
+            }
+        }
+    }
+
+    /**
+     * Puts a timer at the end of the slot for its due turn, in the lowest
+     * wheel whose range covers it.
+     */
+    private void insert(int index) {
+        int delay = due[index] - now;
+        int wheel = 0;
+        while (wheel < WHEELS - 1 && delay >= 1 << (WHEEL_BITS * (wheel + 1))) {
+            wheel++;
+        }
+        int s = wheel * WHEEL_SIZE + ((due[index] >>> (WHEEL_BITS * wheel)) & WHEEL_MASK);
+        slot[index] = s;
+        next[index] = NONE;
+        previous[index] = tail[s];
+        if (tail[s] == NONE) {
+            head[s] = index;
+        } else {
+            next[tail[s]] = index;
+        }
+        tail[s] = index;
+    }
+
+    private void unlink(int index) {
+        int s = slot[index];
+        if (previous[index] == NONE) {
+            head[s] = next[index];
+        } else {
+            next[previous[index]] = next[index];
+        }
+        if (next[index] == NONE) {
+            tail[s] = previous[index];
+        } else {
+            previous[next[index]] = previous[index];
+        }
+        slot[index] = NONE;
+    }
+
+    private void release(int index) {
+        slot[index] = NONE;
+        generation[index]++;
+        next[index] = freeList;
+        freeList = index;
+        active--;
+    }
+
+    private void grow() {
+        int capacity = due.length * 2;
+        due = Arrays.copyOf(due, capacity);
+        period = Arrays.copyOf(period, capacity);
+        kind = Arrays.copyOf(kind, capacity);
+        payload = Arrays.copyOf(payload, capacity);
+        generation = Arrays.copyOf(generation, capacity);
+        next = Arrays.copyOf(next, capacity);
+        previous = Arrays.copyOf(previous, capacity);
+        slot = Arrays.copyOf(slot, capacity);
+    }
+
+    /**
+     * Compares the scheduler with checking a modulo for every entity every
+     * turn, for many entities with their own periods. Usage: TurnScheduler
+     * [entities] [turns]
+     *
+     * @param args optional number of entities and turns
+     */
+    public static void main(String[] args) {
+        int entities = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int turns = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        Random rng = new Random(1);
+        int[] periods = new int[entities];
+        int[] phases = new int[entities];
+        for (int i = 0; i < entities; i++) {
+            periods[i] = 1 + rng.nextInt(rng.nextBoolean() ? 50 : 5000);
+            phases[i] = rng.nextInt(periods[i]);
+        }
+        for (int round = 0; round < 3; round++) {
+            long[] fired = new long[1];
+            TurnScheduler scheduler = new TurnScheduler(entities);
+            for (int i = 0; i < entities; i++) {
+                scheduler.schedule(phases[i] == 0 ? periods[i] : phases[i], periods[i], 0, i);
+            }
+            long start = System.nanoTime();
+            for (int turn = 1; turn <= turns; turn++) {
+                scheduler.advance(turn, (handle, kind, payload) -> fired[0]++);
+            }
+            long wheelNanos = System.nanoTime() - start;
+
+            long scanned = 0;
+            start = System.nanoTime();
+            for (int turn = 1; turn <= turns; turn++) {
+                for (int i = 0; i < entities; i++) {
+                    if (turn % periods[i] == phases[i]) {
+                        scanned++;
+                    }
+                }
+            }
+            long scanNanos = System.nanoTime() - start;
+            System.out.printf("timing wheel: %d firings, %.1f ms (%.0f ns per firing);"
+                    + " scanning every entity: %d firings, %.1f ms%n",
+                    fired[0], wheelNanos / 1e6, (double) wheelNanos / fired[0], scanned, scanNanos / 1e6);
+        }
+    }
+}
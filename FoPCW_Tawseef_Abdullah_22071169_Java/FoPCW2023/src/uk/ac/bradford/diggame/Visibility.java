@@ -0,0 +1,229 @@
+package uk.ac.bradford.diggame;
+
+import java.util.Arrays;
+import uk.ac.bradford.diggame.Tile.TileType;
+
+/**
+ * The Visibility class works out which tiles of the level the player can see,
+ * for fog-of-war. The player can see through EMPTY and BASE tiles, and can see
+ * (but not through) every other type of tile, up to a fixed sight radius.
+ * Field of view is calculated with recursive shadowcasting, which visits each
+ * tile in view once.
+ *
+ * Two bitsets are kept, packed 64 tiles to a long: tiles that are visible now,
+ * and tiles that have been seen at some point in this level ("explored").
+ * The field of view is only recalculated when the player moves or when a tile
+ * that is currently visible changes type, because only those changes can
+ * open up a new line of sight.
+ */
+public class Visibility {
+
+    /**
+     * Multipliers that turn the coordinates of the first octant into each of
+     * the eight octants around the player.
+     */
+    private static final int[][] OCTANTS = {
+        {1, 0, 0, 1}, {0, 1, 1, 0}, {0, -1, 1, 0}, {-1, 0, 0, 1},
+        {-1, 0, 0, -1}, {0, -1, -1, 0}, {0, 1, -1, 0}, {1, 0, 0, -1}
+    };
+
+    private final int width;
+    private final int height;
+    private final int radius;
+
+    /**
+     * Bitsets of visible and explored tiles, with one bit per tile at index
+     * x * height + y.
+     */
+    private final long[] visible;
+    private final long[] explored;
+
+    /**
+     * The position the field of view was last calculated from, and whether a
+     * visible tile has changed since then.
+     */
+    private int lastX = -1;
+    private int lastY = -1;
+    private boolean dirty = true;
+
+    /**
+     * The bounding box of the tiles marked visible by the last calculation,
+     * so that only that area needs to be cleared next time.
+     */
+    private int minX;
+    private int maxX = -1;
+
+    /**
+     * The level used by the calculation that is currently running.
+     */
+    private Tile[][] level;
+
+    /**
+     * Creates the visibility information for a level of the given size.
+     *
+     * @param width the width of the level in tiles
+     * @param height the height of the level in tiles
+     * @param radius how many tiles away the player can see
+     */
+    public Visibility(int width, int height, int radius) {
+        this.width = width;
+        this.height = height;
+        this.radius = radius;
+        int words = (width * height + 63) >>> 6;
+        visible = new long[words];
+        explored = new long[words];
+    }
+
+    /**
+     * Forgets everything that has been explored, for example when a new level
+     * starts.
+     */
+    public void reset() {
+        Arrays.fill(visible, 0);
+        Arrays.fill(explored, 0);
+        maxX = -1;
+        dirty = true;
+    }
+
+    /**
+     * Tells this object that the tile at a position has changed type. If the
+     * tile is currently visible the field of view is recalculated on the next
+     * call to update().
+     *
+     * @param x the X position of the tile
+     * @param y the Y position of the tile
+     */
+    public void tileChanged(int x, int y) {
+        if (isVisible(x, y)) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Makes the next call to update() recalculate the field of view, for
+     * example after many tiles have changed at once.
+     */
+    public void invalidate() {
+        dirty = true;
+    }
+
+    /**
+     * Recalculates the field of view if the player has moved or a visible tile
+     * has changed since the last calculation.
+     *
+     * @param tiles the current level
+     * @param playerX the X position of the player
+     * @param playerY the Y position of the player
+     * @return true if the field of view was recalculated
+     */
+    public boolean update(Tile[][] tiles, int playerX, int playerY) {
+        if (!dirty && playerX == lastX && playerY == lastY) {
+            return false;
+        }
+        for (int x = minX; x <= maxX; x++) {
+            int from = x * height + Math.max(0, lastY - radius);
+            int to = x * height + Math.min(height - 1, lastY + radius);
+            for (int bit = from; bit <= to; bit++) {
+                visible[bit >>> 6] &= ~(1L << bit);
+            }
+        }
+        level = tiles;
+        lastX = playerX;
+        lastY = playerY;
+        minX = Math.max(0, playerX - radius);
+        maxX = Math.min(width - 1, playerX + radius);
+        mark(playerX, playerY);
+        for (int[] o : OCTANTS) {
+            castLight(playerX, playerY, 1, 1.0, 0.0, o[0], o[1], o[2], o[3]);
+        }
+        level = null;
+        dirty = false;
+        return true;
+    }
+
+    /**
+     * @param x an X position in the level
+     * @param y a Y position in the level
+     * @return true if the player can currently see the tile at that position
+     */
+    public boolean isVisible(int x, int y) {
+        int bit = x * height + y;
+        return (visible[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    /**
+     * @param x an X position in the level
+     * @param y a Y position in the level
+     * @return true if the player has seen the tile at that position during
+     * this level
+     */
+    public boolean isExplored(int x, int y) {
+        int bit = x * height + y;
+        return (explored[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    /**
+     * @return how many tiles away the player can see
+     */
+    public int getRadius() {
+        return radius;
+    }
+
+    /**
+     * Scans one octant row by row, moving outwards from the player, between
+     * a start and end slope. When a tile blocks sight the rest of the octant
+     * is scanned again on both sides of the shadow it casts.
+     */
+    private void castLight(int cx, int cy, int row, double start, double end,
+            int xx, int xy, int yx, int yy) {
+        if (start < end) {
+            return;
+        }
+        double newStart = 0;
+        for (int distance = row; distance <= radius; distance++) {
+            boolean blocked = false;
+            int dy = -distance;
+            for (int dx = -distance; dx <= 0; dx++) {
+                int x = cx + dx * xx + dy * xy;
+                int y = cy + dx * yx + dy * yy;
+                double leftSlope = (dx - 0.5) / (dy + 0.5);
+                double rightSlope = (dx + 0.5) / (dy - 0.5);
+                if (start < rightSlope) {
+                    continue;
+                } else if (end > leftSlope) {
+                    break;
+                }
+                boolean inside = x >= 0 && y >= 0 && x < width && y < height;
+                if (inside && dx * dx + dy * dy <= radius * radius) {
+                    mark(x, y);
+                }
+                boolean opaque = !inside || blocksSight(level[x][y].getType());
+                if (blocked) {
+                    if (opaque) {
+                        newStart = rightSlope;
+                    } else {
+                        blocked = false;
+                        start = newStart;
+                    }
+                } else if (opaque && distance < radius) {
+                    blocked = true;
+                    castLight(cx, cy, distance + 1, start, leftSlope, xx, xy, yx, yy);
+                    newStart = rightSlope;
+                }
+            }
+            if (blocked) {
+                break;
+            }
+        }
+    }
+
+    private void mark(int x, int y) {
+        int bit = x * height + y;
+        visible[bit >>> 6] |= 1L << bit;
+        explored[bit >>> 6] |= 1L << bit;
+    }
+
+    private static boolean blocksSight(TileType type) {
+        return type != TileType.EMPTY && type != TileType.BASE;
+    }
+}
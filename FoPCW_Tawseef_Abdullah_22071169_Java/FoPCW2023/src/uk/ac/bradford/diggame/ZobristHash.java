@@ -0,0 +1,149 @@
+package uk.ac.bradford.diggame;
+
+import uk.ac.bradford.diggame.Tile.TileType;
+
+/**
+ * The ZobristHash class provides the random 64-bit keys used to fingerprint the
+ * state of a game. The hash of a state is the XOR of one key for every feature
+ * of the state: the type and damage stage of every tile, the position of every
+ * entity, the player's energy, the level number and the mining strength.
+ * Because XOR undoes itself, when one feature changes the hash is updated in
+ * constant time by XORing out the key for the old value and XORing in the key
+ * for the new value, instead of hashing the whole state again.
+ *
+ * Keys are not stored in tables. Each key is made by mixing a number that
+ * identifies the feature and its value with the SplitMix64 finaliser, which
+ * gives well spread keys for levels and entity stores of any size.
+ */
+public final class ZobristHash {
+
+    /**
+     * Tags that keep the keys of different kinds of feature apart.
+     */
+    private static final long TILE = 1;
+    private static final long ENTITY = 2;
+    private static final long ENERGY = 3;
+    private static final long LEVEL = 4;
+    private static final long STRENGTH = 5;
+
+    /**
+     * The number of damage stages a tile can be in, matching the damage
+     * overlays drawn by the GUI.
+     */
+    public static final int DAMAGE_STAGES = 6;
+
+    private ZobristHash() {
+    }
+
+    /**
+     * Mixes a number into a well spread 64-bit key with the SplitMix64
+     * finaliser.
+     *
+     * @param z the number to mix
+     * @return the key
+     */
+    public static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static long key(long tag, long a, long b) {
+        return mix((tag << 56) + a * 0x9E3779B97F4A7C15L + mix(b));
+    }
+
+    /**
+     * @param durability the current durability of a tile
+     * @param maxDurability the maximum durability of the tile
+     * @return the damage stage of the tile, from 0 (almost destroyed) to
+     * DAMAGE_STAGES - 1 (undamaged)
+     */
+    public static int damageStage(int durability, int maxDurability) {
+        if (maxDurability <= 0 || durability >= maxDurability) {
+            return DAMAGE_STAGES - 1;
+        }
+        return Math.max(0, durability) * (DAMAGE_STAGES - 1) / maxDurability;
+    }
+
+    /**
+     * @param cell the index of a tile, x * height + y
+     * @param type the type of the tile
+     * @param stage the damage stage of the tile
+     * @return the key for that tile being that type and damage stage
+     */
+    public static long tileKey(int cell, TileType type, int stage) {
+        return key(TILE, cell, type.ordinal() * DAMAGE_STAGES + stage);
+    }
+
+    /**
+     * @param cell the index of a tile, x * height + y
+     * @param tile the tile
+     * @return the key for the current type and damage stage of the tile
+     */
+    public static long tileKey(int cell, Tile tile) {
+        return tileKey(cell, tile.getType(), damageStage(tile.getDurability(), tile.getMaxDurability()));
+    }
+
+    /**
+     * @param cell the index of a tile, x * height + y
+     * @param grid the grid holding the tile
+     * @param x the X position of the tile
+     * @param y the Y position of the tile
+     * @return the key for the current type and damage stage of the tile
+     */
+    public static long tileKey(int cell, TileGrid grid, int x, int y) {
+        return tileKey(cell, grid.getType(x, y), damageStage(grid.getDurability(x, y), grid.getMaxDurability(x, y)));
+    }
+
+    /**
+     * @param id the ID of an entity
+     * @param kind the kind of the entity
+     * @param x the X position of the entity
+     * @param y the Y position of the entity
+     * @return the key for that entity being at that position
+     */
+    public static long entityKey(int id, byte kind, int x, int y) {
+        return key(ENTITY, (long) id << 8 | kind, (long) x << 32 | (y & 0xFFFFFFFFL));
+    }
+
+    /**
+     * @param id the ID of an entity
+     * @param energy the energy of the entity
+     * @return the key for that entity having that much energy
+     */
+    public static long energyKey(int id, int energy) {
+        return key(ENERGY, id, energy);
+    }
+
+    /**
+     * @param levelNumber a level number
+     * @return the key for the game being on that level
+     */
+    public static long levelKey(int levelNumber) {
+        return key(LEVEL, 0, levelNumber);
+    }
+
+    /**
+     * @param strength a mining strength
+     * @return the key for the player having that mining strength
+     */
+    public static long strengthKey(int strength) {
+        return key(STRENGTH, 0, strength);
+    }
+
+    /**
+     * Hashes every tile of a level from scratch.
+     *
+     * @param level the level to hash
+     * @return the XOR of the keys of all tiles
+     */
+    public static long hashTiles(Tile[][] level) {
+        long hash = 0;
+        for (int x = 0; x < level.length; x++) {
+            for (int y = 0; y < level[x].length; y++) {
+                hash ^= tileKey(x * level[x].length + y, level[x][y]);
+            }
+        }
+        return hash;
+    }
+}